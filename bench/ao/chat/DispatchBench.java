@@ -0,0 +1,126 @@
+/*
+ * DispatchBench.java
+ *
+ *************************************************************************
+ * Copyright 2026 The AnarchyTalk contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ao.chat;
+
+import ao.protocol.Client;
+import ao.protocol.PacketListener;
+import ao.protocol.packets.Packet;
+import ao.protocol.packets.bi.ChannelMessagePacket;
+import ao.protocol.packets.bi.FriendUpdatePacket;
+import ao.protocol.packets.bi.PingPacket;
+import ao.protocol.packets.bi.PrivateChannelInvitePacket;
+import ao.protocol.packets.bi.PrivateChannelKickPacket;
+import ao.protocol.packets.bi.PrivateChannelMessagePacket;
+import ao.protocol.packets.bi.PrivateMessagePacket;
+import ao.protocol.packets.toclient.BroadcastMessagePacket;
+import ao.protocol.packets.toclient.ChannelUpdatePacket;
+import ao.protocol.packets.toclient.CharacterListPacket;
+import ao.protocol.packets.toclient.LoginErrorPacket;
+import ao.protocol.packets.toclient.PrivateChannelCharacterJoinPacket;
+import ao.protocol.packets.toclient.PrivateChannelCharacterLeavePacket;
+import ao.protocol.packets.toclient.SystemMessagePacket;
+import ao.protocol.packets.toclient.VicinityMessagePacket;
+
+/**
+ * <p>Measures the cost of delivering a packet to its handler through
+ * {@link ChatClient#firePacket(Packet)}. The baseline is the way the service
+ * used to listen: one listener for every packet that compares the type against
+ * each type it handles, in order. It is compared with one typed listener per
+ * type, see {@link ChatClient#addPacketListener(short, PacketListener)}. The
+ * client's own handlers run in both cases, so the difference is the dispatch.
+ * Every case is warmed up first and then timed over several rounds, the
+ * average of each round is printed.</p>
+ *
+ * <p>The benchmarks are not part of the application, run them on a desktop JVM:</p>
+ * <pre>
+ * javac -d out $(find src/ao bench/ao -name '*.java')
+ * java -cp out ao.chat.DispatchBench
+ * </pre>
+ */
+public class DispatchBench {
+
+    /** The types the service handles, in the order it used to test them */
+    private static final short[] TYPES = {
+        CharacterListPacket.TYPE, LoginErrorPacket.TYPE, PrivateMessagePacket.TYPE,
+        ChannelMessagePacket.TYPE, SystemMessagePacket.TYPE, BroadcastMessagePacket.TYPE,
+        VicinityMessagePacket.TYPE, FriendUpdatePacket.TYPE, ChannelUpdatePacket.TYPE,
+        PrivateChannelInvitePacket.TYPE, PrivateChannelCharacterJoinPacket.TYPE,
+        PrivateChannelKickPacket.TYPE, PrivateChannelCharacterLeavePacket.TYPE,
+        PrivateChannelMessagePacket.TYPE
+    };
+    private static final int PACKETS = 1000000;
+    private static final int WARMUP = 3;
+    private static final int ROUNDS = 5;
+
+    /** Counts the packets handled, so the work cannot be optimized away */
+    private static int sink = 0;
+
+    public static void main(String[] args) {
+        // A mix of what a busy session receives, the ping is handled by nobody
+        Packet[] packets = {
+            new ChannelMessagePacket(new byte[] { 3, 0, 0, 0, 1 }, 1, "hello", Packet.Direction.TO_CLIENT),
+            new ChannelMessagePacket(new byte[] { 3, 0, 0, 0, 2 }, 2, "hello", Packet.Direction.TO_CLIENT),
+            new PrivateMessagePacket(3, "hello", Packet.Direction.TO_CLIENT),
+            new FriendUpdatePacket(4, true, true, Packet.Direction.TO_CLIENT),
+            new PingPacket("ping", Packet.Direction.TO_CLIENT)
+        };
+
+        ChatClient before = new ChatClient();
+        before.addPacketListener(new PacketListener() {
+
+            public void packet(Client bot, Packet packet) {
+                // Every test runs, like the service's listener did
+                for (short type : TYPES) {
+                    if (packet.getType() == type) {
+                        sink++;
+                    }   // end if
+                }   // end for
+            }
+        });
+
+        ChatClient after = new ChatClient();
+        PacketListener handler = new PacketListener() {
+
+            public void packet(Client bot, Packet packet) {
+                sink++;
+            }
+        };
+        for (short type : TYPES) {
+            after.addPacketListener(type, handler);
+        }   // end for
+
+        run("before", before, packets);
+        run("after", after, packets);
+        System.out.println("(" + sink + ")");
+    }   // end main()
+
+    /** Fires {@link #PACKETS} packets per round */
+    private static void run(String name, ChatClient client, Packet[] packets) {
+        for (int round = -WARMUP; round < ROUNDS; ++round) {
+            long start = System.nanoTime();
+            for (int i = 0; i < PACKETS; ++i) {
+                client.firePacket(packets[i % packets.length]);
+            }   // end for
+            long nanos = System.nanoTime() - start;
+            if (round >= 0) {
+                System.out.println(String.format("%-8s round %d: %8.1f ns/packet", name, round, (double) nanos / PACKETS));
+            }   // end if
+        }   // end for
+    }   // end run()
+}   // end class DispatchBench
@@ -0,0 +1,191 @@
+/*
+ * LoginKeyBench.java
+ *
+ *************************************************************************
+ * Copyright 2026 The AnarchyTalk contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ao.protocol;
+
+import ao.misc.Convert;
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * <p>Measures the cost of a login key, with the key generation that
+ * {@link LoginKeyGenerator} used before key pairs were precomputed kept
+ * below as the baseline. Every case is warmed up first and then timed over
+ * several rounds, the average of each round is printed.</p>
+ *
+ * <p>The benchmarks are not part of the application, run them on a desktop JVM:</p>
+ * <pre>
+ * javac -d out $(find src/ao bench/ao -name '*.java')
+ * java -cp out ao.protocol.LoginKeyBench
+ * </pre>
+ */
+public class LoginKeyBench {
+
+    private static final String SEED = "0123456789abcdef0123456789abcdef";
+    private static final String ACCOUNT = "account";
+    private static final String PASSWORD = "password";
+    private static final int WARMUP = 3;
+    private static final int ROUNDS = 5;
+
+    /** Keeps the results alive so the work cannot be optimized away */
+    private static int sink = 0;
+
+    public static void main(String[] args) throws InterruptedException {
+        run("key, before", 200, new Case() {
+            public void run() {
+                sink += Baseline.generateLoginKey(SEED, ACCOUNT, PASSWORD).length();
+            }
+        });
+        run("key, back to back", 200, new Case() {
+            public void run() {
+                sink += LoginKeyGenerator.generateLoginKey(SEED, ACCOUNT, PASSWORD).length();
+            }
+        });
+
+        // Give the pool time to fill between keys, only the login is timed
+        String name = "key, pair prepared";
+        for (int round = -WARMUP; round < ROUNDS; ++round) {
+            long total = 0;
+            for (int i = 0; i < 50; ++i) {
+                LoginKeyGenerator.prepare();
+                Thread.sleep(20);
+                long start = System.nanoTime();
+                sink += LoginKeyGenerator.generateLoginKey(SEED, ACCOUNT, PASSWORD).length();
+                total += System.nanoTime() - start;
+            }   // end for
+            report(name, round, total, 50);
+        }   // end for
+
+        final String key = Baseline.truncateEncryptionKey(new BigInteger(128, new Random()).toString(16), 32);
+        final String data = ACCOUNT + "|" + SEED + "|" + PASSWORD;
+        run("encrypt, before", 20000, new Case() {
+            public void run() {
+                sink += Baseline.encrypt(key, data).length();
+            }
+        });
+        run("encrypt, after", 20000, new Case() {
+            public void run() {
+                sink += LoginKeyGenerator.encrypt(key, data).length();
+            }
+        });
+
+        System.out.println("(" + sink + ")");
+    }   // end main()
+
+    /** Runs a case {@code count} times per round */
+    private static void run(String name, int count, Case c) {
+        for (int round = -WARMUP; round < ROUNDS; ++round) {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; ++i) {
+                c.run();
+            }   // end for
+            report(name, round, System.nanoTime() - start, count);
+        }   // end for
+    }   // end run()
+
+    /** Prints the average of a round, warmup rounds are left out */
+    private static void report(String name, int round, long nanos, int count) {
+        if (round >= 0) {
+            System.out.println(String.format("%-20s round %d: %10.1f us/op", name, round, nanos / 1000.0 / count));
+        }   // end if
+    }   // end report()
+
+    private interface Case {
+        void run();
+    }   // end interface Case
+
+    /** The login key generation as it was before the key pair pool */
+    private static class Baseline {
+
+        private static final Random random = new Random();
+        private static final BigInteger P  = new BigInteger( "eca2e8c85d863dcdc26a429a71a9815ad052f6139669dd659f98ae159d313d13c6bf2838e10a69b6478b64a24bd054ba8248e8fa778703b418408249440b2c1edd28853e240d8a7e49540b76d120d3b1ad2878b1b99490eb4a2a5e84caa8a91cecbdb1aa7c816e8be343246f80c637abc653b893fd91686cf8d32d6cfe5f2a6f", 16 );
+        private static final BigInteger G1 = new BigInteger( "9c32cc23d559ca90fc31be72df817d0e124769e809f936bc14360ff4bed758f260a0d596584eacbbc2b88bdd410416163e11dbf62173393fbc0c6fefb2d855f1a03dec8e9f105bbad91b3437d8eb73fe2f44159597aa4053cf788d2f9d7012fb8d7c4ce3876f7d6cd5d0c31754f4cd96166708641958de54a6def5657b9f2e92", 16 );
+        private static final BigInteger G2 = new BigInteger( "5", 16 );
+
+        static String generateLoginKey(String serverSeed, String accountName, String password) {
+            String localSeed = "";
+            for (int i = 0; i < 16; ++i) {
+                localSeed += Integer.toHexString( random.nextInt(8) );
+            }   // end for
+
+            BigInteger bigLocalSeed = new BigInteger(localSeed, 16);
+            BigInteger bigDecryptionKey = G2.modPow(bigLocalSeed, P);
+            BigInteger bigEncyrptionKey = G1.modPow(bigLocalSeed, P);
+
+            String encryptionKey = truncateEncryptionKey(bigEncyrptionKey.toString(16), 32);
+            return bigDecryptionKey.toString(16) + "-" + encrypt(encryptionKey, accountName + "|" + serverSeed + "|" + password);
+        }   // end generateLoginKey()
+
+        static String truncateEncryptionKey(String key, int length) {
+            if (key.length() > length) {
+                return key.substring(0, length);
+            }   // end if
+            while (key.length() < length) {
+                key = "0" + key;
+            }   // end while
+            return key;
+        }   // end truncateEncryptionKey()
+
+        static String encrypt(String encryptionKey, String loginData) {
+            char[] prefix = new char[8];
+            for (int i = 0; i < prefix.length; ++i) {
+                prefix[i] = (char)random.nextInt(255);
+            }   // end for
+
+            int length = loginData.length();
+            String loginDataLength = new String(new char[] {
+                (char)(length >>> 24), (char)(length >>> 16 & 0xff), (char)(length >>> 8 & 0xff), (char)(length & 0xff)
+            });
+            String pad = "";
+            int padLength = 8 - (prefix.length + 4 + length) % 8;
+            if (padLength < 8) {
+                for (int i = 0; i < padLength; ++i) {
+                    pad += " ";
+                }   // end for
+            }   // end if
+
+            String unencrypted = new String(prefix) + loginDataLength + loginData + pad;
+            String encrypted   = "";
+
+            int[] encryptionKeyInts = Convert.hexStringToIntArray(encryptionKey);
+            int[] unencryptedInts   = Convert.stringToIntArray(unencrypted);
+
+            int[] oldBlock = { 0, 0 };
+            int[] newBlock = { 0, 0 };
+
+            for (int i = 0; i < unencryptedInts.length; i += 2) {
+                newBlock[0] = unencryptedInts[i];
+                newBlock[1] = unencryptedInts[i + 1];
+
+                if (i != 0) {
+                    newBlock[0] ^= oldBlock[0];
+                    newBlock[1] ^= oldBlock[1];
+                }   // end if
+
+                Tea.encrypt(newBlock, encryptionKeyInts);
+
+                oldBlock[0] = newBlock[0];
+                oldBlock[1] = newBlock[1];
+
+                encrypted += Convert.intArrayToHexString(newBlock);
+            }   // end for
+
+            return encrypted;
+        }   // end encrypt()
+    }   // end class Baseline
+}   // end class LoginKeyBench
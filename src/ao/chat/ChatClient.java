@@ -25,22 +25,38 @@ import ao.protocol.packets.Packet;
 import ao.protocol.packets.bi.*;
 import ao.protocol.packets.toclient.*;
 import ao.protocol.packets.toserver.*;
+import ao.protocol.packets.utils.FramePacketFactory;
 import ao.protocol.packets.utils.PacketFactory;
+import ao.protocol.packets.utils.PacketParser;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import ao.event.EventListenerList;
+import ao.misc.AOML;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
 
 public class ChatClient implements Client {
 
     //Base variables
     private PacketFactory m_packetFactory;
+    private FramePacketFactory m_frameFactory;
+    private final FramePool m_frames = new FramePool();
+    private volatile boolean[] m_subscribed = null;
+    private volatile PacketCapture m_capture = null;
+    //Typed packet handlers, indexed by packet type
+    private static final int HANDLER_TYPES = 256;
+    private volatile PacketListener[][] m_handlers = new PacketListener[HANDLER_TYPES][];
+    private final Object m_handlerLock = new Object();
     private Thread m_thread = null;
     private ClientState m_state = ClientState.DISCONNECTED;
     private int m_dimension = 0;
@@ -53,17 +69,25 @@ public class ChatClient implements Client {
     private DataInputStream m_in = null;
     private DataOutputStream m_out = null;
     private boolean timingout = false;
+    //Non-blocking connection, only used when a selector is given
+    private final ChatSelector m_selector;
+    private SocketChannel m_channel = null;
+    private long m_lastReceived = 0;
+    private long m_pingSent = 0;
+    private int m_pingTimeout = 60000;
+    private int m_handshakeTimeout = 60000;
     //Events
     private final EventListenerList m_listeners = new EventListenerList();
     // used for synchronization
     private final Object m_readLock = new Object();
     private final Object m_writeLock = new Object();
     private final Object m_stateLock = new Object();
-    private ArrayList<Object[]> lookupQueue = new ArrayList<Object[]>();
+    private final LookupResolver m_resolver = new LookupResolver(this, 30000, 300000);
     private PacketQueue packetQueue;
     //Chat related
     private CharacterIDTable chartable = new CharacterIDTable();
     private GroupTable grouptable = new GroupTable();
+    private boolean m_keepTables = false;
     //Tell information
     private int lastTellOut = -1;
     private int lastTellIn = -1;
@@ -113,12 +137,30 @@ public class ChatClient implements Client {
 
     /** Creates a new instance of ChatClient */
     public ChatClient(int pingDelay, PacketFactory packetFactory, boolean debug) {
+        this(pingDelay, packetFactory, debug, null);
+    }   // end ChatClient
+
+    /**
+     * Creates a new instance of ChatClient that is served by a shared
+     * {@link ChatSelector} once started instead of a thread of its own.
+     */
+    public ChatClient(ChatSelector selector) {
+        this(60000, new SimplePacketFactory(), false, selector);
+    }   // end ChatClient
+
+    /**
+     * Creates a new instance of ChatClient that is served by a shared
+     * {@link ChatSelector} once started instead of a thread of its own.
+     * If the selector is null the client uses a blocking socket and a thread.
+     */
+    public ChatClient(int pingDelay, PacketFactory packetFactory, boolean debug, ChatSelector selector) {
         m_pingDelay = pingDelay;
         m_packetFactory = packetFactory;
+        m_frameFactory = packetFactory instanceof FramePacketFactory ? (FramePacketFactory) packetFactory : null;
         m_debug = debug;
+        m_selector = selector;
         packetQueue = new PacketQueue(this);
-        Thread thread = new Thread(packetQueue);
-        thread.start();
+        addInternalHandlers();
     }   // end ChatClient
 
     public ClientState getState() {
@@ -131,6 +173,55 @@ public class ChatClient implements Client {
         return m_character;
     }
 
+    /** The packets the client needs for itself, they are always parsed */
+    private static final short[] INTERNAL_TYPES = {
+        LoginSeedPacket.TYPE, LoginOkPacket.TYPE, LoginErrorPacket.TYPE, CharacterListPacket.TYPE,
+        CharacterUpdatePacket.TYPE, CharacterLookupPacket.TYPE, PrivateMessagePacket.TYPE,
+        ChannelUpdatePacket.TYPE, PingPacket.TYPE
+    };
+
+    /**
+     * Limits the packets that are parsed and passed on to the listeners to the given types
+     * (plus the types the client needs internally). The payload of any other packet is
+     * skipped without being parsed.
+     *
+     * @param types
+     *        the packet types the listeners handle, or null to receive everything
+     */
+    public void setSubscribedTypes(short... types) {
+        if (types == null) {
+            m_subscribed = null;
+        } else {
+            boolean[] subscribed = new boolean[256];
+            for (short type : INTERNAL_TYPES) {
+                subscribed[type] = true;
+            }
+            for (short type : types) {
+                if (type >= 0 && type < subscribed.length) {
+                    subscribed[type] = true;
+                }
+            }
+            m_subscribed = subscribed;
+        }   // end else
+    }   // end setSubscribedTypes()
+
+    /**
+     * Records every frame read from or written to the server, before it is
+     * parsed, to a capture
+     *
+     * @param capture
+     *        the capture, or null to stop recording
+     */
+    public void setCapture(PacketCapture capture) {
+        m_capture = capture;
+    }   // end setCapture()
+
+    /** Returns whether packets of a type are parsed and passed on to the listeners */
+    public boolean isSubscribed(short type) {
+        boolean[] subscribed = m_subscribed;
+        return subscribed == null || type < 0 || type >= subscribed.length || subscribed[type];
+    }   // end isSubscribed()
+
     public Packet nextPacket() throws IOException {
         synchronized (m_readLock) {
             if (m_state == ClientState.DISCONNECTED) {
@@ -141,11 +232,38 @@ public class ChatClient implements Client {
                 try {
                     // Read and parse a packet from the input stream
                     short type = m_in.readShort();
-                    short length = m_in.readShort();
-                    byte[] data = new byte[length];
-                    m_in.readFully(data);
+                    int length = m_in.readShort() & 0xFFFF;
+                    Packet packet;
+
+                    // Skip the packets nobody listens to without parsing them
+                    while (!isSubscribed(type)) {
+                        while (length > 0) {
+                            int skipped = m_in.skipBytes(length);
+                            if (skipped <= 0) {
+                                throw new EOFException();
+                            }
+                            length -= skipped;
+                        }
+                        type = m_in.readShort();
+                        length = m_in.readShort() & 0xFFFF;
+                    }
 
-                    Packet packet = m_packetFactory.toPacket(type, data);
+                    if (m_frameFactory != null) {
+                        // Parsed packets never keep the frame, so it can go straight back
+                        ByteBuffer frame = m_frames.acquire(length);
+                        try {
+                            m_in.readFully(frame.array(), frame.arrayOffset(), length);
+                            captured(Packet.Direction.TO_CLIENT, type, frame);
+                            packet = m_frameFactory.toPacket(type, frame);
+                        } finally {
+                            m_frames.release(frame);
+                        }
+                    } else {
+                        byte[] data = new byte[length];
+                        m_in.readFully(data);
+                        captured(Packet.Direction.TO_CLIENT, type, ByteBuffer.wrap(data));
+                        packet = m_packetFactory.toPacket(type, data);
+                    }
 
                     // DEBUG: display that a packet was recieved
                     if (m_debug) {
@@ -203,24 +321,81 @@ public class ChatClient implements Client {
     }   // end nextPacket()
 
     public void sendPacket(Packet packet) throws IOException {
+        sendPacket(packet, PacketQueue.laneOf(packet));
+    }   // end sendPacket()
+
+    /**
+     * Sends a packet through a lane of the flood queue
+     *
+     * @param lane
+     *        the lane to use, or null to send the packet right away
+     */
+    public void sendPacket(Packet packet, PacketQueue.Lane lane) throws IOException {
+        if (m_state == ClientState.DISCONNECTED) {
+            throw new ClientStateException(
+                    "This bot is not currently connected to a server. It must be connected before packets can be sent.",
+                    m_state, ClientState.CONNECTED);
+        } else if (lane != null && !packetQueue.canSend(lane)) {
+            packetQueue.add(packet, lane);
+        } else {
+            writePacket(packet);
+        }   // end else
+    }   // end sendPacket()
+
+    /**
+     * Sends several packets in order through a lane of the flood queue,
+     * whatever does not fit in the lane's bucket is queued as one batch
+     *
+     * @param lane
+     *        the lane to use, or null to send the packets right away
+     */
+    public void sendPackets(List<? extends Packet> packets, PacketQueue.Lane lane) throws IOException {
+        if (m_state == ClientState.DISCONNECTED) {
+            throw new ClientStateException(
+                    "This bot is not currently connected to a server. It must be connected before packets can be sent.",
+                    m_state, ClientState.CONNECTED);
+        }   // end if
+
+        int sent = 0;
+        while (sent < packets.size() && (lane == null || packetQueue.canSend(lane))) {
+            writePacket(packets.get(sent++));
+        }   // end while
+        if (sent < packets.size()) {
+            packetQueue.addAll(packets.subList(sent, packets.size()), lane);
+        }   // end if
+    }   // end sendPackets()
+
+    /** Returns the queue that keeps outgoing packets under the flood limits */
+    public PacketQueue getPacketQueue() {
+        return packetQueue;
+    }   // end getPacketQueue()
+
+    /** Writes a packet to the server without going through the flood queue */
+    void writePacket(Packet packet) throws IOException {
         synchronized (m_writeLock) {
             if (m_state == ClientState.DISCONNECTED) {
                 throw new ClientStateException(
                         "This bot is not currently connected to a server. It must be connected before packets can be sent.",
                         m_state, ClientState.CONNECTED);
-            } else if (packet instanceof PrivateMessagePacket && !packetQueue.canSend()) {
-                packetQueue.add(packet);
-            } else if (packet instanceof ChannelMessagePacket && !packetQueue.canSend()) {
-                packetQueue.add(packet);
             } else {
                 try {
                     short type = packet.getType();
                     byte[] data = packet.getData();
-
-                    m_out.writeShort(type);
-                    m_out.writeShort(data.length);
-                    m_out.write(data, 0, data.length);
-                    m_out.flush();
+                    captured(Packet.Direction.TO_SERVER, type, ByteBuffer.wrap(data));
+
+                    if (m_channel != null && !m_channel.isBlocking()) {
+                        ByteBuffer frame = ByteBuffer.allocate(4 + data.length);
+                        frame.putShort(type);
+                        frame.putShort((short) data.length);
+                        frame.put(data);
+                        frame.flip();
+                        m_selector.send(this, frame);
+                    } else {
+                        m_out.writeShort(type);
+                        m_out.writeShort(data.length);
+                        m_out.write(data, 0, data.length);
+                        m_out.flush();
+                    }   // end else
 
                     // DEBUG: display that a packet was sent
                     if (m_debug) {
@@ -237,7 +412,7 @@ public class ChatClient implements Client {
                 }   // end catch
             }   // end else
         }   // end synchronized 
-    }   // end sendPacket()
+    }   // end writePacket()
 
     public void connect(int dimension) throws IOException {
         connect(DimensionAddress.values()[dimension - 1]);
@@ -259,17 +434,27 @@ public class ChatClient implements Client {
                         m_state, ClientState.DISCONNECTED);
             } else {
                 try {
+                    // The login key is needed once the server sends its seed, start on it now
+                    LoginKeyGenerator.prepare();
                     m_dimension = 0;
                     for (DimensionAddress d : DimensionAddress.values()) {
                         if (d.getURL().compareTo(server) == 0) {
                             m_dimension = d.getID();
                         }
                     }
-                    m_socket = new Socket(server, port);
+                    if (m_selector != null) {
+                        // Blocking until started, the handshake reads through the socket streams
+                        m_channel = SocketChannel.open();
+                        m_socket = m_channel.socket();
+                    } else {
+                        m_socket = new Socket();
+                    }   // end else
+                    m_socket.connect(new InetSocketAddress(server, port), getHandshakeReadTimeout());
                     m_in = new DataInputStream(m_socket.getInputStream());
                     m_out = new DataOutputStream(m_socket.getOutputStream());
 
-                    m_socket.setSoTimeout(m_pingDelay);
+                    // The ping delay takes over once logged in, see login()
+                    m_socket.setSoTimeout(getHandshakeReadTimeout());
 
                     m_state = ClientState.CONNECTED;
 
@@ -346,6 +531,7 @@ public class ChatClient implements Client {
 
                     packet = nextPacket();
                     if (packet instanceof LoginOkPacket) {
+                        m_socket.setSoTimeout(m_pingDelay);
                         m_state = ClientState.LOGGED_IN;
                         m_character = character;
 
@@ -376,6 +562,10 @@ public class ChatClient implements Client {
                     if (m_thread != null) {
                         stopThread();//m_thread.stop();
                     }
+                    if (m_channel != null) {
+                        m_selector.unregister(this);
+                        m_channel = null;
+                    }
                     m_socket.close();
                     m_in.close();
                     m_out.close();
@@ -390,8 +580,11 @@ public class ChatClient implements Client {
 
                 m_loginSeed = null;
                 m_character = null;
-                chartable.reset();
-                grouptable.reset();
+                if (!m_keepTables) {
+                    chartable.reset();
+                    grouptable.reset();
+                }   // end if
+                m_resolver.reset();
 
                 m_state = ClientState.DISCONNECTED;
 
@@ -418,7 +611,20 @@ public class ChatClient implements Client {
                         "This bot is not currently logged in, it must be logged in before it can be started.",
                         m_state, ClientState.LOGGED_IN);
             } else {
-                if (m_thread == null || !m_thread.isAlive()) {
+                if (m_channel != null) {
+                    if (m_channel.isBlocking()) {
+                        try {
+                            m_channel.configureBlocking(false);
+                        } catch (IOException ex) {
+                            connectionLost(ex);
+                            return;
+                        }   // end catch
+                        m_lastReceived = System.currentTimeMillis();
+                        m_selector.register(this, m_channel);
+                        println("Started");
+                        fireStarted();
+                    }   // end if
+                } else if (m_thread == null || !m_thread.isAlive()) {
                     m_thread = new Thread(this);
                     m_thread.start();
                     println("Started");
@@ -445,36 +651,8 @@ public class ChatClient implements Client {
         while (getState() == ClientState.LOGGED_IN) {
             try {
                 Packet packet = nextPacket();
-                if (packet instanceof PingPacket) {
-                    PingPacket ping = (PingPacket) packet;
-                    if (ping.getDirection() == Packet.Direction.TO_CLIENT) {
-                        timingout = false;
-                    }
-                } else if (packet instanceof CharacterUpdatePacket) {
-                    CharacterUpdatePacket namePacket = (CharacterUpdatePacket) packet;
-                    chartable.add(namePacket.getCharacterID(), namePacket.getCharacterName());
-                } else if (packet instanceof CharacterLookupPacket) {
-                    CharacterLookupPacket lookPacket = (CharacterLookupPacket) packet;
-                    chartable.add(lookPacket.getCharacterID(), lookPacket.getCharacterName());
-                    searchQueue(chartable.getID(lookPacket.getCharacterName()), lookPacket.getCharacterName());
-                    if (lookPacket.getCharacterID() == -1) {
-                        println("Character " + lookPacket.getCharacterName() + " does not exist");
-                    }
-                } else if (packet instanceof ChannelUpdatePacket) {
-                    ChannelUpdatePacket updatePacket = (ChannelUpdatePacket) packet;
-                    grouptable.add(updatePacket.getGroupID(), updatePacket.getGroupName());
-                    if (updatePacket.getGroupID()[0] == 0x03) {
-                        orgName = updatePacket.getGroupName();
-                        orgID = updatePacket.getGroupID();
-                    }
-                } else if (packet instanceof PrivateMessagePacket) {
-                    PrivateMessagePacket msgPacket = (PrivateMessagePacket) packet;
-                    lastTellIn = msgPacket.getCharID();
-                }
-                firePacket(packet);
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException ex) {
+                if (packet != null) {
+                    firePacket(packet);
                 }
             } catch (Exception e) {
                 fireException(e);
@@ -483,58 +661,241 @@ public class ChatClient implements Client {
     }
 
     /**
-     * Actions
+     * Called by the {@link ChatSelector} thread with every frame read
+     * from the non-blocking channel. The frame is only valid during the call.
      */
-    private synchronized void enQueue(Queue type, String name, String msg) {
-        Object[] temp = new Object[3];
-        temp[0] = type;
-        temp[1] = name;
-        temp[2] = msg;
-        lookupQueue.add(temp);
-    }
+    void received(short type, ByteBuffer frame) {
+        m_lastReceived = System.currentTimeMillis();
+        timingout = false;
+        captured(Packet.Direction.TO_CLIENT, type, frame);
+        if (!isSubscribed(type)) {
+            return;
+        }
+        try {
+            Packet packet;
+            if (m_frameFactory != null) {
+                packet = m_frameFactory.toPacket(type, frame);
+            } else {
+                packet = m_packetFactory.toPacket(type, PacketParser.toArray(frame));
+            }
+
+            // DEBUG: display that a packet was recieved
+            if (m_debug) {
+                System.out.println("IN: " + packet);
+            }
+
+            firePacket(packet);
+        } catch (Exception e) {
+            fireException(e);
+        }
+    }   // end received()
+
+    /** Hands a frame to the capture, if there is one */
+    private void captured(Packet.Direction direction, short type, ByteBuffer payload) {
+        PacketCapture capture = m_capture;
+        if (capture != null) {
+            capture.frame(direction, type, payload);
+        }
+    }   // end captured()
 
     /**
-     * Searches the lookup queue for a match
-     * @param id
-     * @param name
-     * @throws CharNotFoundException 
+     * Called by the {@link ChatSelector} thread about once a second, pings
+     * the server when the connection has been quiet for the ping delay and
+     * disconnects if no answer arrives within another ping delay.
      */
-    private synchronized void searchQueue(int id, String name) {
-        for (int i = 0; i < lookupQueue.size(); i++) {
-            Object[] current = lookupQueue.get(i);
-            Queue type = (Queue) current[0];
-            String lname = (String) current[1];
-            String msg = (String) current[2];
-            if (id != -1 && lname.compareTo(name) == 0) {//Verify that the name is valid
+    void idle(long now) {
+        if (getState() != ClientState.LOGGED_IN || m_pingDelay <= 0) {
+            return;
+        }
+        if (!timingout) {
+            if (now - m_lastReceived >= m_pingDelay) {
+                timingout = true;
+                m_pingSent = now;
                 try {
-                    switch (type) {
-                        case TELL:
-                            sendTell(lname, msg, false);
-                            break;
-                        case FADD:
-                            addFriend(lname, false);
-                            break;
-                        case FREM:
-                            removeFriend(lname, false);
-                            break;
-                        case FDEL:
-                            deleteFriend(lname, false);
-                            break;
-                        case INVITE:
-                            inviteUser(lname, false);
-                            break;
-                        case KICK:
-                            kickUser(lname, false);
-                            break;
-                        default:
-                            System.out.println("Error: invalid lookup in queue");
-                            break;
-                    }
-                } catch (Exception e) {
-                    fireException(e);
+                    sendPacket(new PingPacket("Java AOChat API ping", Packet.Direction.TO_SERVER));
+                } catch (IOException ex) {
+                    connectionLost(ex);
+                }
+            }
+        } else if (now - m_pingSent >= m_pingDelay) {
+            connectionLost(null);
+        }
+    }   // end idle()
+
+    /**
+     * Pings the server now, for keepalives that are driven from outside the
+     * client (an alarm for example). If the previous ping has gone unanswered
+     * for longer than the ping timeout the connection is considered lost and
+     * the client disconnects, a ping that is still within it is left to arrive.
+     */
+    public void ping() throws IOException {
+        if (getState() != ClientState.LOGGED_IN) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (timingout) {
+            if (now - m_pingSent > m_pingTimeout) {
+                connectionLost(null);
+            }   // end if
+            return;
+        }   // end if
+        timingout = true;
+        m_pingSent = now;
+        sendPacket(new PingPacket("Java AOChat API ping", Packet.Direction.TO_SERVER));
+    }   // end ping()
+
+    /** Returns how long (ms) {@link #ping()} waits for an answer before the connection is considered lost */
+    public int getPingTimeout() {
+        return m_pingTimeout;
+    }   // end getPingTimeout()
+
+    /** Sets how long (ms) {@link #ping()} waits for an answer before the connection is considered lost */
+    public void setPingTimeout(int pingTimeout) {
+        m_pingTimeout = Math.max(0, pingTimeout);
+    }   // end setPingTimeout()
+
+    /** Returns how long (ms) the connection may be quiet before the client pings the server */
+    public int getPingDelay() {
+        return m_pingDelay;
+    }   // end getPingDelay()
+
+    /**
+     * Sets how long (ms) the connection may be quiet before the client pings
+     * the server. With a delay of 0 the client never pings on its own and
+     * reads block until data arrives once logged in, keepalives are then up
+     * to {@link #ping()}. Until then the handshake timeout applies.
+     */
+    public void setPingDelay(int pingDelay) throws SocketException {
+        m_pingDelay = Math.max(0, pingDelay);
+        Socket socket = m_socket;
+        if (socket != null && m_state == ClientState.LOGGED_IN) {
+            socket.setSoTimeout(m_pingDelay);
+        }   // end if
+    }   // end setPingDelay()
+
+    /** Returns how long (ms) connecting and each read of the handshake may take when there is no ping delay */
+    public int getHandshakeTimeout() {
+        return m_handshakeTimeout;
+    }   // end getHandshakeTimeout()
+
+    /**
+     * Sets how long (ms) connecting and each read of the handshake may take
+     * when there is no ping delay, so a server that stalls before the client
+     * is logged in cannot keep it (and its state lock) waiting forever
+     */
+    public void setHandshakeTimeout(int handshakeTimeout) {
+        m_handshakeTimeout = Math.max(1, handshakeTimeout);
+    }   // end setHandshakeTimeout()
+
+    /** Returns the read timeout until logged in, never 0 */
+    private int getHandshakeReadTimeout() {
+        return m_pingDelay > 0 ? m_pingDelay : m_handshakeTimeout;
+    }   // end getHandshakeReadTimeout()
+
+    /** Called by the {@link ChatSelector} thread when the channel fails */
+    void connectionLost(IOException ex) {
+        if (getState() != ClientState.DISCONNECTED) {
+            println("Connection Lost...");
+            try {
+                disconnect();
+            } catch (IOException e) {
+                fireException(e);
+            }
+            if (ex != null) {
+                fireException(ex);
+            }
+        }
+    }   // end connectionLost()
+
+    /** Registers the handlers that keep the client's own tables up to date */
+    private void addInternalHandlers() {
+        addPacketListener(PingPacket.TYPE, new PacketListener() {
+
+            public void packet(Client bot, Packet packet) {
+                if (packet.getDirection() == Packet.Direction.TO_CLIENT) {
+                    timingout = false;
+                }
+            }
+        });
+        addPacketListener(CharacterUpdatePacket.TYPE, new PacketListener() {
+
+            public void packet(Client bot, Packet packet) {
+                CharacterUpdatePacket namePacket = (CharacterUpdatePacket) packet;
+                chartable.add(namePacket.getCharacterID(), namePacket.getCharacterName());
+            }
+        });
+        addPacketListener(CharacterLookupPacket.TYPE, new PacketListener() {
+
+            public void packet(Client bot, Packet packet) {
+                CharacterLookupPacket lookPacket = (CharacterLookupPacket) packet;
+                chartable.add(lookPacket.getCharacterID(), lookPacket.getCharacterName());
+                m_resolver.received(lookPacket.getCharacterID(), lookPacket.getCharacterName());
+                if (lookPacket.getCharacterID() == -1) {
+                    println("Character " + lookPacket.getCharacterName() + " does not exist");
+                }
+            }
+        });
+        addPacketListener(ChannelUpdatePacket.TYPE, new PacketListener() {
+
+            public void packet(Client bot, Packet packet) {
+                ChannelUpdatePacket updatePacket = (ChannelUpdatePacket) packet;
+                grouptable.add(updatePacket.getGroupID(), updatePacket.getGroupName());
+                if (updatePacket.getGroupID()[0] == 0x03) {
+                    orgName = updatePacket.getGroupName();
+                    orgID = updatePacket.getGroupID();
+                }
+            }
+        });
+        addPacketListener(PrivateMessagePacket.TYPE, new PacketListener() {
+
+            public void packet(Client bot, Packet packet) {
+                if (packet.getDirection() == Packet.Direction.TO_CLIENT) {
+                    lastTellIn = ((PrivateMessagePacket) packet).getCharID();
+                }
+            }
+        });
+    }   // end addInternalHandlers()
+
+    /**
+     * An action waiting for a name to be resolved
+     */
+    private class QueuedAction implements LookupResolver.Callback {
+
+        private final Queue type;
+        private final String msg;
+
+        public QueuedAction(Queue type, String msg) {
+            this.type = type;
+            this.msg = msg;
+        }
+
+        public void resolved(String name, int id) {
+            try {
+                switch (type) {
+                    case TELL:
+                        sendTell(id, msg);
+                        break;
+                    case FADD:
+                        addFriend(name, false);
+                        break;
+                    case FREM:
+                        removeFriend(name, false);
+                        break;
+                    case FDEL:
+                        deleteFriend(name, false);
+                        break;
+                    case INVITE:
+                        inviteUser(id);
+                        break;
+                    case KICK:
+                        kickUser(id);
+                        break;
+                    default:
+                        System.out.println("Error: invalid lookup in queue");
+                        break;
                 }
-                lookupQueue.remove(i);
-                i--;
+            } catch (Exception e) {
+                fireException(e);
             }
         }
     }
@@ -553,15 +914,19 @@ public class ChatClient implements Client {
                         "This bot is not currently logged in, it must be logged in before it can send messages.",
                         m_state, ClientState.LOGGED_IN);
             } else if (msg.compareTo("") != 0) {
-                Packet packet = new ChannelMessagePacket(channel, msg);
-                sendPacket(packet);
+                List<Packet> packets = new ArrayList<Packet>();
+                for (String page : AOML.paginate(msg, AOML.MAX_MESSAGE)) {
+                    packets.add(new ChannelMessagePacket(channel, page));
+                }
+                sendPackets(packets, PacketQueue.Lane.INTERACTIVE);
             }
         }
     }
 
     public void sendPrivateChannelMessage(String channel, String msg) throws IOException {
-        if (chartable.getID(channel) != null && chartable.getID(channel) != -1) {
-            sendPrivateChannelMessage(chartable.getID(channel), msg);
+        int id = chartable.getID(channel, -1);
+        if (id != -1) {
+            sendPrivateChannelMessage(id, msg);
         }
     }
 
@@ -572,8 +937,11 @@ public class ChatClient implements Client {
                         "This bot is not currently logged in, it must be logged in before it can send messages.",
                         m_state, ClientState.LOGGED_IN);
             } else if (msg.compareTo("") != 0) {
-                Packet packet = new PrivateChannelMessagePacket(channel, msg);
-                sendPacket(packet);
+                List<Packet> packets = new ArrayList<Packet>();
+                for (String page : AOML.paginate(msg, AOML.MAX_MESSAGE)) {
+                    packets.add(new PrivateChannelMessagePacket(channel, page));
+                }
+                sendPackets(packets, null);
             }
         }
     }
@@ -585,22 +953,39 @@ public class ChatClient implements Client {
                         "This bot is not currently logged in, it must be logged in before it can perform a lookup.",
                         m_state, ClientState.LOGGED_IN);
             } else {
-                Packet packet = new CharacterLookupPacket(name);
-                sendPacket(packet);
+                m_resolver.resolve(name);
             }
         }
     }
 
-    public void sendTell(String name, String msg, boolean lookup) throws IOException {
-        int id = -1;
-        if (chartable.getID(name) != null) {
-            id = chartable.getID(name);
+    /**
+     * Resolves a character name to its ID, concurrent lookups of the same name
+     * share a single request to the server
+     *
+     * @return the ID, or {@link CharacterIDTable#UNKNOWN} if the character does not exist
+     */
+    public Future<Integer> resolve(String name) throws IOException {
+        synchronized (m_stateLock) {
+            if (m_state != ClientState.LOGGED_IN) {
+                throw new ClientStateException(
+                        "This bot is not currently logged in, it must be logged in before it can perform a lookup.",
+                        m_state, ClientState.LOGGED_IN);
+            }
         }
+        return m_resolver.resolve(name);
+    }
+
+    /** Returns the resolver that looks up character names for this client */
+    public LookupResolver getResolver() {
+        return m_resolver;
+    }
+
+    public void sendTell(String name, String msg, boolean lookup) throws IOException {
+        int id = chartable.getID(name, -1);
         if (id != -1) {
             sendTell(id, msg);
         } else if (lookup) {
-            enQueue(Queue.TELL, name, msg);
-            lookup(name);
+            m_resolver.resolve(name, new QueuedAction(Queue.TELL, msg));
         }
     }
 
@@ -613,9 +998,14 @@ public class ChatClient implements Client {
             } else if (id == -1) {
                 throw new CharNotFoundException("Could not send tell to character", id);
             } else if (msg.compareTo("") != 0) {
-                Packet packet = new PrivateMessagePacket(id, msg);
-                sendPacket(packet);
-                firePacket(packet);
+                List<Packet> packets = new ArrayList<Packet>();
+                for (String page : AOML.paginate(msg, AOML.MAX_MESSAGE)) {
+                    packets.add(new PrivateMessagePacket(id, page));
+                }
+                sendPackets(packets, PacketQueue.Lane.INTERACTIVE);
+                for (Packet packet : packets) {
+                    firePacket(packet);
+                }
                 lastTellOut = id;
             }
         }
@@ -628,8 +1018,9 @@ public class ChatClient implements Client {
                         "This bot is not currently logged in, it must be logged in before it can send messages.",
                         m_state, ClientState.LOGGED_IN);
             } else {
-                if (chartable.getID(channel) != null && chartable.getID(channel) != -1) {
-                    Packet packet = new PrivateChannelAcceptPacket(chartable.getID(channel));
+                int id = chartable.getID(channel, -1);
+                if (id != -1) {
+                    Packet packet = new PrivateChannelAcceptPacket(id);
                     sendPacket(packet);
                 }
             }
@@ -656,8 +1047,9 @@ public class ChatClient implements Client {
                         "This bot is not currently logged in, it must be logged in before it can send messages.",
                         m_state, ClientState.LOGGED_IN);
             } else {
-                if (chartable.getID(channel) != null && chartable.getID(channel) != -1) {
-                    Packet packet = new PrivateChannelLeavePacket(chartable.getID(channel));
+                int id = chartable.getID(channel, -1);
+                if (id != -1) {
+                    Packet packet = new PrivateChannelLeavePacket(id);
                     sendPacket(packet);
                 }
             }
@@ -684,18 +1076,12 @@ public class ChatClient implements Client {
                         "This bot is not currently logged in, it must be logged in before you can add a friend.",
                         m_state, ClientState.LOGGED_IN);
             } else {
-                int id = -1;
-                if (chartable.getID(name) != null) {
-                    id = chartable.getID(name);
-                }
+                int id = chartable.getID(name, -1);
                 if (id != -1) {
                     Packet packet = new FriendUpdatePacket(id, true);
                     sendPacket(packet);
                 } else if (lookup) {
-                    Packet packet = new CharacterLookupPacket(name);
-                    //Add to friend update queue
-                    enQueue(Queue.FADD, name, "");
-                    sendPacket(packet);
+                    m_resolver.resolve(name, new QueuedAction(Queue.FADD, ""));
                 }
             }
         }
@@ -708,18 +1094,12 @@ public class ChatClient implements Client {
                         "This bot is not currently logged in, it must be logged in before you can remove a friend.",
                         m_state, ClientState.LOGGED_IN);
             } else {
-                int id = -1;
-                if (chartable.getID(name) != null) {
-                    id = chartable.getID(name);
-                }
+                int id = chartable.getID(name, -1);
                 if (id != -1) {
                     Packet packet = new FriendUpdatePacket(id, false);
                     sendPacket(packet);
                 } else if (lookup) {
-                    Packet packet = new CharacterLookupPacket(name);
-                    //Add to friend update queue
-                    enQueue(Queue.FREM, name, "");
-                    sendPacket(packet);
+                    m_resolver.resolve(name, new QueuedAction(Queue.FREM, ""));
                 }
             }
         }
@@ -732,18 +1112,12 @@ public class ChatClient implements Client {
                         "This bot is not currently logged in, it must be logged in before it can delete a friend.",
                         m_state, ClientState.LOGGED_IN);
             } else {
-                int id = -1;
-                if (chartable.getID(name) != null) {
-                    id = chartable.getID(name);
-                }
+                int id = chartable.getID(name, -1);
                 if (id != -1) {
                     Packet packet = new FriendRemovePacket(id);
                     sendPacket(packet);
                 } else if (lookup) {
-                    Packet packet = new CharacterLookupPacket(name);
-                    //Add to friend remove queue
-                    enQueue(Queue.FDEL, name, "");
-                    sendPacket(packet);
+                    m_resolver.resolve(name, new QueuedAction(Queue.FDEL, ""));
                 }
             }
         }
@@ -769,19 +1143,13 @@ public class ChatClient implements Client {
                         "This bot is not currently logged in, it must be logged in before it can send tells.",
                         m_state, ClientState.LOGGED_IN);
             } else {
-                int id = -1;
-                if (chartable.getID(name) != null) {
-                    id = chartable.getID(name);
-                }
+                int id = chartable.getID(name, -1);
                 if (id != -1) {
                     Packet packet = new PrivateChannelInvitePacket(id);
                     sendPacket(packet);
                     firePacket(packet);
                 } else if (lookup) {
-                    Packet packet = new CharacterLookupPacket(name);
-                    //Add to group invite queue
-                    enQueue(Queue.INVITE, name, "");
-                    sendPacket(packet);
+                    m_resolver.resolve(name, new QueuedAction(Queue.INVITE, ""));
                 }
             }
         }
@@ -808,19 +1176,13 @@ public class ChatClient implements Client {
                         "This bot is not currently logged in, it must be logged in before it can send tells.",
                         m_state, ClientState.LOGGED_IN);
             } else {
-                int id = -1;
-                if (chartable.getID(name) != null) {
-                    id = chartable.getID(name);
-                }
+                int id = chartable.getID(name, -1);
                 if (id != -1) {
                     Packet packet = new PrivateChannelKickPacket(id);
                     sendPacket(packet);
                     firePacket(packet);
                 } else if (lookup) {
-                    Packet packet = new CharacterLookupPacket(name);
-                    //Add to group kick queue
-                    enQueue(Queue.KICK, name, "");
-                    sendPacket(packet);
+                    m_resolver.resolve(name, new QueuedAction(Queue.KICK, ""));
                 }
             }
         }
@@ -855,8 +1217,9 @@ public class ChatClient implements Client {
     }
 
     public void acceptInvite(String channel) throws IOException {
-        if (chartable.getID(channel) != null && chartable.getID(channel) != -1) {
-            acceptInvite(chartable.getID(channel));
+        int id = chartable.getID(channel, -1);
+        if (id != -1) {
+            acceptInvite(id);
         }
     }
 
@@ -876,8 +1239,9 @@ public class ChatClient implements Client {
     }
 
     public void denyInvite(String channel) throws IOException {
-        if (chartable.getID(channel) != null && chartable.getID(channel) != -1) {
-            denyInvite(chartable.getID(channel));
+        int id = chartable.getID(channel, -1);
+        if (id != -1) {
+            denyInvite(id);
         }
     }
 
@@ -904,6 +1268,18 @@ public class ChatClient implements Client {
         return grouptable;
     }
 
+    /**
+     * Keeps the character and group tables when disconnecting, so a client
+     * that reconnects to the same dimension does not have to learn them again
+     */
+    public void setKeepTables(boolean keep) {
+        m_keepTables = keep;
+    }
+
+    public boolean getKeepTables() {
+        return m_keepTables;
+    }
+
     public int getLastTellIn() {
         return lastTellIn;
     }
@@ -943,12 +1319,67 @@ public class ChatClient implements Client {
         m_listeners.remove(PacketListener.class, l);
     }   // end removeListener()
 
+    /**
+     * Adds a listener that is only called for packets of one type. Typed listeners
+     * are looked up by type in constant time and called before the listeners
+     * that receive every packet.
+     *
+     * @param type
+     *        the packet type, between 0 and 255
+     * @throws IllegalArgumentException
+     *         if the type is out of range
+     */
+    public void addPacketListener(short type, PacketListener l) {
+        if (type < 0 || type >= HANDLER_TYPES) {
+            throw new IllegalArgumentException("Packet type " + type + " can not have typed listeners");
+        }
+        synchronized (m_handlerLock) {
+            PacketListener[][] handlers = m_handlers.clone();
+            PacketListener[] current = handlers[type];
+            int length = (current == null ? 0 : current.length);
+            PacketListener[] updated = new PacketListener[length + 1];
+            if (current != null) {
+                System.arraycopy(current, 0, updated, 0, length);
+            }
+            updated[length] = l;
+            handlers[type] = updated;
+            m_handlers = handlers;
+        }   // end synchronized
+    }   // end addPacketListener()
+
+    public void removePacketListener(short type, PacketListener l) {
+        if (type < 0 || type >= HANDLER_TYPES) {
+            return;
+        }
+        synchronized (m_handlerLock) {
+            PacketListener[] current = m_handlers[type];
+            if (current == null) {
+                return;
+            }
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == l) {
+                    PacketListener[][] handlers = m_handlers.clone();
+                    if (current.length == 1) {
+                        handlers[type] = null;
+                    } else {
+                        PacketListener[] updated = new PacketListener[current.length - 1];
+                        System.arraycopy(current, 0, updated, 0, i);
+                        System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                        handlers[type] = updated;
+                    }
+                    m_handlers = handlers;
+                    return;
+                }
+            }   // end for
+        }   // end synchronized
+    }   // end removePacketListener()
+
     /** 
      * Fires a connected event to all listeners 
      * @see ao.protocol.ClientListener#connected(ao.protocol.Client)
      */
     protected void fireConnected() {
-        ClientListener[] listeners = m_listeners.getListeners(ClientListener.class);
+        ClientListener[] listeners = m_listeners.getSnapshot(ClientListener.class);
         for (ClientListener l : listeners) {
             l.connected(this);
         }   // end for
@@ -959,7 +1390,7 @@ public class ChatClient implements Client {
      * @see ao.protocol.ClientListener#authenticated(ao.protocol.Client)
      */
     protected void fireAuthenticated() {
-        ClientListener[] listeners = m_listeners.getListeners(ClientListener.class);
+        ClientListener[] listeners = m_listeners.getSnapshot(ClientListener.class);
         for (ClientListener l : listeners) {
             l.authenticated(this);
         }   // end for
@@ -970,7 +1401,7 @@ public class ChatClient implements Client {
      * @see ao.protocol.ClientListener#loggedIn(ao.protocol.Client)
      */
     protected void fireLoggedIn() {
-        ClientListener[] listeners = m_listeners.getListeners(ClientListener.class);
+        ClientListener[] listeners = m_listeners.getSnapshot(ClientListener.class);
         for (ClientListener l : listeners) {
             l.loggedIn(this);
         }   // end for
@@ -981,7 +1412,7 @@ public class ChatClient implements Client {
      * @see ao.protocol.ClientListener#started(ao.protocol.Client)
      */
     protected void fireStarted() {
-        ClientListener[] listeners = m_listeners.getListeners(ClientListener.class);
+        ClientListener[] listeners = m_listeners.getSnapshot(ClientListener.class);
         for (ClientListener l : listeners) {
             l.started(this);
         }   // end for
@@ -992,25 +1423,36 @@ public class ChatClient implements Client {
      * @see ao.protocol.ClientListener#disconnected(ao.protocol.Client)
      */
     protected void fireDisconnected() {
-        ClientListener[] listeners = m_listeners.getListeners(ClientListener.class);
+        ClientListener[] listeners = m_listeners.getSnapshot(ClientListener.class);
         for (ClientListener l : listeners) {
             l.disconnected(this);
         }   // end for
     }   // end fireDisconnected()
 
     protected void firePacket(Packet packet) {
-        ClientListener[] listeners = m_listeners.getListeners(ClientListener.class);
+        if (packet != null) {
+            short type = packet.getType();
+            if (type >= 0 && type < HANDLER_TYPES) {
+                PacketListener[] handlers = m_handlers[type];
+                if (handlers != null) {
+                    for (PacketListener l : handlers) {
+                        l.packet(this, packet);
+                    }   // end for
+                }
+            }
+        }
+        ClientListener[] listeners = m_listeners.getSnapshot(ClientListener.class);
         for (ClientListener l : listeners) {
             l.packet(this, packet);
         }   // end for
-        PacketListener[] plisteners = m_listeners.getListeners(PacketListener.class);
+        PacketListener[] plisteners = m_listeners.getSnapshot(PacketListener.class);
         for (PacketListener l : plisteners) {
             l.packet(this, packet);
         }   // end for
     }
 
     protected void fireException(Exception e) {
-        ClientListener[] listeners = m_listeners.getListeners(ClientListener.class);
+        ClientListener[] listeners = m_listeners.getSnapshot(ClientListener.class);
         for (ClientListener l : listeners) {
             l.exception(this, e);
         }   // end for
@@ -1032,7 +1474,7 @@ public class ChatClient implements Client {
      * @see ao.protocol.ClientLogger#print(ao.protocol.Client, String)
      */
     protected void println(String msg) {
-        ClientLogger[] listeners = m_listeners.getListeners(ClientLogger.class);
+        ClientLogger[] listeners = m_listeners.getSnapshot(ClientLogger.class);
         for (ClientLogger l : listeners) {
             l.print(this, msg);
         }   // end for
@@ -0,0 +1,276 @@
+/*
+ * ChatSelector.java
+ *
+ *************************************************************************
+ * Copyright 2026 The AnarchyTalk contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ao.chat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * ChatSelector multiplexes the sockets of many {@link ChatClient}s on a
+ * single I/O thread. A client created with a selector performs its
+ * connect/authenticate/login handshake as usual, and once {@link ChatClient#start()}
+ * is called its channel is switched to non-blocking mode and handed over
+ * to the selector instead of getting a reader thread of its own.
+ *
+ * <p>Packets are framed and parsed straight out of a per-session {@link ByteBuffer} and
+ * delivered to the client's listeners on the selector thread, so listeners
+ * should not block.</p>
+ */
+public class ChatSelector implements Runnable {
+
+    /** How often (ms) sessions are checked for keepalive pings */
+    private static final long TICK = 1000;
+    /** Initial size of a session's read buffer, it grows on demand */
+    private static final int BUFFER_SIZE = 4096;
+    /** Largest possible frame (4 byte header + unsigned short length) */
+    private static final int MAX_FRAME = 4 + 0xFFFF;
+    private final Selector m_selector;
+    private final Queue<Runnable> m_tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final ConcurrentHashMap<ChatClient, Session> m_sessions = new ConcurrentHashMap<ChatClient, Session>();
+    private Thread m_thread = null;
+    private volatile boolean m_running = false;
+    private long m_nextTick = 0;
+
+    /** Creates a new instance of ChatSelector */
+    public ChatSelector() throws IOException {
+        m_selector = Selector.open();
+    }   // end ChatSelector()
+
+    /** Starts the I/O thread */
+    public synchronized void start() {
+        if (m_thread == null || !m_thread.isAlive()) {
+            m_running = true;
+            m_thread = new Thread(this, "ChatSelector");
+            m_thread.setDaemon(true);
+            m_thread.start();
+        }   // end if
+    }   // end start()
+
+    /** Stops the I/O thread, all sessions still registered are disconnected */
+    public synchronized void stop() {
+        m_running = false;
+        m_selector.wakeup();
+    }   // end stop()
+
+    /** Returns the number of clients currently served by this selector */
+    public int getSessionCount() {
+        return m_sessions.size();
+    }   // end getSessionCount()
+
+    /**
+     * Hands a connected, logged in client over to the selector.
+     * The channel must already be in non-blocking mode.
+     */
+    void register(ChatClient client, SocketChannel channel) {
+        final Session session = new Session(client, channel);
+        m_sessions.put(client, session);
+        m_tasks.add(new Runnable() {
+
+            public void run() {
+                try {
+                    session.m_key = session.m_channel.register(m_selector, SelectionKey.OP_READ, session);
+                } catch (IOException ex) {
+                    close(session, ex);
+                }
+            }
+        });
+        m_selector.wakeup();
+    }   // end register()
+
+    /** Stops serving a client, its channel is closed by the client */
+    void unregister(ChatClient client) {
+        Session session = m_sessions.remove(client);
+        if (session != null && session.m_key != null) {
+            session.m_key.cancel();
+        }   // end if
+    }   // end unregister()
+
+    /**
+     * Queues a complete frame (header and payload) for writing.
+     *
+     * @throws IOException if the client is not registered with this selector
+     */
+    void send(ChatClient client, ByteBuffer frame) throws IOException {
+        Session session = m_sessions.get(client);
+        if (session == null) {
+            throw new IOException("Client is not registered with this selector");
+        }   // end if
+        session.m_pending.add(frame);
+        m_tasks.add(session.m_flush);
+        m_selector.wakeup();
+    }   // end send()
+
+    public void run() {
+        while (m_running) {
+            try {
+                m_selector.select(TICK);
+
+                Runnable task;
+                while ((task = m_tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException ex) {
+                        System.err.println("ChatSelector: " + ex);
+                    }   // end catch
+                }   // end while
+
+                Iterator<SelectionKey> keys = m_selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Session session = (Session) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            session.write();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            session.read();
+                        }
+                    } catch (CancelledKeyException ex) {
+                        // The client disconnected while we were serving it
+                    } catch (IOException ex) {
+                        close(session, ex);
+                    } catch (RuntimeException ex) {
+                        // Only the failing client is dropped, the thread serves the others
+                        close(session, new IOException(ex));
+                    }   // end catch
+                }   // end while
+
+                long now = System.currentTimeMillis();
+                if (now >= m_nextTick) {
+                    m_nextTick = now + TICK;
+                    for (Session session : m_sessions.values()) {
+                        try {
+                            session.m_client.idle(now);
+                        } catch (RuntimeException ex) {
+                            close(session, new IOException(ex));
+                        }   // end catch
+                    }   // end for
+                }   // end if
+            } catch (IOException ex) {
+                System.err.println("ChatSelector: " + ex.getMessage());
+            } catch (RuntimeException ex) {
+                System.err.println("ChatSelector: " + ex);
+            }   // end catch
+        }   // end while
+
+        for (Session session : m_sessions.values()) {
+            close(session, null);
+        }   // end for
+        try {
+            m_selector.close();
+        } catch (IOException ex) {
+        }
+    }   // end run()
+
+    /** Stops serving a client and tells it, whatever its listeners throw stays with this client */
+    private void close(Session session, IOException ex) {
+        m_sessions.remove(session.m_client);
+        if (session.m_key != null) {
+            session.m_key.cancel();
+        }   // end if
+        try {
+            session.m_client.connectionLost(ex);
+        } catch (RuntimeException e) {
+            System.err.println("ChatSelector: " + e);
+        }   // end catch
+    }   // end close()
+
+    /** The state the selector keeps for every client */
+    private class Session {
+
+        private final ChatClient m_client;
+        private final SocketChannel m_channel;
+        private final Queue<ByteBuffer> m_pending = new ConcurrentLinkedQueue<ByteBuffer>();
+        private ByteBuffer m_buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private SelectionKey m_key = null;
+        private final Runnable m_flush = new Runnable() {
+
+            public void run() {
+                if (m_key != null && m_key.isValid() && !m_pending.isEmpty()) {
+                    m_key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+        };
+
+        public Session(ChatClient client, SocketChannel channel) {
+            m_client = client;
+            m_channel = channel;
+        }   // end Session()
+
+        /** Reads whatever is available and fires every complete frame */
+        public void read() throws IOException {
+            if (m_channel.read(m_buffer) < 0) {
+                throw new EOFException("Connection closed by server");
+            }   // end if
+
+            int needed = 0;
+            m_buffer.flip();
+            while (m_buffer.remaining() >= 4 && m_key.isValid()) {
+                int pos = m_buffer.position();
+                short type = m_buffer.getShort(pos);
+                int length = m_buffer.getShort(pos + 2) & 0xFFFF;
+
+                if (m_buffer.remaining() < 4 + length) {
+                    needed = 4 + length;
+                    break;
+                }   // end if
+
+                // Hand the frame over in place, the client parses it before returning
+                int end = pos + 4 + length;
+                int limit = m_buffer.limit();
+                m_buffer.limit(end);
+                m_buffer.position(pos + 4);
+                m_client.received(type, m_buffer);
+                m_buffer.limit(limit);
+                m_buffer.position(end);
+            }   // end while
+            m_buffer.compact();
+
+            if (needed > m_buffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(MAX_FRAME, Math.max(needed, m_buffer.capacity() * 2)));
+                m_buffer.flip();
+                larger.put(m_buffer);
+                m_buffer = larger;
+            }   // end if
+        }   // end read()
+
+        /** Writes pending frames until done or the socket buffer is full */
+        public void write() throws IOException {
+            ByteBuffer frame;
+            while ((frame = m_pending.peek()) != null) {
+                m_channel.write(frame);
+                if (frame.hasRemaining()) {
+                    return;
+                }   // end if
+                m_pending.poll();
+            }   // end while
+            m_key.interestOps(SelectionKey.OP_READ);
+        }   // end write()
+    }   // end class Session
+}   // end class ChatSelector
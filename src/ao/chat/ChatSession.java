@@ -0,0 +1,233 @@
+/*
+ * ChatSession.java
+ *
+ *************************************************************************
+ * Copyright 2026 The AnarchyTalk contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ao.chat;
+
+import ao.protocol.CharacterIDTable;
+import ao.protocol.CharacterInfo;
+import ao.protocol.GroupTable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>ChatSession remembers what a client learned during its last session so a
+ * reconnect can resume where it left off: the characters on the account, the
+ * character that was logged in, the channels it was in (and whether they were
+ * muted), and the character and group tables of the client.</p>
+ *
+ * <p>The session is written to a single file by {@link #save(ChatClient)} and
+ * read back by {@link #load(ChatClient)}. The file is replaced atomically, a
+ * missing or damaged file simply leaves the session empty.</p>
+ */
+public class ChatSession {
+
+    private static final int VERSION = 1;
+    /** More than any account or client has, larger counts mean a damaged file */
+    private static final int MAX_CHARACTERS = 256;
+    private static final int MAX_CHANNELS = 4096;
+    private final File m_file;
+    private final Object m_saveLock = new Object();
+    private CharacterInfo[] m_characters = new CharacterInfo[0];
+    private int m_lastCharacter = 0;
+    private final Map<String, Boolean> m_channels = new LinkedHashMap<String, Boolean>();
+
+    /** Creates a new instance of ChatSession stored in the given file */
+    public ChatSession(File file) {
+        m_file = file;
+    }   // end ChatSession()
+
+    /** Returns the characters on the account, as last sent by the server */
+    public synchronized CharacterInfo[] getCharacters() {
+        return m_characters;
+    }   // end getCharacters()
+
+    public synchronized void setCharacters(CharacterInfo[] characters) {
+        m_characters = characters == null ? new CharacterInfo[0] : characters;
+    }   // end setCharacters()
+
+    /** Returns the ID of the character that was logged in last, or 0 */
+    public synchronized int getLastCharacterID() {
+        return m_lastCharacter;
+    }   // end getLastCharacterID()
+
+    public synchronized void setLastCharacterID(int id) {
+        m_lastCharacter = id;
+    }   // end setLastCharacterID()
+
+    /**
+     * Returns the character that was logged in last, or null if it is not
+     * in the character list (anymore)
+     */
+    public synchronized CharacterInfo getLastCharacter() {
+        for (CharacterInfo character : m_characters) {
+            if (character.getID() == m_lastCharacter) {
+                return character;
+            }   // end if
+        }   // end for
+        return null;
+    }   // end getLastCharacter()
+
+    /** Returns the channels of the last session, mapped to whether they were muted */
+    public synchronized Map<String, Boolean> getChannels() {
+        return new LinkedHashMap<String, Boolean>(m_channels);
+    }   // end getChannels()
+
+    /** Remembers a channel, or changes whether it is muted */
+    public synchronized void setChannel(String name, boolean muted) {
+        m_channels.put(name, Boolean.valueOf(muted));
+    }   // end setChannel()
+
+    public synchronized void removeChannel(String name) {
+        m_channels.remove(name);
+    }   // end removeChannel()
+
+    /** Forgets everything but the file the session is stored in */
+    public synchronized void clear() {
+        m_characters = new CharacterInfo[0];
+        m_lastCharacter = 0;
+        m_channels.clear();
+    }   // end clear()
+
+    /**
+     * Writes the session and the tables of a client to the session file,
+     * saves from several threads are made one after the other
+     *
+     * @throws IOException
+     *         if the file cannot be written, the previous file is kept
+     */
+    public void save(ChatClient client) throws IOException {
+        synchronized (m_saveLock) {
+            write(client);
+        }   // end synchronized
+    }   // end save()
+
+    /** Writes the session through a temporary file, must hold the save lock */
+    private void write(ChatClient client) throws IOException {
+        File temp = new File(m_file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(VERSION);
+            synchronized (this) {
+                out.writeInt(m_lastCharacter);
+                out.writeInt(m_characters.length);
+                for (CharacterInfo character : m_characters) {
+                    out.writeInt(character.getID());
+                    out.writeUTF(character.getName());
+                    out.writeInt(character.getLevel());
+                    out.writeInt(character.getOnline());
+                }   // end for
+                out.writeInt(m_channels.size());
+                for (Map.Entry<String, Boolean> channel : m_channels.entrySet()) {
+                    out.writeUTF(channel.getKey());
+                    out.writeBoolean(channel.getValue().booleanValue());
+                }   // end for
+            }   // end synchronized
+            client.getCharTable().snapshot(out);
+            client.getGroupTable().snapshot(out);
+        } finally {
+            out.close();
+        }   // end finally
+
+        if (!temp.renameTo(m_file)) {
+            // Some file systems will not rename over an existing file
+            m_file.delete();
+            if (!temp.renameTo(m_file)) {
+                temp.delete();
+                throw new IOException("Could not replace " + m_file);
+            }   // end if
+        }   // end if
+    }   // end write()
+
+    /**
+     * Reads the session file, the tables it holds are added to the tables of a client.
+     * A file that cannot be read is deleted, so it is not tried again.
+     *
+     * @return false if there is no session file or it could not be read
+     */
+    public boolean load(ChatClient client) {
+        if (!m_file.exists()) {
+            return false;
+        }   // end if
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_file)));
+            try {
+                if (in.readInt() != VERSION) {
+                    return false;
+                }   // end if
+
+                int lastCharacter = in.readInt();
+                CharacterInfo[] characters = new CharacterInfo[readCount(in, MAX_CHARACTERS)];
+                for (int i = 0; i < characters.length; ++i) {
+                    int id = in.readInt();
+                    String name = in.readUTF();
+                    int level = in.readInt();
+                    characters[i] = new CharacterInfo(id, name, level, in.readInt());
+                }   // end for
+                Map<String, Boolean> channels = new LinkedHashMap<String, Boolean>();
+                int count = readCount(in, MAX_CHANNELS);
+                for (int i = 0; i < count; ++i) {
+                    String name = in.readUTF();
+                    channels.put(name, Boolean.valueOf(in.readBoolean()));
+                }   // end for
+
+                client.getCharTable().restore(in);
+                client.getGroupTable().restore(in);
+
+                synchronized (this) {
+                    m_lastCharacter = lastCharacter;
+                    m_characters = characters;
+                    m_channels.clear();
+                    m_channels.putAll(channels);
+                }   // end synchronized
+                return true;
+            } finally {
+                in.close();
+            }   // end finally
+        } catch (IOException ex) {
+            delete();
+            return false;
+        } catch (RuntimeException ex) {
+            delete();
+            return false;
+        }   // end catch
+    }   // end load()
+
+    /** Reads a count and checks that it is in range */
+    private static int readCount(DataInputStream in, int max) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > max) {
+            throw new IOException("Damaged session file, count " + count);
+        }   // end if
+        return count;
+    }   // end readCount()
+
+    /** Removes the session file */
+    public void delete() {
+        m_file.delete();
+    }   // end delete()
+}   // end class ChatSession
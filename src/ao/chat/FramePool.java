@@ -0,0 +1,75 @@
+/*
+ * FramePool.java
+ *
+ *************************************************************************
+ * Copyright 2026 The AnarchyTalk contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ao.chat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A small pool of equally sized frame buffers that packets are read into.
+ * Frames larger than the pooled size are allocated on demand and dropped
+ * when released.
+ */
+public class FramePool {
+
+    private final ByteBuffer[] m_frames;
+    private final int m_frameSize;
+    private int m_count = 0;
+
+    /** Creates a new instance of FramePool */
+    public FramePool() {
+        this(4, 4096);
+    }   // end FramePool()
+
+    /**
+     * Creates a new instance of FramePool
+     *
+     * @param poolSize
+     *        the number of idle frames that are kept
+     * @param frameSize
+     *        the capacity of the pooled frames
+     */
+    public FramePool(int poolSize, int frameSize) {
+        m_frames = new ByteBuffer[poolSize];
+        m_frameSize = frameSize;
+    }   // end FramePool()
+
+    /** Returns a frame with its position at 0 and its limit at length */
+    public synchronized ByteBuffer acquire(int length) {
+        ByteBuffer frame;
+        if (length > m_frameSize) {
+            frame = ByteBuffer.allocate(length);
+        } else if (m_count > 0) {
+            frame = m_frames[--m_count];
+            m_frames[m_count] = null;
+        } else {
+            frame = ByteBuffer.allocate(m_frameSize);
+        }   // end else
+
+        frame.clear();
+        frame.limit(length);
+        return frame;
+    }   // end acquire()
+
+    /** Returns a frame to the pool, it must not be used afterwards */
+    public synchronized void release(ByteBuffer frame) {
+        if (frame.capacity() == m_frameSize && m_count < m_frames.length) {
+            m_frames[m_count++] = frame;
+        }   // end if
+    }   // end release()
+}   // end class FramePool
@@ -0,0 +1,302 @@
+/*
+ * LookupResolver.java
+ *
+ *************************************************************************
+ * Copyright 2026 The AnarchyTalk contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ao.chat;
+
+import ao.protocol.CharacterIDTable;
+import ao.protocol.packets.bi.CharacterLookupPacket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Resolves character names to IDs for a {@link ChatClient}. Names that are
+ * not in the character table are looked up with a single
+ * {@link CharacterLookupPacket} no matter how many callers wait for them,
+ * waiters are indexed by their lower case name, lookups that are not answered
+ * in time fail and names that do not exist are remembered for a while.
+ */
+public class LookupResolver {
+
+    /** Called once a name has been resolved to an existing character */
+    public interface Callback {
+
+        public void resolved(String name, int id);
+    }   // end interface Callback
+
+    private static final int NEGATIVE_CACHE_SIZE = 256;
+    private final ChatClient m_client;
+    private final long m_timeout;
+    private final long m_negativeTimeout;
+    private final Map<String, Lookup> m_pending = new HashMap<String, Lookup>();
+    private final Map<String, Long> m_missing = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > NEGATIVE_CACHE_SIZE;
+        }
+    };
+    private final Object m_lookupLock = new Object();
+    private Timer m_timer = null;
+
+    /**
+     * Creates a new instance of LookupResolver
+     *
+     * @param client
+     *        the client that sends the lookups and owns the character table
+     * @param timeout
+     *        how long (ms) to wait for the server to answer a lookup
+     * @param negativeTimeout
+     *        how long (ms) a name that does not exist is remembered
+     */
+    public LookupResolver(ChatClient client, long timeout, long negativeTimeout) {
+        m_client = client;
+        m_timeout = timeout;
+        m_negativeTimeout = negativeTimeout;
+    }   // end LookupResolver()
+
+    /** Resolves a name, see {@link #resolve(String, Callback)} */
+    public Future<Integer> resolve(String name) throws IOException {
+        return resolve(name, null);
+    }   // end resolve()
+
+    /**
+     * Resolves a name to a character ID. The future yields
+     * {@link CharacterIDTable#UNKNOWN} if the character does not exist.
+     *
+     * @param name
+     *        the name of the character
+     * @param callback
+     *        called with the ID if the character exists, may be null
+     * @throws IOException
+     *         if the lookup could not be sent
+     */
+    public Future<Integer> resolve(String name, Callback callback) throws IOException {
+        int id = m_client.getCharTable().getID(name, CharacterIDTable.UNKNOWN);
+        if (id != CharacterIDTable.UNKNOWN) {
+            if (callback != null) {
+                callback.resolved(name, id);
+            }   // end if
+            return new Lookup(name, id);
+        }   // end if
+
+        String key = name.toLowerCase(Locale.ENGLISH);
+        Lookup lookup;
+        boolean send = false;
+        synchronized (m_lookupLock) {
+            Long expires = m_missing.get(key);
+            if (expires != null) {
+                if (expires.longValue() > System.currentTimeMillis()) {
+                    return new Lookup(name, CharacterIDTable.UNKNOWN);
+                }   // end if
+                m_missing.remove(key);
+            }   // end if
+
+            lookup = m_pending.get(key);
+            if (lookup == null) {
+                lookup = new Lookup(name);
+                m_pending.put(key, lookup);
+                send = true;
+            }   // end if
+            if (callback != null) {
+                lookup.m_callbacks.add(callback);
+            }   // end if
+        }   // end synchronized
+
+        if (send) {
+            try {
+                m_client.sendPacket(new CharacterLookupPacket(name));
+            } catch (IOException e) {
+                synchronized (m_lookupLock) {
+                    m_pending.remove(key);
+                }   // end synchronized
+                lookup.fail(e);
+                throw e;
+            }   // end catch
+            schedule(key, lookup);
+        }   // end if
+        return lookup;
+    }   // end resolve()
+
+    /** Completes the lookup for a name, called for every CharacterLookupPacket */
+    void received(int id, String name) {
+        String key = name.toLowerCase(Locale.ENGLISH);
+        Lookup lookup;
+        synchronized (m_lookupLock) {
+            lookup = m_pending.remove(key);
+            if (id == CharacterIDTable.UNKNOWN) {
+                m_missing.put(key, Long.valueOf(System.currentTimeMillis() + m_negativeTimeout));
+            } else {
+                m_missing.remove(key);
+            }   // end else
+        }   // end synchronized
+
+        if (lookup != null && lookup.complete(id) && id != CharacterIDTable.UNKNOWN) {
+            // Callbacks send packets of their own, so they run outside the lock
+            for (Callback callback : lookup.m_callbacks) {
+                try {
+                    callback.resolved(name, id);
+                } catch (Exception e) {
+                    m_client.fireException(e);
+                }   // end catch
+            }   // end for
+        }   // end if
+    }   // end received()
+
+    /** Returns the number of lookups waiting for an answer */
+    public int getPendingCount() {
+        synchronized (m_lookupLock) {
+            return m_pending.size();
+        }   // end synchronized
+    }   // end getPendingCount()
+
+    /** Cancels every pending lookup and forgets the missing names, used when the client disconnects */
+    public void reset() {
+        List<Lookup> pending;
+        synchronized (m_lookupLock) {
+            pending = new ArrayList<Lookup>(m_pending.values());
+            m_pending.clear();
+            m_missing.clear();
+            if (m_timer != null) {
+                m_timer.cancel();
+                m_timer = null;
+            }   // end if
+        }   // end synchronized
+
+        for (Lookup lookup : pending) {
+            lookup.cancel(false);
+        }   // end for
+    }   // end reset()
+
+    private void schedule(final String key, final Lookup lookup) {
+        synchronized (m_lookupLock) {
+            if (lookup.isDone()) {
+                return;
+            }   // end if
+            if (m_timer == null) {
+                m_timer = new Timer("LookupResolver", true);
+            }   // end if
+            m_timer.schedule(new TimerTask() {
+
+                @Override
+                public void run() {
+                    synchronized (m_lookupLock) {
+                        if (m_pending.get(key) == lookup) {
+                            m_pending.remove(key);
+                        }   // end if
+                    }   // end synchronized
+                    if (lookup.fail(new TimeoutException("No answer to the lookup of " + lookup.m_name))) {
+                        m_client.println("Lookup of " + lookup.m_name + " timed out");
+                    }   // end if
+                }
+            }, m_timeout);
+        }   // end synchronized
+    }   // end schedule()
+
+    /** A lookup in progress, it is its own future */
+    private static class Lookup implements Future<Integer> {
+
+        private final String m_name;
+        private final List<Callback> m_callbacks = new ArrayList<Callback>(1);
+        private final CountDownLatch m_done = new CountDownLatch(1);
+        private int m_id = CharacterIDTable.UNKNOWN;
+        private Exception m_failure = null;
+        private boolean m_cancelled = false;
+
+        public Lookup(String name) {
+            m_name = name;
+        }   // end Lookup()
+
+        /** Creates a lookup that is already complete */
+        public Lookup(String name, int id) {
+            this(name);
+            complete(id);
+        }   // end Lookup()
+
+        public synchronized boolean complete(int id) {
+            if (isDone()) {
+                return false;
+            }   // end if
+            m_id = id;
+            m_done.countDown();
+            return true;
+        }   // end complete()
+
+        public synchronized boolean fail(Exception failure) {
+            if (isDone()) {
+                return false;
+            }   // end if
+            m_failure = failure;
+            m_done.countDown();
+            return true;
+        }   // end fail()
+
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            if (isDone()) {
+                return false;
+            }   // end if
+            m_cancelled = true;
+            m_done.countDown();
+            return true;
+        }   // end cancel()
+
+        public synchronized boolean isCancelled() {
+            return m_cancelled;
+        }   // end isCancelled()
+
+        public boolean isDone() {
+            return m_done.getCount() == 0;
+        }   // end isDone()
+
+        public Integer get() throws InterruptedException, ExecutionException {
+            m_done.await();
+            return result();
+        }   // end get()
+
+        public Integer get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!m_done.await(timeout, unit)) {
+                throw new TimeoutException("Lookup of " + m_name + " is still pending");
+            }   // end if
+            return result();
+        }   // end get()
+
+        private synchronized Integer result() throws ExecutionException {
+            if (m_cancelled) {
+                throw new CancellationException("Lookup of " + m_name + " was cancelled");
+            } else if (m_failure != null) {
+                throw new ExecutionException(m_failure);
+            }   // end else if
+            return Integer.valueOf(m_id);
+        }   // end result()
+    }   // end class Lookup
+}   // end class LookupResolver
@@ -0,0 +1,610 @@
+/*
+ * LoopbackServer.java
+ *
+ *************************************************************************
+ * Copyright 2026 The AnarchyTalk contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ao.chat;
+
+import ao.protocol.CharacterIDTable;
+import ao.protocol.CharacterInfo;
+import ao.protocol.GroupTable;
+import ao.protocol.ServerListener;
+import ao.protocol.packets.Packet;
+import ao.protocol.packets.bi.ChannelMessagePacket;
+import ao.protocol.packets.bi.CharacterLookupPacket;
+import ao.protocol.packets.bi.FriendRemovePacket;
+import ao.protocol.packets.bi.FriendUpdatePacket;
+import ao.protocol.packets.bi.PingPacket;
+import ao.protocol.packets.bi.PrivateChannelInvitePacket;
+import ao.protocol.packets.bi.PrivateChannelKickPacket;
+import ao.protocol.packets.bi.PrivateChannelMessagePacket;
+import ao.protocol.packets.bi.PrivateMessagePacket;
+import ao.protocol.packets.toclient.ChannelUpdatePacket;
+import ao.protocol.packets.toclient.CharacterListPacket;
+import ao.protocol.packets.toclient.CharacterUpdatePacket;
+import ao.protocol.packets.toclient.LoginErrorPacket;
+import ao.protocol.packets.toclient.LoginOkPacket;
+import ao.protocol.packets.toclient.LoginSeedPacket;
+import ao.protocol.packets.toclient.PrivateChannelCharacterJoinPacket;
+import ao.protocol.packets.toclient.PrivateChannelCharacterLeavePacket;
+import ao.protocol.packets.toserver.LoginRequestPacket;
+import ao.protocol.packets.toserver.LoginSelectPacket;
+import ao.protocol.packets.toserver.PrivateChannelAcceptPacket;
+import ao.protocol.packets.toserver.PrivateChannelKickAllPacket;
+import ao.protocol.packets.toserver.PrivateChannelLeavePacket;
+import ao.protocol.packets.utils.ServerPacketFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>LoopbackServer is a chat server for load testing that listens on
+ * localhost. It speaks enough of the protocol for {@link ChatClient}s to
+ * connect, log in and chat: the login seed, any account and key are
+ * accepted, character lists, channel updates, channel, private and private
+ * channel messages, lookups and buddy updates.</p>
+ *
+ * <p>Characters that are not connected can be added as well, a
+ * {@link TrafficGenerator} uses them to send scripted traffic to the clients.
+ * Every client connection is served by a {@link ServerConnection} on a thread
+ * of its own.</p>
+ */
+public class LoopbackServer implements Runnable {
+
+    private static final String SEED = "4c6f6f706261636b536572766572";
+    private final ServerSocket m_socket;
+    private Thread m_thread = null;
+    private volatile boolean m_running = false;
+    private final CharacterIDTable m_characters = new CharacterIDTable();
+    private int m_nextID = 1000;
+    private final Map<String, List<Integer>> m_accounts = new HashMap<String, List<Integer>>();
+    private final Map<Long, String> m_channels = new LinkedHashMap<Long, String>();
+    private int m_nextChannel = 1;
+    private final List<Session> m_sessions = new CopyOnWriteArrayList<Session>();
+    private final ConcurrentHashMap<Integer, Session> m_online = new ConcurrentHashMap<Integer, Session>();
+    private final Set<Integer> m_botsOnline = new HashSet<Integer>();
+    private final Map<Integer, Set<Integer>> m_buddies = new HashMap<Integer, Set<Integer>>();
+    private final Map<Integer, Set<Integer>> m_privateChannels = new HashMap<Integer, Set<Integer>>();
+    private final AtomicLong m_packetsIn = new AtomicLong();
+    private final AtomicLong m_packetsOut = new AtomicLong();
+    // Guards the accounts, bots, buddies and private channels
+    private final Object m_lock = new Object();
+
+    /** Creates a new instance of LoopbackServer on a free port */
+    public LoopbackServer() throws IOException {
+        this(0);
+    }   // end LoopbackServer()
+
+    /** Creates a new instance of LoopbackServer, 0 picks a free port */
+    public LoopbackServer(int port) throws IOException {
+        m_socket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+    }   // end LoopbackServer()
+
+    /** Returns the port the server listens on */
+    public int getPort() {
+        return m_socket.getLocalPort();
+    }   // end getPort()
+
+    /** Starts accepting clients */
+    public synchronized void start() {
+        if (m_thread == null || !m_thread.isAlive()) {
+            m_running = true;
+            m_thread = new Thread(this, "LoopbackServer");
+            m_thread.setDaemon(true);
+            m_thread.start();
+        }   // end if
+    }   // end start()
+
+    /** Stops accepting clients and disconnects the ones that are connected */
+    public synchronized void stop() {
+        m_running = false;
+        try {
+            m_socket.close();
+        } catch (IOException ex) {
+        }
+        for (Session session : m_sessions) {
+            session.close();
+        }   // end for
+    }   // end stop()
+
+    public void run() {
+        while (m_running) {
+            try {
+                Socket socket = m_socket.accept();
+                socket.setTcpNoDelay(true);
+                Session session = new Session(socket);
+                m_sessions.add(session);
+                session.start();
+            } catch (SocketException ex) {
+                // The server socket was closed by stop()
+            } catch (IOException ex) {
+                System.err.println("LoopbackServer: " + ex.getMessage());
+            }   // end catch
+        }   // end while
+    }   // end run()
+
+    /**
+     * Adds a character, or returns the ID of the character if it exists already.
+     * Characters are on no account until {@link #addAccount(String, String[])}
+     * puts them there.
+     */
+    public int addCharacter(String name) {
+        synchronized (m_lock) {
+            int id = m_characters.getID(name, CharacterIDTable.UNKNOWN);
+            if (id == CharacterIDTable.UNKNOWN) {
+                id = m_nextID++;
+                m_characters.add(id, name);
+            }   // end if
+            return id;
+        }   // end synchronized
+    }   // end addCharacter()
+
+    /** Adds an account with its characters, accounts that are not added get a character named after them */
+    public void addAccount(String account, String... characters) {
+        synchronized (m_lock) {
+            List<Integer> ids = new ArrayList<Integer>();
+            for (String name : characters) {
+                ids.add(Integer.valueOf(addCharacter(name)));
+            }   // end for
+            m_accounts.put(account.toLowerCase(), ids);
+        }   // end synchronized
+    }   // end addAccount()
+
+    /** Returns the name of a character, or null */
+    public String getCharacterName(int id) {
+        return m_characters.getName(id);
+    }   // end getCharacterName()
+
+    /** Adds a public channel, returns its packed ID (see {@link GroupTable#toKey(byte[])}) */
+    public long addChannel(String name) {
+        synchronized (m_channels) {
+            for (Map.Entry<Long, String> channel : m_channels.entrySet()) {
+                if (channel.getValue().equals(name)) {
+                    return channel.getKey().longValue();
+                }   // end if
+            }   // end for
+            // Type 0x87 marks an open chat channel
+            long key = (0x87L << 32) | m_nextChannel++;
+            m_channels.put(Long.valueOf(key), name);
+            return key;
+        }   // end synchronized
+    }   // end addChannel()
+
+    /** Returns the packed IDs of the public channels */
+    public long[] getChannels() {
+        synchronized (m_channels) {
+            long[] keys = new long[m_channels.size()];
+            int i = 0;
+            for (Long key : m_channels.keySet()) {
+                keys[i++] = key.longValue();
+            }   // end for
+            return keys;
+        }   // end synchronized
+    }   // end getChannels()
+
+    /** Returns the IDs of the characters that are logged in through a client */
+    public int[] getLoggedIn() {
+        Integer[] ids = m_online.keySet().toArray(new Integer[0]);
+        int[] result = new int[ids.length];
+        for (int i = 0; i < ids.length; ++i) {
+            result[i] = ids[i].intValue();
+        }   // end for
+        return result;
+    }   // end getLoggedIn()
+
+    /** Returns the number of connected clients, logged in or not */
+    public int getSessionCount() {
+        return m_sessions.size();
+    }   // end getSessionCount()
+
+    /** Returns the number of packets the server has read */
+    public long getPacketsIn() {
+        return m_packetsIn.get();
+    }   // end getPacketsIn()
+
+    /** Returns the number of packets the server has written */
+    public long getPacketsOut() {
+        return m_packetsOut.get();
+    }   // end getPacketsOut()
+
+    /**
+     * Connects a client to this server and logs in the first character of an
+     * account, the client is started before returning
+     */
+    public void login(ChatClient client, String account) throws IOException {
+        client.connect("127.0.0.1", getPort());
+        client.authenticate(account, "loopback");
+        int id = charactersOf(account)[0];
+        client.login(new CharacterInfo(id, getCharacterName(id), 220, 0));
+        client.start();
+    }   // end login()
+
+    /**
+     * Logs a character without a client in or out, the characters that
+     * have it as a buddy are told
+     */
+    public void setOnline(int id, boolean online) {
+        synchronized (m_lock) {
+            if (online ? !m_botsOnline.add(Integer.valueOf(id)) : !m_botsOnline.remove(Integer.valueOf(id))) {
+                return;
+            }   // end if
+        }   // end synchronized
+        buddyChanged(id, online);
+    }   // end setOnline()
+
+    /** Returns whether a character is logged in, with or without a client */
+    public boolean isOnline(int id) {
+        if (m_online.containsKey(Integer.valueOf(id))) {
+            return true;
+        }   // end if
+        synchronized (m_lock) {
+            return m_botsOnline.contains(Integer.valueOf(id));
+        }   // end synchronized
+    }   // end isOnline()
+
+    /** Sends a message to a public channel from any character */
+    public void sendChannelMessage(int from, long channel, String msg) {
+        byte[] id = GroupTable.toID(channel);
+        for (Session session : m_online.values()) {
+            session.sendFrom(from, new ChannelMessagePacket(id, from, msg, "\0", Packet.Direction.TO_CLIENT));
+        }   // end for
+    }   // end sendChannelMessage()
+
+    /** Sends a private message from any character, returns false if the receiver is not logged in */
+    public boolean sendTell(int from, int to, String msg) {
+        Session session = m_online.get(Integer.valueOf(to));
+        if (session == null) {
+            return false;
+        }   // end if
+        session.sendFrom(from, new PrivateMessagePacket(from, msg, Packet.Direction.TO_CLIENT));
+        return true;
+    }   // end sendTell()
+
+    /** Sends a message to a private channel from any character, members or not */
+    public void sendPrivateChannelMessage(int owner, int from, String msg) {
+        Packet packet = new PrivateChannelMessagePacket(owner, from, msg, "\0", Packet.Direction.TO_CLIENT);
+        for (Session session : privateChannelSessions(owner)) {
+            session.sendFrom(from, packet);
+        }   // end for
+    }   // end sendPrivateChannelMessage()
+
+    /** Adds a character to a private channel as if it had accepted an invitation */
+    public void joinPrivateChannel(int owner, int id) {
+        synchronized (m_lock) {
+            if (!members(owner).add(Integer.valueOf(id))) {
+                return;
+            }   // end if
+        }   // end synchronized
+        Packet packet = new PrivateChannelCharacterJoinPacket(owner, id);
+        for (Session session : privateChannelSessions(owner)) {
+            session.sendFrom(id, packet);
+        }   // end for
+    }   // end joinPrivateChannel()
+
+    /** Removes a character from a private channel */
+    public void leavePrivateChannel(int owner, int id) {
+        List<Session> sessions = privateChannelSessions(owner);
+        synchronized (m_lock) {
+            if (!members(owner).remove(Integer.valueOf(id))) {
+                return;
+            }   // end if
+        }   // end synchronized
+        Packet packet = new PrivateChannelCharacterLeavePacket(owner, id);
+        for (Session session : sessions) {
+            session.sendFrom(id, packet);
+        }   // end for
+    }   // end leavePrivateChannel()
+
+    private int[] charactersOf(String account) {
+        synchronized (m_lock) {
+            List<Integer> ids = m_accounts.get(account.toLowerCase());
+            if (ids == null || ids.isEmpty()) {
+                String name = Character.toUpperCase(account.charAt(0)) + account.substring(1).toLowerCase();
+                ids = new ArrayList<Integer>();
+                ids.add(Integer.valueOf(addCharacter(name)));
+                m_accounts.put(account.toLowerCase(), ids);
+            }   // end if
+            int[] result = new int[ids.size()];
+            for (int i = 0; i < result.length; ++i) {
+                result[i] = ids.get(i).intValue();
+            }   // end for
+            return result;
+        }   // end synchronized
+    }   // end charactersOf()
+
+    /** Returns the members of a private channel, must hold the lock */
+    private Set<Integer> members(int owner) {
+        Set<Integer> members = m_privateChannels.get(Integer.valueOf(owner));
+        if (members == null) {
+            members = new HashSet<Integer>();
+            m_privateChannels.put(Integer.valueOf(owner), members);
+        }   // end if
+        return members;
+    }   // end members()
+
+    /** Returns the sessions of the owner and members of a private channel */
+    private List<Session> privateChannelSessions(int owner) {
+        List<Session> sessions = new ArrayList<Session>();
+        Session session = m_online.get(Integer.valueOf(owner));
+        if (session != null) {
+            sessions.add(session);
+        }   // end if
+        synchronized (m_lock) {
+            for (Integer member : members(owner)) {
+                session = m_online.get(member);
+                if (session != null && member.intValue() != owner) {
+                    sessions.add(session);
+                }   // end if
+            }   // end for
+        }   // end synchronized
+        return sessions;
+    }   // end privateChannelSessions()
+
+    /** Tells the characters that have a character as a buddy that it logged in or out */
+    private void buddyChanged(int id, boolean online) {
+        List<Integer> watchers = new ArrayList<Integer>();
+        synchronized (m_lock) {
+            for (Map.Entry<Integer, Set<Integer>> buddies : m_buddies.entrySet()) {
+                if (buddies.getValue().contains(Integer.valueOf(id))) {
+                    watchers.add(buddies.getKey());
+                }   // end if
+            }   // end for
+        }   // end synchronized
+        Packet packet = new FriendUpdatePacket(id, online, "\1", Packet.Direction.TO_CLIENT);
+        for (Integer watcher : watchers) {
+            Session session = m_online.get(watcher);
+            if (session != null) {
+                session.sendFrom(id, packet);
+            }   // end if
+        }   // end for
+    }   // end buddyChanged()
+
+    /** A client connected to the server */
+    private class Session implements ServerListener {
+
+        private final ServerConnection m_connection;
+        private String m_account = null;
+        private int m_character = CharacterIDTable.UNKNOWN;
+        // The characters this client has been sent the name of
+        private final Set<Integer> m_known = new HashSet<Integer>();
+
+        public Session(Socket socket) {
+            m_connection = new ServerConnection(socket, new ServerPacketFactory(), false);
+            m_connection.addListener(this);
+        }   // end Session()
+
+        public void start() throws IOException {
+            m_connection.open();
+            send(new LoginSeedPacket(SEED));
+            Thread thread = new Thread(m_connection, "LoopbackSession");
+            thread.setDaemon(true);
+            thread.start();
+        }   // end start()
+
+        public void close() {
+            try {
+                m_connection.disconnect();
+            } catch (IOException ex) {
+            }
+        }   // end close()
+
+        /** Sends a packet, first telling the client the name of the character it is from */
+        public void sendFrom(int from, Packet packet) {
+            boolean known;
+            synchronized (m_known) {
+                known = !m_known.add(Integer.valueOf(from));
+            }   // end synchronized
+            if (!known) {
+                String name = getCharacterName(from);
+                if (name != null) {
+                    send(new CharacterUpdatePacket(from, name));
+                }   // end if
+            }   // end if
+            send(packet);
+        }   // end sendFrom()
+
+        public void send(Packet packet) {
+            if (m_connection.getState() == ServerConnection.ServerState.DISCONNECTED) {
+                return;
+            }   // end if
+            try {
+                m_connection.sendPacket(packet);
+                m_packetsOut.incrementAndGet();
+            } catch (IOException ex) {
+                close();
+            }   // end catch
+        }   // end send()
+
+        public void disconnected(ServerConnection con) {
+            m_sessions.remove(this);
+            if (m_character != CharacterIDTable.UNKNOWN && m_online.remove(Integer.valueOf(m_character), this)) {
+                List<Integer> channels = new ArrayList<Integer>();
+                synchronized (m_lock) {
+                    for (Map.Entry<Integer, Set<Integer>> channel : m_privateChannels.entrySet()) {
+                        if (channel.getValue().contains(Integer.valueOf(m_character))) {
+                            channels.add(channel.getKey());
+                        }   // end if
+                    }   // end for
+                }   // end synchronized
+                for (Integer owner : channels) {
+                    leavePrivateChannel(owner.intValue(), m_character);
+                }   // end for
+                buddyChanged(m_character, false);
+            }   // end if
+        }   // end disconnected()
+
+        public void exception(ServerConnection con, Exception e) {
+        }   // end exception()
+
+        public void packet(ServerConnection con, Packet packet) {
+            m_packetsIn.incrementAndGet();
+
+            if (packet instanceof PingPacket) {
+                send(new PingPacket(((PingPacket) packet).getStr(), Packet.Direction.TO_CLIENT));
+            } else if (packet instanceof LoginRequestPacket) {
+                m_account = ((LoginRequestPacket) packet).getAccountName();
+                int[] ids = charactersOf(m_account);
+                CharacterInfo[] characters = new CharacterInfo[ids.length];
+                for (int i = 0; i < ids.length; ++i) {
+                    characters[i] = new CharacterInfo(ids[i], getCharacterName(ids[i]), 220, isOnline(ids[i]) ? 1 : 0);
+                }   // end for
+                send(new CharacterListPacket(characters));
+            } else if (packet instanceof LoginSelectPacket) {
+                login(((LoginSelectPacket) packet).getCharacterID());
+            } else if (m_character == CharacterIDTable.UNKNOWN) {
+                // Nothing else is allowed before logging in
+                return;
+            } else if (packet instanceof CharacterLookupPacket) {
+                String name = ((CharacterLookupPacket) packet).getCharacterName();
+                int id = m_characters.getID(name, CharacterIDTable.UNKNOWN);
+                send(new CharacterLookupPacket(id, id == CharacterIDTable.UNKNOWN ? name : getCharacterName(id)));
+            } else if (packet instanceof PrivateMessagePacket) {
+                PrivateMessagePacket tell = (PrivateMessagePacket) packet;
+                sendTell(m_character, tell.getCharID(), tell.getMessage());
+            } else if (packet instanceof ChannelMessagePacket) {
+                ChannelMessagePacket message = (ChannelMessagePacket) packet;
+                boolean exists;
+                synchronized (m_channels) {
+                    exists = m_channels.containsKey(Long.valueOf(message.getGroupKey()));
+                }   // end synchronized
+                if (exists) {
+                    sendChannelMessage(m_character, message.getGroupKey(), message.getMessage());
+                }   // end if
+            } else if (packet instanceof FriendUpdatePacket) {
+                FriendUpdatePacket update = (FriendUpdatePacket) packet;
+                synchronized (m_lock) {
+                    Set<Integer> buddies = m_buddies.get(Integer.valueOf(m_character));
+                    if (buddies == null) {
+                        buddies = new HashSet<Integer>();
+                        m_buddies.put(Integer.valueOf(m_character), buddies);
+                    }   // end if
+                    buddies.add(Integer.valueOf(update.getCharID()));
+                }   // end synchronized
+                sendFrom(update.getCharID(), new FriendUpdatePacket(update.getCharID(),
+                        isOnline(update.getCharID()), update.getFlags(), Packet.Direction.TO_CLIENT));
+            } else if (packet instanceof FriendRemovePacket) {
+                int id = ((FriendRemovePacket) packet).getCharID();
+                synchronized (m_lock) {
+                    Set<Integer> buddies = m_buddies.get(Integer.valueOf(m_character));
+                    if (buddies != null) {
+                        buddies.remove(Integer.valueOf(id));
+                    }   // end if
+                }   // end synchronized
+                send(new FriendRemovePacket(id, Packet.Direction.TO_CLIENT));
+            } else if (packet instanceof PrivateChannelInvitePacket) {
+                Session invited = m_online.get(Integer.valueOf(((PrivateChannelInvitePacket) packet).getGroupID()));
+                if (invited != null) {
+                    invited.sendFrom(m_character, new PrivateChannelInvitePacket(m_character, Packet.Direction.TO_CLIENT));
+                }   // end if
+            } else if (packet instanceof PrivateChannelAcceptPacket) {
+                joinPrivateChannel(((PrivateChannelAcceptPacket) packet).getGroupID(), m_character);
+            } else if (packet instanceof PrivateChannelLeavePacket) {
+                leavePrivateChannel(((PrivateChannelLeavePacket) packet).getGroupID(), m_character);
+            } else if (packet instanceof PrivateChannelKickPacket) {
+                kick(((PrivateChannelKickPacket) packet).getGroupID());
+            } else if (packet instanceof PrivateChannelKickAllPacket) {
+                Integer[] members;
+                synchronized (m_lock) {
+                    members = members(m_character).toArray(new Integer[0]);
+                }   // end synchronized
+                for (Integer member : members) {
+                    kick(member.intValue());
+                }   // end for
+            } else if (packet instanceof PrivateChannelMessagePacket) {
+                PrivateChannelMessagePacket message = (PrivateChannelMessagePacket) packet;
+                boolean member;
+                synchronized (m_lock) {
+                    member = message.getGroupID() == m_character
+                            || members(message.getGroupID()).contains(Integer.valueOf(m_character));
+                }   // end synchronized
+                if (member) {
+                    sendPrivateChannelMessage(message.getGroupID(), m_character, message.getMessage());
+                }   // end if
+            }   // end else if
+        }   // end packet()
+
+        private void login(int id) {
+            boolean valid = false;
+            if (m_account != null) {
+                for (int character : charactersOf(m_account)) {
+                    valid |= character == id;
+                }   // end for
+            }   // end if
+            if (!valid) {
+                send(new LoginErrorPacket("Character not found on this account"));
+                return;
+            }   // end if
+
+            Session old = m_online.put(Integer.valueOf(id), this);
+            if (old != null && old != this) {
+                old.close();
+            }   // end if
+            m_character = id;
+            send(new LoginOkPacket());
+            synchronized (m_known) {
+                m_known.add(Integer.valueOf(id));
+            }   // end synchronized
+            send(new CharacterUpdatePacket(id, getCharacterName(id)));
+
+            Map<Long, String> channels;
+            synchronized (m_channels) {
+                channels = new LinkedHashMap<Long, String>(m_channels);
+            }   // end synchronized
+            for (Map.Entry<Long, String> channel : channels.entrySet()) {
+                send(new ChannelUpdatePacket(GroupTable.toID(channel.getKey().longValue()), channel.getValue(), 0, "\0"));
+            }   // end for
+
+            Integer[] buddies;
+            synchronized (m_lock) {
+                Set<Integer> set = m_buddies.get(Integer.valueOf(id));
+                buddies = set == null ? new Integer[0] : set.toArray(new Integer[0]);
+            }   // end synchronized
+            for (Integer buddy : buddies) {
+                sendFrom(buddy.intValue(), new FriendUpdatePacket(buddy.intValue(),
+                        isOnline(buddy.intValue()), "\1", Packet.Direction.TO_CLIENT));
+            }   // end for
+
+            buddyChanged(id, true);
+        }   // end login()
+
+        private void kick(int id) {
+            boolean member;
+            synchronized (m_lock) {
+                member = members(m_character).contains(Integer.valueOf(id));
+            }   // end synchronized
+            if (member) {
+                Session kicked = m_online.get(Integer.valueOf(id));
+                leavePrivateChannel(m_character, id);
+                if (kicked != null) {
+                    kicked.sendFrom(m_character, new PrivateChannelKickPacket(m_character, Packet.Direction.TO_CLIENT));
+                }   // end if
+            }   // end if
+        }   // end kick()
+    }   // end class Session
+}   // end class LoopbackServer
@@ -21,68 +21,309 @@ package ao.chat;
 
 import ao.protocol.Client.ClientState;
 import ao.protocol.packets.Packet;
+import ao.protocol.packets.bi.ChannelMessagePacket;
+import ao.protocol.packets.bi.FriendRemovePacket;
+import ao.protocol.packets.bi.FriendUpdatePacket;
+import ao.protocol.packets.bi.PrivateChannelInvitePacket;
+import ao.protocol.packets.bi.PrivateChannelKickPacket;
+import ao.protocol.packets.bi.PrivateMessagePacket;
 import java.io.IOException;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 
+/**
+ * Keeps outgoing packets under the server's flood limits. The server counts
+ * every throttled packet against one budget, so all {@link Lane}s share a
+ * single token bucket: up to {@code size} packets can be sent at once, after
+ * that one token is regained every {@code delay / size} ms. Packets that find
+ * the bucket empty are queued in their lane and sent by a thread that sleeps
+ * until either a packet is queued or the next token is due. Each token goes to
+ * the first lane declared that has something waiting, so bulk operations never
+ * hold up what the user types.
+ */
 public class PacketQueue implements Runnable {
 
-    private int delay;
-    private boolean run = true;
-    private long lastsent = System.currentTimeMillis();
-    private int queueSize = 5;
+    /** The lanes in order of priority */
+    public enum Lane {
+
+        /** Messages typed by the user */
+        INTERACTIVE,
+        /** Replies sent by plugins */
+        PLUGIN,
+        /** Friend list updates, private group invites and kicks, often sent by the hundred */
+        BULK;
+    }   // end enum Lane
+
+    private static final Lane[] LANES = Lane.values();
+    private volatile boolean run = true;
     private final Object queueLock = new Object();
-    private Queue<Packet> queue = new LinkedList<Packet>();
+    private final LaneQueue[] lanes = new LaneQueue[LANES.length];
+    private int size;
+    private long interval;
+    private int tokens;
+    private long lastRefill = System.currentTimeMillis();
     private ChatClient client;
+    private Thread thread = null;
 
     public PacketQueue(ChatClient client) {
         this(client, 3000);
     }
-    
+
+    /**
+     * @param delay
+     *        ms needed to regain a full bucket of chat messages
+     */
     public PacketQueue(ChatClient client, int delay) {
         this.client = client;
-        this.delay = delay;
+        for (Lane lane : LANES) {
+            lanes[lane.ordinal()] = new LaneQueue();
+        }
+        size = 5;
+        interval = Math.max(1, delay / size);
+        tokens = size;
+    }
+
+    /**
+     * Returns the lane a packet is sent through by default,
+     * or null if it is not rate limited. Lookups are sent right away,
+     * someone is usually waiting on the answer.
+     */
+    public static Lane laneOf(Packet packet) {
+        if (packet instanceof PrivateMessagePacket || packet instanceof ChannelMessagePacket) {
+            return Lane.INTERACTIVE;
+        } else if (packet instanceof FriendUpdatePacket || packet instanceof FriendRemovePacket
+                || packet instanceof PrivateChannelInvitePacket || packet instanceof PrivateChannelKickPacket) {
+            return Lane.BULK;
+        } else {
+            return null;
+        }
     }
 
+    /**
+     * Changes the bucket shared by all lanes
+     *
+     * @param size
+     *        how many packets can be sent at once
+     * @param delay
+     *        ms needed to regain a full bucket
+     */
+    public void setLimit(int size, int delay) {
+        synchronized (queueLock) {
+            this.size = Math.max(1, size);
+            interval = Math.max(1, delay / this.size);
+            tokens = Math.min(tokens, this.size);
+            queueLock.notify();
+        }
+    }
+
+    /** Queues a chat message */
     public void add(Packet p) {
-        queue.add(p);
+        add(p, Lane.INTERACTIVE);
+    }
+
+    /** Queues a packet, the sending thread is started on first use */
+    public void add(Packet p, Lane lane) {
+        synchronized (queueLock) {
+            LaneQueue queue = lanes[lane.ordinal()];
+            queue.queue.add(new Entry(p, System.currentTimeMillis()));
+            queue.queued++;
+            queue.maxDepth = Math.max(queue.maxDepth, queue.queue.size());
+            if (thread == null && run) {
+                thread = new Thread(this, "PacketQueue");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            queueLock.notify();
+        }
+    }
+
+    /** Queues several packets that are sent one after the other */
+    public void addAll(List<? extends Packet> packets, Lane lane) {
+        synchronized (queueLock) {
+            for (Packet p : packets) {
+                add(p, lane);
+            }
+        }
     }
 
     public void stop() {
-        run = false;
+        synchronized (queueLock) {
+            run = false;
+            queueLock.notify();
+        }
     }
 
+    /** Same as {@code canSend(Lane.INTERACTIVE)} */
     public boolean canSend() {
+        return canSend(Lane.INTERACTIVE);
+    }
+
+    /**
+     * Takes a token for a lane if one is available and nothing is queued
+     * in that lane or one before it, so packets are never sent out of order
+     * and never ahead of a lane with a higher priority.
+     */
+    public boolean canSend(Lane lane) {
         synchronized (queueLock) {
-            if (queueSize > 0) {
-                queueSize--;
-                lastsent = System.currentTimeMillis();
-                return true;
-            } else {
+            refill(System.currentTimeMillis());
+            if (tokens <= 0) {
                 return false;
             }
+            for (int i = 0; i <= lane.ordinal(); i++) {
+                if (!lanes[i].queue.isEmpty()) {
+                    return false;
+                }
+            }
+            tokens--;
+            lanes[lane.ordinal()].sent++;
+            return true;
+        }
+    }
+
+    /** Returns the number of packets waiting in a lane */
+    public int getDepth(Lane lane) {
+        synchronized (queueLock) {
+            return lanes[lane.ordinal()].queue.size();
+        }
+    }
+
+    /** Returns a snapshot of the counters of a lane */
+    public Metrics getMetrics(Lane lane) {
+        synchronized (queueLock) {
+            LaneQueue queue = lanes[lane.ordinal()];
+            long oldest = queue.queue.isEmpty() ? 0
+                    : System.currentTimeMillis() - queue.queue.peek().queued;
+            return new Metrics(lane, queue.queue.size(), queue.maxDepth, queue.sent,
+                    queue.queued, queue.totalWait, queue.maxWait, oldest);
         }
     }
 
     public void run() {
         while (run) {
+            Packet packet = null;
             synchronized (queueLock) {
-                if (queueSize < 5 && lastsent + delay < System.currentTimeMillis()) {
-                    queueSize++;
+                long now = System.currentTimeMillis();
+                LaneQueue ready = null;
+                for (LaneQueue queue : lanes) {
+                    if (!queue.queue.isEmpty()) {
+                        ready = queue;
+                        break;
+                    }
                 }
+                refill(now);
+
                 try {
-                    if (queue.size() > 0 && queueSize > 0 && client.getState() != ClientState.DISCONNECTED) {
-                        Packet packet = queue.poll();
-                        client.sendPacket(packet);
+                    if (ready == null) {
+                        queueLock.wait();
+                    } else if (client.getState() == ClientState.DISCONNECTED) {
+                        // Nobody tells us about reconnects, check back later
+                        queueLock.wait(interval * size);
+                    } else if (tokens <= 0) {
+                        queueLock.wait(Math.max(1, lastRefill + interval - now));
+                    } else {
+                        Entry entry = ready.queue.poll();
+                        long waited = now - entry.queued;
+                        tokens--;
+                        ready.sent++;
+                        ready.totalWait += waited;
+                        ready.maxWait = Math.max(ready.maxWait, waited);
+                        packet = entry.packet;
                     }
+                } catch (InterruptedException ex) {
+                }
+            }
+
+            // Send outside the lock, the client takes its write lock first
+            if (packet != null) {
+                try {
+                    client.writePacket(packet);
                 } catch (IOException ex) {
                     client.fireException(ex);
                 }
             }
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException ex) {
+        }
+    }
+
+    /** Counters of a lane, taken at one point in time */
+    public static class Metrics {
+
+        private final Lane lane;
+        private final int depth;
+        private final int maxDepth;
+        private final long sent;
+        private final long queued;
+        private final long totalWait;
+        private final long maxWait;
+        private final long oldestWait;
+
+        Metrics(Lane lane, int depth, int maxDepth, long sent, long queued, long totalWait, long maxWait, long oldestWait) {
+            this.lane = lane;
+            this.depth = depth;
+            this.maxDepth = maxDepth;
+            this.sent = sent;
+            this.queued = queued;
+            this.totalWait = totalWait;
+            this.maxWait = maxWait;
+            this.oldestWait = oldestWait;
+        }
+
+        public Lane getLane() { return lane; }
+        /** Returns the number of packets waiting */
+        public int getDepth() { return depth; }
+        /** Returns the largest number of packets that have been waiting at once */
+        public int getMaxDepth() { return maxDepth; }
+        /** Returns the number of packets sent, queued or not */
+        public long getSent() { return sent; }
+        /** Returns the number of packets that had to wait for a token */
+        public long getQueued() { return queued; }
+        /** Returns the average time (ms) a queued packet waited before it was sent */
+        public long getAverageWait() { return queued - depth > 0 ? totalWait / (queued - depth) : 0; }
+        /** Returns the longest time (ms) a queued packet waited before it was sent */
+        public long getMaxWait() { return maxWait; }
+        /** Returns how long (ms) the packet at the head of the lane has been waiting */
+        public long getOldestWait() { return oldestWait; }
+
+        @Override
+        public String toString() {
+            return lane + ": depth " + depth + " (max " + maxDepth + "), sent " + sent + ", queued " + queued
+                    + ", wait avg " + getAverageWait() + " ms, max " + maxWait + " ms";
+        }
+    }
+
+    /** Adds the tokens regained since the last refill, guarded by queueLock */
+    private void refill(long now) {
+        if (tokens >= size) {
+            lastRefill = now;
+        } else {
+            long gained = (now - lastRefill) / interval;
+            if (gained > 0) {
+                tokens = (int) Math.min(size, tokens + gained);
+                lastRefill = tokens >= size ? now : lastRefill + gained * interval;
             }
         }
     }
+
+    /** A queued packet */
+    private static class Entry {
+
+        final Packet packet;
+        final long queued;
+
+        Entry(Packet packet, long queued) {
+            this.packet = packet;
+            this.queued = queued;
+        }
+    }
+
+    /** The queue and counters of a lane, guarded by queueLock */
+    private static class LaneQueue {
+
+        final Queue<Entry> queue = new LinkedList<Entry>();
+        int maxDepth = 0;
+        long sent = 0;
+        long queued = 0;
+        long totalWait = 0;
+        long maxWait = 0;
+    }
 }
@@ -0,0 +1,125 @@
+/*
+ * PacketReplay.java
+ *
+ *************************************************************************
+ * Copyright 2026 The AnarchyTalk contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ao.chat;
+
+import ao.protocol.PacketCapture;
+import ao.protocol.packets.Packet;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>PacketReplay feeds a {@link PacketCapture} to a client as if the frames
+ * had just been read from the server. They are parsed by the client's packet
+ * factory and passed to all of its listeners, no connection is needed.</p>
+ *
+ * <p>Frames are replayed with their recorded timing scaled by a speed factor,
+ * or back to back to measure how fast the client and its listeners can keep
+ * up. Frames the client sent are skipped.</p>
+ */
+public class PacketReplay {
+
+    private final ChatClient m_client;
+    private volatile boolean m_stopped = false;
+
+    /** Creates a new instance of PacketReplay */
+    public PacketReplay(ChatClient client) {
+        m_client = client;
+    }   // end PacketReplay()
+
+    /**
+     * Replays a capture on the calling thread
+     *
+     * @param speed
+     *        1 for the recorded timing, 2 for twice as fast and so on,
+     *        0 or less to replay as fast as possible
+     * @throws IOException
+     *         if the stream does not hold a capture or fails
+     */
+    public Result replay(InputStream in, double speed) throws IOException {
+        m_stopped = false;
+        PacketCapture.Reader reader = new PacketCapture.Reader(in);
+        Result result = new Result();
+        long started = System.nanoTime();
+
+        try {
+            while (!m_stopped && reader.next()) {
+                if (reader.getDirection() != Packet.Direction.TO_CLIENT) {
+                    result.m_skipped++;
+                    continue;
+                }   // end if
+
+                if (speed > 0) {
+                    long due = started + (long) ((reader.getTime() - reader.getStartTime()) * 1000000L / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }   // end catch
+                    }   // end if
+                }   // end if
+
+                m_client.received(reader.getType(), reader.getPayload());
+                result.m_frames++;
+                result.m_bytes += 4 + reader.getLength();
+            }   // end while
+        } finally {
+            reader.close();
+        }   // end finally
+
+        result.m_elapsed = System.nanoTime() - started;
+        return result;
+    }   // end replay()
+
+    /** Stops a replay running on another thread after the current frame */
+    public void stop() {
+        m_stopped = true;
+    }   // end stop()
+
+    /** What a replay did and how long it took */
+    public static class Result {
+
+        private int m_frames = 0;
+        private int m_skipped = 0;
+        private long m_bytes = 0;
+        private long m_elapsed = 0;
+
+        /** Returns the number of frames passed to the client */
+        public int getFrames() { return m_frames; }
+        /** Returns the number of frames left out because the client sent them */
+        public int getSkipped() { return m_skipped; }
+        /** Returns the bytes passed to the client, frame headers included */
+        public long getBytes() { return m_bytes; }
+        /** Returns how long the replay took (ns) */
+        public long getElapsed() { return m_elapsed; }
+
+        public double getFramesPerSecond() {
+            return m_elapsed == 0 ? 0 : m_frames * 1e9 / m_elapsed;
+        }   // end getFramesPerSecond()
+
+        @Override
+        public String toString() {
+            return m_frames + " frames (" + m_bytes + " bytes) in " + (m_elapsed / 1000000L)
+                    + " ms, " + Math.round(getFramesPerSecond()) + " frames/s";
+        }   // end toString()
+    }   // end class Result
+}   // end class PacketReplay
@@ -27,6 +27,8 @@ import ao.protocol.packets.Packet;
 import ao.protocol.packets.bi.PingPacket;
 import ao.protocol.packets.utils.PacketFactory;
 import ao.protocol.packets.utils.SimplePacketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
@@ -63,23 +65,45 @@ public class ServerConnection implements Runnable {
     }   // end enum State
 
     public ServerConnection(Socket socket, boolean debug) {
+        this(socket, new SimplePacketFactory(), debug);
+    }
+
+    /**
+     * Creates a new instance of ServerConnection that parses what the client
+     * sends with the given factory, see {@link ao.protocol.packets.utils.ServerPacketFactory}
+     */
+    public ServerConnection(Socket socket, PacketFactory packetFactory, boolean debug) {
         m_socket = socket;
         m_debug = debug;
-        m_packetFactory = new SimplePacketFactory();
+        m_packetFactory = packetFactory;
     }
 
     public ServerState getState() {
         return m_state;
     }
 
+    /**
+     * Sets up the streams of the connection, so packets can be sent before
+     * the connection is run. Does nothing if the connection is open already.
+     */
+    public void open() throws IOException {
+        synchronized (m_stateLock) {
+            if (m_state == ServerState.DISCONNECTED) {
+                m_out = new DataOutputStream(new BufferedOutputStream(m_socket.getOutputStream()));
+                m_in = new DataInputStream(new BufferedInputStream(m_socket.getInputStream()));
+                m_state = ServerState.CONNECTED;
+            }
+        }
+    }
+
     public void run() {
-        try {
-            m_out = new DataOutputStream(m_socket.getOutputStream());
-            m_in = new DataInputStream(m_socket.getInputStream());
-            m_state = ServerState.CONNECTED;
-        } catch (IOException ex) {
-            m_state = ServerState.DISCONNECTED;
-            fireException(ex);
+        if (m_in == null) {
+            try {
+                open();
+            } catch (IOException ex) {
+                m_state = ServerState.DISCONNECTED;
+                fireException(ex);
+            }
         }
         while (getState() != ServerState.DISCONNECTED) {
             try {
@@ -92,7 +116,9 @@ public class ServerConnection implements Runnable {
                         }
                     }
                 }
-                firePacket(packet);
+                if (packet != null) {
+                    firePacket(packet);
+                }
             } catch (IOException ex) {
                 fireException(ex);
             }
@@ -105,7 +131,7 @@ public class ServerConnection implements Runnable {
             try {
                 // Read and parse a packet from the input stream
                 short type = m_in.readShort();
-                short length = m_in.readShort();
+                int length = m_in.readShort() & 0xFFFF;
                 byte[] data = new byte[length];
                 m_in.readFully(data);
 
@@ -204,6 +230,9 @@ public class ServerConnection implements Runnable {
 
     public void disconnect() throws IOException {
         synchronized (m_stateLock) {
+            if (m_state == ServerState.DISCONNECTED && m_socket.isClosed()) {
+                return;
+            }
             m_state = ServerState.DISCONNECTED;
             m_socket.close();
         }
@@ -225,28 +254,28 @@ public class ServerConnection implements Runnable {
     }   // end removeListener()
 
     protected void fireDisconnected() {
-        ServerListener[] listeners = m_listeners.getListeners(ServerListener.class);
+        ServerListener[] listeners = m_listeners.getSnapshot(ServerListener.class);
         for (ServerListener l : listeners) {
             l.disconnected(this);
         }   // end for
     }   // end fireDisconnected()
 
     protected void firePacket(Packet packet) {
-        ServerListener[] listeners = m_listeners.getListeners(ServerListener.class);
+        ServerListener[] listeners = m_listeners.getSnapshot(ServerListener.class);
         for (ServerListener l : listeners) {
             l.packet(this, packet);
         }   // end for
     }
 
     protected void fireException(Exception e) {
-        ServerListener[] listeners = m_listeners.getListeners(ServerListener.class);
+        ServerListener[] listeners = m_listeners.getSnapshot(ServerListener.class);
         for (ServerListener l : listeners) {
             l.exception(this, e);
         }   // end for
     }
 
     protected void println(String msg) {
-        ServerLogger[] listeners = m_listeners.getListeners(ServerLogger.class);
+        ServerLogger[] listeners = m_listeners.getSnapshot(ServerLogger.class);
         for (ServerLogger l : listeners) {
             l.print(this, msg);
         }   // end for
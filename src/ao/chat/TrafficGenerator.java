@@ -0,0 +1,199 @@
+/*
+ * TrafficGenerator.java
+ *
+ *************************************************************************
+ * Copyright 2026 The AnarchyTalk contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ao.chat;
+
+import java.util.Random;
+
+/**
+ * <p>TrafficGenerator sends scripted traffic through a {@link LoopbackServer}
+ * from a number of characters that have no client: channel messages, tells
+ * to the characters that are logged in, private channel messages and buddies
+ * logging in and out. Each kind of traffic has its own rate in messages per
+ * second, rates may be changed while the generator runs.</p>
+ *
+ * <p>The generator is seeded, so a script sends the same messages every time
+ * it is run against the same clients.</p>
+ */
+public class TrafficGenerator implements Runnable {
+
+    public enum Kind {
+
+        CHANNEL, TELL, PRIVATE_CHANNEL, BUDDY;
+    }   // end enum Kind
+
+    /** How often (ms) the generator wakes up to send what is due */
+    private static final long TICK = 10;
+    private static final String[] WORDS = {
+        "wtb", "wts", "lf", "team", "tower", "field", "notum", "wars", "ql200",
+        "implant", "symbiant", "pst", "anyone", "inferno", "pandemonium", "raid",
+        "omni", "clan", "neutral", "tl7", "buff", "heal", "please", "thanks"
+    };
+    private final LoopbackServer m_server;
+    private final int[] m_bots;
+    private final double[] m_rates = new double[Kind.values().length];
+    private final double[] m_due = new double[Kind.values().length];
+    private final long[] m_sent = new long[Kind.values().length];
+    private final Random m_random;
+    private Thread m_thread = null;
+    private volatile boolean m_running = false;
+
+    /** Creates a new instance of TrafficGenerator with bots named Bot1 to BotN */
+    public TrafficGenerator(LoopbackServer server, int bots) {
+        this(server, bots, 1);
+    }   // end TrafficGenerator()
+
+    /** Creates a new instance of TrafficGenerator with bots named Bot1 to BotN */
+    public TrafficGenerator(LoopbackServer server, int bots, long seed) {
+        m_server = server;
+        m_random = new Random(seed);
+        m_bots = new int[bots];
+        for (int i = 0; i < bots; ++i) {
+            m_bots[i] = server.addCharacter("Bot" + (i + 1));
+            server.setOnline(m_bots[i], true);
+        }   // end for
+    }   // end TrafficGenerator()
+
+    /** Returns the IDs of the bots */
+    public int[] getBots() {
+        return m_bots.clone();
+    }   // end getBots()
+
+    /** Sets how many messages of a kind are sent per second, 0 sends none */
+    public synchronized void setRate(Kind kind, double perSecond) {
+        m_rates[kind.ordinal()] = Math.max(0, perSecond);
+    }   // end setRate()
+
+    public synchronized double getRate(Kind kind) {
+        return m_rates[kind.ordinal()];
+    }   // end getRate()
+
+    /** Returns the number of messages of a kind that have been sent */
+    public synchronized long getSent(Kind kind) {
+        return m_sent[kind.ordinal()];
+    }   // end getSent()
+
+    public synchronized void start() {
+        if (m_thread == null || !m_thread.isAlive()) {
+            m_running = true;
+            m_thread = new Thread(this, "TrafficGenerator");
+            m_thread.setDaemon(true);
+            m_thread.start();
+        }   // end if
+    }   // end start()
+
+    public synchronized void stop() {
+        m_running = false;
+        if (m_thread != null) {
+            m_thread.interrupt();
+        }   // end if
+    }   // end stop()
+
+    public void run() {
+        long last = System.nanoTime();
+        while (m_running) {
+            try {
+                Thread.sleep(TICK);
+            } catch (InterruptedException ex) {
+                break;
+            }   // end catch
+
+            long now = System.nanoTime();
+            double elapsed = (now - last) / 1e9;
+            last = now;
+            for (Kind kind : Kind.values()) {
+                int count;
+                synchronized (this) {
+                    m_due[kind.ordinal()] += m_rates[kind.ordinal()] * elapsed;
+                    count = (int) m_due[kind.ordinal()];
+                    m_due[kind.ordinal()] -= count;
+                }   // end synchronized
+                for (int i = 0; i < count && m_running; ++i) {
+                    send(kind);
+                }   // end for
+            }   // end for
+        }   // end while
+    }   // end run()
+
+    /** Sends one message of a kind right away */
+    public void send(Kind kind) {
+        if (m_bots.length == 0) {
+            return;
+        }   // end if
+
+        int bot = m_bots[m_random.nextInt(m_bots.length)];
+        boolean sent = false;
+        switch (kind) {
+            case CHANNEL: {
+                long[] channels = m_server.getChannels();
+                if (channels.length > 0) {
+                    m_server.sendChannelMessage(bot, channels[m_random.nextInt(channels.length)], message());
+                    sent = true;
+                }   // end if
+                break;
+            }
+            case TELL: {
+                int[] online = m_server.getLoggedIn();
+                if (online.length > 0) {
+                    sent = m_server.sendTell(bot, online[m_random.nextInt(online.length)], message());
+                }   // end if
+                break;
+            }
+            case PRIVATE_CHANNEL: {
+                int[] online = m_server.getLoggedIn();
+                if (online.length > 0) {
+                    int owner = online[m_random.nextInt(online.length)];
+                    m_server.joinPrivateChannel(owner, bot);
+                    m_server.sendPrivateChannelMessage(owner, bot, message());
+                    sent = true;
+                }   // end if
+                break;
+            }
+            case BUDDY:
+                m_server.setOnline(bot, !m_server.isOnline(bot));
+                sent = true;
+                break;
+        }   // end switch
+
+        if (sent) {
+            synchronized (this) {
+                m_sent[kind.ordinal()]++;
+            }   // end synchronized
+        }   // end if
+    }   // end send()
+
+    /** Makes up a message, now and then with a link or a color like real chat */
+    private String message() {
+        StringBuilder msg = new StringBuilder();
+        int words = 3 + m_random.nextInt(20);
+        for (int i = 0; i < words; ++i) {
+            if (i > 0) {
+                msg.append(' ');
+            }   // end if
+            msg.append(WORDS[m_random.nextInt(WORDS.length)]);
+        }   // end for
+
+        int markup = m_random.nextInt(10);
+        if (markup == 0) {
+            msg.append(" <a href=\"text://").append(msg).append("\">Info</a>");
+        } else if (markup == 1) {
+            msg.insert(0, "<font color=#FFFF00>").append("</font>");
+        }   // end else if
+        return msg.toString();
+    }   // end message()
+}   // end class TrafficGenerator
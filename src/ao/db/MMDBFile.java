@@ -0,0 +1,208 @@
+/*
+ * MMDBFile.java
+ *
+ *************************************************************************
+ * Copyright 2026 The AnarchyTalk contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ao.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Reads message templates from the game's text.mdb file.</p>
+ *
+ * <p>The file is little endian. At offset 8 a sorted list of (category id, offset)
+ * pairs starts, every offset points at the sorted (instance id, offset) pairs of
+ * that category and those point at null terminated ISO-8859-1 strings. The lists
+ * are laid out back to back, so the first category's offset tells how many
+ * categories there are and every list ends where the next one starts.</p>
+ *
+ * <p>Nothing is parsed up front. The file is memory mapped (or wrapped, when it
+ * comes from a stream) and both lists are binary searched in place, so the only
+ * allocation is the string that is returned. Recently used strings are cached.</p>
+ */
+public class MMDBFile implements MMDBDatabase {
+
+    private static final int CATEGORY_OFFSET = 8;
+    private static final int ENTRY_SIZE = 8;
+    private final ByteBuffer m_data;
+    private final int m_categories;
+    private final int m_indexEnd;
+    private final Map<Long, String> m_cache;
+
+    /** Memory maps a text.mdb file */
+    public MMDBFile(File file) throws IOException {
+        this(map(file), 512);
+    }   // end MMDBFile()
+
+    /**
+     * Creates a new instance of MMDBFile over the contents of a text.mdb file
+     *
+     * @param data
+     *        the whole file, it is not modified
+     * @param cacheSize
+     *        how many strings are kept in the cache
+     * @throws IOException
+     *         if the data does not look like a text.mdb file
+     */
+    public MMDBFile(ByteBuffer data, final int cacheSize) throws IOException {
+        m_data = data.duplicate();
+        m_data.order(ByteOrder.LITTLE_ENDIAN);
+
+        int limit = m_data.limit();
+        if (limit < CATEGORY_OFFSET + ENTRY_SIZE) {
+            throw new IOException("File is too short to be a text.mdb file");
+        }   // end if
+
+        // The instances of the first category follow the last category entry
+        long first = offset(CATEGORY_OFFSET);
+        if (first < CATEGORY_OFFSET + ENTRY_SIZE || first + ENTRY_SIZE > limit
+                || (first - CATEGORY_OFFSET) % ENTRY_SIZE != 0) {
+            throw new IOException("Invalid category table in text.mdb file");
+        }   // end if
+        m_categories = (int) (first - CATEGORY_OFFSET) / ENTRY_SIZE;
+
+        // The strings are written after all index lists
+        m_indexEnd = (int) Math.min(offset((int) first), limit);
+
+        m_cache = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }   // end MMDBFile()
+
+    /** Reads a text.mdb file from a stream that can not be mapped, such as an asset */
+    public static MMDBFile load(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 20);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }   // end while
+        return new MMDBFile(ByteBuffer.wrap(out.toByteArray()), 512);
+    }   // end load()
+
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }   // end finally
+    }   // end map()
+
+    /** Returns the number of categories in the file */
+    public int getCategoryCount() {
+        return m_categories;
+    }   // end getCategoryCount()
+
+    public String getMessage(long cat_id, long msg_id) {
+        Long key = Long.valueOf((cat_id << 32) | (msg_id & 0xFFFFFFFFL));
+        synchronized (m_cache) {
+            String cached = m_cache.get(key);
+            if (cached != null) {
+                return cached;
+            }   // end if
+        }   // end synchronized
+
+        int category = find(cat_id, CATEGORY_OFFSET, m_categories);
+        if (category < 0) {
+            return null;
+        }   // end if
+
+        long start = offset(category);
+        long end = (category + ENTRY_SIZE < CATEGORY_OFFSET + m_categories * ENTRY_SIZE)
+                ? offset(category + ENTRY_SIZE) : m_indexEnd;
+        if (start < 0 || end > m_indexEnd || start > end) {
+            return null;
+        }   // end if
+
+        int instance = find(msg_id, (int) start, (int) (end - start) / ENTRY_SIZE);
+        if (instance < 0) {
+            return null;
+        }   // end if
+
+        String message = readString(offset(instance));
+        if (message != null) {
+            synchronized (m_cache) {
+                m_cache.put(key, message);
+            }   // end synchronized
+        }   // end if
+        return message;
+    }   // end getMessage()
+
+    /** Binary searches a list of (id, offset) entries, returns the entry's position or -1 */
+    private int find(long id, int base, int count) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = base + mid * ENTRY_SIZE;
+            long current = id(entry);
+            if (current < id) {
+                low = mid + 1;
+            } else if (current > id) {
+                high = mid - 1;
+            } else {
+                return entry;
+            }   // end else
+        }   // end while
+        return -1;
+    }   // end find()
+
+    private long id(int entry) {
+        return m_data.getInt(entry) & 0xFFFFFFFFL;
+    }   // end id()
+
+    private long offset(int entry) {
+        return m_data.getInt(entry + 4) & 0xFFFFFFFFL;
+    }   // end offset()
+
+    /** Reads a null terminated ISO-8859-1 string */
+    private String readString(long offset) {
+        int limit = m_data.limit();
+        if (offset >= limit) {
+            return null;
+        }   // end if
+
+        int start = (int) offset;
+        int end = start;
+        while (end < limit && m_data.get(end) != 0) {
+            end++;
+        }   // end while
+
+        char[] chars = new char[end - start];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (m_data.get(start + i) & 0xFF);
+        }   // end for
+        return new String(chars);
+    }   // end readString()
+}   // end class MMDBFile
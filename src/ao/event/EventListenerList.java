@@ -87,7 +87,9 @@ public class EventListenerList implements Serializable {
 	/* A null array to be shared by all empty listener lists*/
     private final static Object[] NULL_ARRAY = new Object[0];
     /* The list of ListenerType - Listener pairs */
-    protected transient Object[] listenerList = NULL_ARRAY;
+    protected transient volatile Object[] listenerList = NULL_ARRAY;
+    /* The listeners of each type, filtered from the current listenerList */
+    private transient volatile Snapshot snapshot = new Snapshot(NULL_ARRAY);
 
     /**
      * Passes back the event listener list as an array
@@ -118,18 +120,57 @@ public class EventListenerList implements Serializable {
      * 
      * @since 1.3
      */
+    public <T extends EventListener> T[] getListeners(Class<T> t) {
+	return getListeners(t, listenerList);
+    }
+
+    /**
+     * Returns all the listeners of the given type like
+     * {@link #getListeners(Class)}, but the array is filtered once after
+     * every change to the list and then shared, so firing an event does not
+     * allocate or check types. The array must not be modified.
+     *
+     * @param t the type of <code>EventListener</code> class being requested
+     * @return all of the listeners of the specified type, shared
+     */
+    @SuppressWarnings("unchecked")
+	public <T extends EventListener> T[] getSnapshot(Class<T> t) {
+	Object[] lList = listenerList;
+	Snapshot s = snapshot;
+	if (s.list != lList) {
+	    // The list changed, start over with the new one
+	    s = new Snapshot(lList);
+	    snapshot = s;
+	}
+	Object[] typed = s.typed.get(t);
+	if (typed == null) {
+	    typed = getListeners(t, lList);
+	    s.typed.put(t, typed);
+	}
+	return (T[])typed;
+    }
+
     @SuppressWarnings("unchecked")
-	public <T extends EventListener> T[] getListeners(Class<T> t) {
-	Object[] lList = listenerList; 
-	int n = getListenerCount(lList, t); 
-        T[] result = (T[])Array.newInstance(t, n); 
-	int j = 0; 
+	private <T extends EventListener> T[] getListeners(Class<T> t, Object[] lList) {
+	int n = getListenerCount(lList, t);
+        T[] result = (T[])Array.newInstance(t, n);
+	int j = 0;
 	for (int i = lList.length-2; i>=0; i-=2) {
 	    if (lList[i] == t) {
 		result[j++] = (T)lList[i+1];
 	    }
 	}
-	return result;   
+	return result;
+    }
+
+    /* The filtered arrays of one version of the listener list */
+    private static class Snapshot {
+	final Object[] list;
+	final Map<Class<?>, Object[]> typed = new java.util.concurrent.ConcurrentHashMap<Class<?>, Object[]>(4);
+
+	Snapshot(Object[] list) {
+	    this.list = list;
+	}
     }
 
     /**
@@ -255,6 +296,7 @@ public class EventListenerList implements Serializable {
 	private void readObject(ObjectInputStream s) 
 	throws IOException, ClassNotFoundException {
         listenerList = NULL_ARRAY;
+        snapshot = new Snapshot(NULL_ARRAY);
 	s.defaultReadObject();
 	Object listenerTypeOrNull;
 	
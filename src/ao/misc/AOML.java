@@ -1,20 +1,33 @@
 package ao.misc;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 public class AOML {
+
+    /** Largest message (in bytes) that is sent as one packet, the server cuts off longer ones */
+    public static final int MAX_MESSAGE = 7500;
+    private static final Pattern BLOB = Pattern.compile("^<a href=\"text://(.*)\">(.*)</a>$", Pattern.DOTALL);
+
     public static String Blob(String name, String content){
-        String message = "<a href=\"text://";
-        message += content.replaceAll("\"", "'");
-        message += "\">"+name+"</a>";
-        return message;
+        StringBuilder message = new StringBuilder(content.length() + name.length() + 24);
+        message.append("<a href=\"text://");
+        message.append(content.replace('"', '\''));
+        message.append("\">").append(name).append("</a>");
+        return message.toString();
     }
 
     public static String Chatcmd(String name, String content){
-        String message = "<a href='chatcmd://";
-        content = content.replaceAll("<", "&lt;");
-        content = content.replaceAll(">", "&gt;");
-        message += content.replaceAll("\'", "&#39;");
-        message += "\'>"+name+"</a>";
-        return message;
+        StringBuilder message = new StringBuilder(content.length() + name.length() + 24);
+        message.append("<a href='chatcmd://");
+        content = content.replace("<", "&lt;");
+        content = content.replace(">", "&gt;");
+        message.append(content.replace("'", "&#39;"));
+        message.append("'>").append(name).append("</a>");
+        return message.toString();
     }
     
     /*
@@ -23,4 +36,117 @@ public class AOML {
     public static String cleanString(String s){
         return s.replaceAll("<", "&lt;").replaceAll(">", "&gt;");
     }
+
+    /**
+     * Splits a message into pages that fit in one packet. A message that is a
+     * single blob becomes several numbered blobs, anything else is split
+     * between lines, preferably where no tag is left open.
+     *
+     * @param maxBytes
+     *        the largest page, in UTF-8 bytes
+     */
+    public static List<String> paginate(String message, int maxBytes) {
+        if (utf8Length(message) <= maxBytes) {
+            return Collections.singletonList(message);
+        }
+
+        Matcher blob = BLOB.matcher(message);
+        if (!blob.matches()) {
+            return split(message, maxBytes);
+        }
+
+        String content = blob.group(1);
+        String name = blob.group(2);
+        int overhead = utf8Length(Blob(name + " (Page 999 of 999)", ""));
+        List<String> chunks = split(content, Math.max(1, maxBytes - overhead));
+        List<String> pages = new ArrayList<String>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            pages.add(Blob(name + " (Page " + (i + 1) + " of " + chunks.size() + ")", chunks.get(i)));
+        }
+        return pages;
+    }
+
+    /** Splits text into chunks of at most maxBytes UTF-8 bytes */
+    private static List<String> split(String text, int maxBytes) {
+        List<String> chunks = new ArrayList<String>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = cut(text, start, maxBytes);
+            chunks.add(text.substring(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Returns where the chunk starting at start should end: after the last line
+     * with no tag left open, or else after the last line, or else before the
+     * last tag, or else wherever the limit is reached, but never between the
+     * two halves of a surrogate pair
+     */
+    private static int cut(String text, int start, int maxBytes) {
+        int bytes = 0;
+        int depth = 0;
+        int tag = -1;
+        int safe = -1;
+        int line = -1;
+        int outside = -1;
+
+        for (int i = start; i < text.length(); i++) {
+            char c = text.charAt(i);
+            bytes += utf8Length(c);
+            if (bytes > maxBytes) {
+                if (safe > start) { return safe; }
+                if (line > start) { return line; }
+                if (outside > start) { return outside; }
+                int end = Math.max(i, start + 1);
+                if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))
+                        && Character.isLowSurrogate(text.charAt(end))) {
+                    // Back off before the pair, unless it is all the chunk holds
+                    end = end - 1 > start ? end - 1 : end + 1;
+                }
+                return end;
+            }
+
+            if (c == '<') {
+                tag = i;
+                outside = i;
+            } else if (c == '>' && tag >= 0) {
+                depth = Math.max(0, depth + nesting(text, tag, i));
+                tag = -1;
+            } else if (c == '\n' && tag < 0) {
+                line = i + 1;
+                if (depth == 0) {
+                    safe = i + 1;
+                }
+            }
+        }
+        return text.length();
+    }
+
+    /** Returns how a tag changes the number of open elements */
+    private static int nesting(String text, int open, int close) {
+        if (text.charAt(open + 1) == '/') {
+            return -1;
+        } else if (text.charAt(close - 1) == '/') {
+            return 0;
+        }
+        String name = text.substring(open + 1, close).trim().toLowerCase();
+        return name.startsWith("br") || name.startsWith("img") ? 0 : 1;
+    }
+
+    private static int utf8Length(String s) {
+        int bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            bytes += utf8Length(s.charAt(i));
+        }
+        return bytes;
+    }
+
+    /** A surrogate pair takes 4 bytes, all counted on its first half */
+    private static int utf8Length(char c) {
+        if (Character.isHighSurrogate(c)) { return 4; }
+        if (Character.isLowSurrogate(c)) { return 0; }
+        return c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * AOMLBuilder.java
+ *
+ *************************************************************************
+ * Copyright 2026 The AnarchyTalk contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ao.misc;
+
+import java.util.List;
+
+/**
+ * Builds AOML text in a single buffer. Long output can be turned into
+ * several numbered blobs that each fit in a packet, see {@link AOML#paginate(String, int)}.
+ */
+public class AOMLBuilder {
+
+    private final StringBuilder m_text;
+
+    /** Creates a new instance of AOMLBuilder */
+    public AOMLBuilder() {
+        this(256);
+    }   // end AOMLBuilder()
+
+    /** Creates a new instance of AOMLBuilder with room for capacity characters */
+    public AOMLBuilder(int capacity) {
+        m_text = new StringBuilder(capacity);
+    }   // end AOMLBuilder()
+
+    /** Appends text as it is, tags included */
+    public AOMLBuilder append(String text) {
+        m_text.append(text);
+        return this;
+    }   // end append()
+
+    /** Appends text with &lt; and &gt; escaped */
+    public AOMLBuilder appendText(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '<') {
+                m_text.append("&lt;");
+            } else if (c == '>') {
+                m_text.append("&gt;");
+            } else {
+                m_text.append(c);
+            }   // end else
+        }   // end for
+        return this;
+    }   // end appendText()
+
+    /** Appends text in a color, such as {@code #00ff00} */
+    public AOMLBuilder appendColor(String color, String text) {
+        m_text.append("<font color='").append(color).append("'>").append(text).append("</font>");
+        return this;
+    }   // end appendColor()
+
+    /** Appends a link that runs a chat command */
+    public AOMLBuilder appendChatcmd(String name, String command) {
+        m_text.append(AOML.Chatcmd(name, command));
+        return this;
+    }   // end appendChatcmd()
+
+    /** Ends the current line, pages are only split between lines */
+    public AOMLBuilder newline() {
+        m_text.append('\n');
+        return this;
+    }   // end newline()
+
+    /** Returns the number of characters built so far */
+    public int length() {
+        return m_text.length();
+    }   // end length()
+
+    /** Returns the text wrapped in a single blob */
+    public String toBlob(String name) {
+        return AOML.Blob(name, m_text.toString());
+    }   // end toBlob()
+
+    /** Returns the text wrapped in as many numbered blobs as needed to stay under maxBytes each */
+    public List<String> toBlobs(String name, int maxBytes) {
+        return AOML.paginate(toBlob(name), maxBytes);
+    }   // end toBlobs()
+
+    @Override
+    public String toString() {
+        return m_text.toString();
+    }   // end toString()
+}   // end class AOMLBuilder
@@ -0,0 +1,103 @@
+/*
+ * LatencyHistogram.java
+ *
+ *************************************************************************
+ * Copyright 2026 The AnarchyTalk contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ao.plugins;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how long something took in power of two buckets: bucket 0 holds
+ * times under a microsecond and bucket i times from 2^(i-1) up to 2^i
+ * microseconds. Recording is lock free.
+ */
+public class LatencyHistogram {
+
+    public static final int BUCKETS = 32;
+    private final AtomicLongArray m_counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong m_count = new AtomicLong();
+    private final AtomicLong m_total = new AtomicLong();
+    private final AtomicLong m_max = new AtomicLong();
+
+    /** Records a time, in nanoseconds */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        m_counts.incrementAndGet(bucket);
+        m_count.incrementAndGet();
+        m_total.addAndGet(micros);
+
+        long max;
+        while ((max = m_max.get()) < micros && !m_max.compareAndSet(max, micros)) {
+            // Someone else raised the maximum, try again
+        }   // end while
+    }   // end record()
+
+    /** Returns the number of times recorded */
+    public long getCount() {
+        return m_count.get();
+    }   // end getCount()
+
+    /** Returns the number of times recorded in a bucket */
+    public long getCount(int bucket) {
+        return m_counts.get(bucket);
+    }   // end getCount()
+
+    /** Returns the largest time (microseconds) that falls in a bucket */
+    public static long getUpperBound(int bucket) {
+        return bucket == 0 ? 0 : (1L << bucket) - 1;
+    }   // end getUpperBound()
+
+    /** Returns the mean time in microseconds */
+    public long getMean() {
+        long count = m_count.get();
+        return count == 0 ? 0 : m_total.get() / count;
+    }   // end getMean()
+
+    /** Returns the longest time in microseconds */
+    public long getMax() {
+        return m_max.get();
+    }   // end getMax()
+
+    /**
+     * Returns the upper bound (microseconds) of the bucket the given
+     * percentile falls in, such as 0.99 for the 99th percentile
+     */
+    public long getPercentile(double percentile) {
+        long count = m_count.get();
+        if (count == 0) {
+            return 0;
+        }   // end if
+
+        long rank = (long) Math.ceil(percentile * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += m_counts.get(i);
+            if (seen >= rank) {
+                return Math.min(getUpperBound(i), getMax());
+            }   // end if
+        }   // end for
+        return getMax();
+    }   // end getPercentile()
+
+    @Override
+    public String toString() {
+        return getCount() + " runs, mean " + getMean() + " us, p50 " + getPercentile(0.5)
+                + " us, p99 " + getPercentile(0.99) + " us, max " + getMax() + " us";
+    }   // end toString()
+}   // end class LatencyHistogram
@@ -0,0 +1,305 @@
+/*
+ * PluginExecutor.java
+ *
+ *************************************************************************
+ * Copyright 2026 The AnarchyTalk contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ao.plugins;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs plugin commands on a bounded pool of worker threads so the thread
+ * reading packets never waits for a plugin. Every plugin runs at most
+ * {@link #setConcurrency(Plugin, int) a few} commands at once (one by default,
+ * so plugins see their commands in order), further commands wait in the
+ * plugin's own queue. A command that runs longer than the timeout is
+ * interrupted and reported as a {@link TimeoutException}. Its plugin keeps
+ * the slot until the command really returns and takes no new commands
+ * meanwhile, so a stuck plugin can neither run twice at once nor tie up
+ * more workers. How long each plugin takes is kept in a
+ * {@link LatencyHistogram}.
+ */
+public class PluginExecutor {
+
+    /** How many commands can wait for a busy plugin */
+    private static final int PENDING_LIMIT = 64;
+    private final PluginUser m_user;
+    private final String m_name;
+    private final ThreadPoolExecutor m_pool;
+    private final ScheduledThreadPoolExecutor m_timer;
+    private final Map<Plugin, Lane> m_lanes = new HashMap<Plugin, Lane>();
+    private volatile long m_timeout = 30000;
+
+    /** Creates a new instance of PluginExecutor with four threads */
+    public PluginExecutor(PluginUser user, String name) {
+        this(user, name, 4, 256);
+    }   // end PluginExecutor()
+
+    /**
+     * Creates a new instance of PluginExecutor
+     *
+     * @param user
+     *        exceptions thrown by plugins are reported to it
+     * @param name
+     *        the name exceptions are reported under
+     * @param threads
+     *        the number of worker threads
+     * @param queueSize
+     *        how many commands can wait for a worker, more are rejected
+     */
+    public PluginExecutor(PluginUser user, String name, int threads, int queueSize) {
+        m_user = user;
+        m_name = name;
+        m_pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new Factory("Plugin"));
+        m_timer = new ScheduledThreadPoolExecutor(1, new Factory("PluginTimeout"));
+    }   // end PluginExecutor()
+
+    /** Sets how long (ms) a command may run before it is interrupted */
+    public void setTimeout(long timeout) {
+        m_timeout = timeout;
+    }   // end setTimeout()
+
+    /** Sets how many commands a plugin may run at the same time */
+    public void setConcurrency(Plugin plugin, int limit) {
+        Lane lane = lane(plugin);
+        synchronized (lane) {
+            lane.m_limit = Math.max(1, limit);
+        }   // end synchronized
+    }   // end setConcurrency()
+
+    /** Returns the run times of a plugin's commands */
+    public LatencyHistogram getLatency(Plugin plugin) {
+        return lane(plugin).m_latency;
+    }   // end getLatency()
+
+    /** Returns the number of commands of a plugin that timed out */
+    public int getTimeouts(Plugin plugin) {
+        return lane(plugin).m_timeouts.get();
+    }   // end getTimeouts()
+
+    /** Returns the run times of every plugin that has run, by plugin name */
+    public Map<String, LatencyHistogram> getLatencies() {
+        Map<String, LatencyHistogram> latencies = new HashMap<String, LatencyHistogram>();
+        synchronized (m_lanes) {
+            for (Map.Entry<Plugin, Lane> entry : m_lanes.entrySet()) {
+                latencies.put(entry.getKey().getName(), entry.getValue().m_latency);
+            }   // end for
+        }   // end synchronized
+        return latencies;
+    }   // end getLatencies()
+
+    /** Forgets a plugin that has been removed */
+    public void remove(Plugin plugin) {
+        synchronized (m_lanes) {
+            m_lanes.remove(plugin);
+        }   // end synchronized
+    }   // end remove()
+
+    /** Stops the worker threads, commands that are still queued are dropped */
+    public void shutdown() {
+        m_pool.shutdownNow();
+        m_timer.shutdownNow();
+    }   // end shutdown()
+
+    /**
+     * Runs a command, it is started now or queued behind the plugin's
+     * other commands. Never blocks.
+     *
+     * @return false if the command was rejected because too much is queued
+     */
+    public boolean execute(Plugin plugin, Command command) {
+        Lane lane = lane(plugin);
+        Task task = new Task(lane, plugin, command);
+        synchronized (lane) {
+            if (lane.m_stuck > 0) {
+                m_user.exception(m_name, new RejectedExecutionException(
+                        plugin.getName() + " is stuck in a command that timed out, dropped " + command.getName()));
+                return false;
+            }   // end if
+            if (lane.m_running >= lane.m_limit) {
+                if (lane.m_pending.size() >= PENDING_LIMIT) {
+                    m_user.exception(m_name, new RejectedExecutionException(
+                            plugin.getName() + " has too many commands waiting, dropped " + command.getName()));
+                    return false;
+                }   // end if
+                lane.m_pending.add(task);
+                return true;
+            }   // end if
+            lane.m_running++;
+        }   // end synchronized
+        return start(task);
+    }   // end execute()
+
+    private Lane lane(Plugin plugin) {
+        synchronized (m_lanes) {
+            Lane lane = m_lanes.get(plugin);
+            if (lane == null) {
+                lane = new Lane();
+                m_lanes.put(plugin, lane);
+            }   // end if
+            return lane;
+        }   // end synchronized
+    }   // end lane()
+
+    private boolean start(Task task) {
+        try {
+            m_pool.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            m_user.exception(m_name, new RejectedExecutionException(
+                    "No worker available, dropped " + task.m_command.getName()));
+            finish(task.m_lane);
+            return false;
+        }   // end catch
+    }   // end start()
+
+    /** Frees a plugin's slot, or hands it to the next command waiting for it */
+    private void finish(Lane lane) {
+        Task next;
+        synchronized (lane) {
+            next = lane.m_pending.poll();
+            if (next == null) {
+                lane.m_running--;
+                return;
+            }   // end if
+        }   // end synchronized
+        start(next);
+    }   // end finish()
+
+    /** The queue and statistics of one plugin, guarded by itself */
+    private static class Lane {
+
+        private int m_limit = 1;
+        private int m_running = 0;
+        /** Commands that timed out and have not returned yet */
+        private int m_stuck = 0;
+        private final Queue<Task> m_pending = new LinkedList<Task>();
+        private final LatencyHistogram m_latency = new LatencyHistogram();
+        private final AtomicInteger m_timeouts = new AtomicInteger();
+    }   // end class Lane
+
+    /** A command to run, it ends either when the plugin returns or when it times out */
+    private class Task implements Runnable {
+
+        private final Lane m_lane;
+        private final Plugin m_plugin;
+        private final Command m_command;
+        private Thread m_thread = null;
+        private boolean m_done = false;
+        private long m_start;
+
+        public Task(Lane lane, Plugin plugin, Command command) {
+            m_lane = lane;
+            m_plugin = plugin;
+            m_command = command;
+        }   // end Task()
+
+        public void run() {
+            synchronized (this) {
+                m_thread = Thread.currentThread();
+                m_start = System.nanoTime();
+            }   // end synchronized
+            ScheduledFuture<?> timeout = m_timer.schedule(new Runnable() {
+
+                public void run() {
+                    expire();
+                }
+            }, m_timeout, TimeUnit.MILLISECONDS);
+
+            Exception failure = null;
+            try {
+                m_plugin.execute(m_command);
+            } catch (Exception e) {
+                failure = e;
+            } finally {
+                timeout.cancel(false);
+            }   // end finally
+
+            boolean expired;
+            synchronized (this) {
+                expired = m_done;
+                m_done = true;
+                m_thread = null;
+                // An interrupt meant for this command must not hit the next one
+                Thread.interrupted();
+            }   // end synchronized
+
+            if (expired) {
+                synchronized (m_lane) {
+                    m_lane.m_stuck--;
+                }   // end synchronized
+            } else {
+                m_lane.m_latency.record(System.nanoTime() - m_start);
+                if (failure != null) {
+                    m_user.exception(m_name, failure);
+                }   // end if
+            }   // end else
+            // The slot is only freed once the plugin has returned
+            finish(m_lane);
+        }   // end run()
+
+        private void expire() {
+            synchronized (this) {
+                if (m_done) {
+                    return;
+                }   // end if
+                m_done = true;
+                if (m_thread != null) {
+                    m_thread.interrupt();
+                }   // end if
+            }   // end synchronized
+            synchronized (m_lane) {
+                m_lane.m_stuck++;
+            }   // end synchronized
+
+            m_lane.m_latency.record(System.nanoTime() - m_start);
+            m_lane.m_timeouts.incrementAndGet();
+            m_user.exception(m_name, new TimeoutException(m_plugin.getName() + " took longer than "
+                    + m_timeout + " ms to run " + m_command.getName()));
+            // The plugin keeps its slot and worker until it returns
+        }   // end expire()
+    }   // end class Task
+
+    /** Creates named daemon threads */
+    private static class Factory implements ThreadFactory {
+
+        private final String m_prefix;
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        public Factory(String prefix) {
+            m_prefix = prefix;
+        }   // end Factory()
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, m_prefix + "-" + m_count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }   // end newThread()
+    }   // end class Factory
+}   // end class PluginExecutor
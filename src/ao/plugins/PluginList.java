@@ -20,8 +20,14 @@
 package ao.plugins;
 
 import ao.plugins.Reply.Channel;
-import ao.misc.AOML;
+import ao.misc.AOMLBuilder;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 public class PluginList {
 
@@ -30,12 +36,14 @@ public class PluginList {
     private boolean cononly;
     private String prefix;
     private String name;
+    /** Command name, alias or unique prefix (all lower case) to the commands it runs */
+    private volatile Map<String, Route[]> routes = Collections.emptyMap();
+    private final Map<String, String> aliases = new HashMap<String, String>();
+    private boolean prefixMatching = false;
+    private final PluginExecutor executor;
 
     public PluginList(PluginUser u, String p, String n) {
-        user = u;
-        cononly = false;
-        prefix = p;
-        name = n;
+        this(u, p, n, false);
     }
 
     public PluginList(PluginUser u, String p, String n, boolean con) {
@@ -43,37 +51,116 @@ public class PluginList {
         cononly = con;
         prefix = p;
         name = n;
+        executor = new PluginExecutor(u, n);
     }
 
     public String helpMenu(int permission) {
-        String help = "";
+        AOMLBuilder help = new AOMLBuilder(1024);
         for (Plugin plugin : plugins) {
             if (permission >= plugin.getPermissions(null)) {
-                help += "<font color='#00ff00'>" + plugin.getName() + "</font>\n\n";
+                help.appendColor("#00ff00", plugin.getName()).newline().newline();
 
                 String[] commands = plugin.getCommands();
                 for (String command : commands) {
                     if (permission >= plugin.getPermissions(command)) {
-                        help += AOML.Chatcmd(command, "/tell " + name + " " + prefix + "help " + command) + "\n";
+                        help.appendChatcmd(command, "/tell " + name + " " + prefix + "help " + command).newline();
                     }
                 }   // end for
-                help += "\n";
+                help.newline();
             }
         }   // end for
-        return AOML.Blob("Help Menu", help);
+        return help.toBlob("Help Menu");
     }
 
     public int getModules() {
         return plugins.size();
     }
 
-    public void add(Plugin plugin) {
+    public synchronized void add(Plugin plugin) {
         plugin.setBotName(name);
         plugin.setPrefix(prefix);
         plugin.uses(user);
         plugins.add(plugin);
+        rebuild();
     }
     
+    /**
+     * Makes alias run the same plugins as command, a command
+     * with the same name as the alias takes precedence
+     */
+    public synchronized void addAlias(String alias, String command) {
+        aliases.put(alias.toLowerCase(Locale.ENGLISH), command.toLowerCase(Locale.ENGLISH));
+        rebuild();
+    }
+
+    public synchronized void removeAlias(String alias) {
+        aliases.remove(alias.toLowerCase(Locale.ENGLISH));
+        rebuild();
+    }
+
+    /** Sets whether a command can be abbreviated to any prefix no other command shares */
+    public synchronized void setPrefixMatching(boolean prefixMatching) {
+        this.prefixMatching = prefixMatching;
+        rebuild();
+    }
+
+    /**
+     * Rebuilds the command index, this happens whenever plugins or aliases
+     * are added or removed and must be done by hand after a plugin changes
+     * its commands or their permissions
+     */
+    public synchronized void rebuild() {
+        Map<String, Route[]> index = new HashMap<String, Route[]>();
+        for (Plugin plugin : plugins) {
+            for (String command : plugin.getCommands()) {
+                String key = command.toLowerCase(Locale.ENGLISH);
+                Route[] current = index.get(key);
+                Route[] updated = new Route[current == null ? 1 : current.length + 1];
+                if (current != null) {
+                    System.arraycopy(current, 0, updated, 0, current.length);
+                }
+                updated[updated.length - 1] = new Route(plugin, command, plugin.getPermissions(command));
+                index.put(key, updated);
+            }
+        }   // end for
+
+        for (Map.Entry<String, String> alias : aliases.entrySet()) {
+            Route[] target = index.get(alias.getValue());
+            if (target != null && !index.containsKey(alias.getKey())) {
+                index.put(alias.getKey(), target);
+            }
+        }   // end for
+
+        if (prefixMatching) {
+            Map<String, Route[]> abbreviations = new HashMap<String, Route[]>();
+            Set<String> ambiguous = new HashSet<String>();
+            for (Map.Entry<String, Route[]> entry : index.entrySet()) {
+                String key = entry.getKey();
+                for (int i = 1; i < key.length(); i++) {
+                    String abbreviation = key.substring(0, i);
+                    if (index.containsKey(abbreviation) || ambiguous.contains(abbreviation)) {
+                        continue;
+                    }
+                    Route[] existing = abbreviations.get(abbreviation);
+                    if (existing == null) {
+                        abbreviations.put(abbreviation, entry.getValue());
+                    } else if (existing != entry.getValue()) {
+                        abbreviations.remove(abbreviation);
+                        ambiguous.add(abbreviation);
+                    }
+                }
+            }   // end for
+            index.putAll(abbreviations);
+        }   // end if
+
+        routes = index;
+    }
+
+    /** Returns the commands a name (command, alias or prefix) runs, or null */
+    private Route[] find(String command) {
+        return command == null ? null : routes.get(command.toLowerCase(Locale.ENGLISH));
+    }
+
     public void setBotName(String name){
         this.name = name;
         for(Plugin plugin : plugins){
@@ -92,14 +179,36 @@ public class PluginList {
         return plugins.get(i);
     }
 
-    public void remove(Plugin module) {
+    public synchronized void remove(Plugin module) {
         plugins.remove(module);
+        executor.remove(module);
+        rebuild();
+    }
+
+    public synchronized void remove(int i) {
+        executor.remove(plugins.remove(i));
+        rebuild();
+    }
+
+    /** Returns the pool plugin commands run on */
+    public PluginExecutor getExecutor() {
+        return executor;
+    }
+
+    /** Returns how long each plugin takes to run, by plugin name */
+    public Map<String, LatencyHistogram> getLatencies() {
+        return executor.getLatencies();
     }
 
-    public void remove(int i) {
-        plugins.remove(i);
+    /** Stops the threads plugin commands run on */
+    public void shutdown() {
+        executor.shutdown();
     }
 
+    /**
+     * Runs a command. Plugins run it on the executor, so this returns
+     * before they are done and only tells whether a plugin took the command.
+     */
     public boolean execute(Command c) {
         boolean executed = false;
         if (!cononly || c.getChannel() == Channel.CON) {
@@ -109,26 +218,24 @@ public class PluginList {
                 executed = true;
             //Command information
             } else if (c.getName().toLowerCase().compareTo("help") == 0 && c.getArgs().length > 0 && c.getArgs()[0] != null) {
-                for (Plugin plugin : plugins) {
-                    String[] commands = plugin.getCommands();
-                    for (String cmd : commands) {
-                        if (cmd.compareTo(c.getArgs()[0]) == 0) {
-                            Reply.send(name, user, c.getChannel(), c.getChannelid(), c.getCharacterid(), plugin.help(c));
-                            executed = true;
-                        }
+                Route[] found = find(c.getArgs()[0]);
+                if (found != null) {
+                    for (Route route : found) {
+                        String[] args = c.getArgs().clone();
+                        args[0] = route.command;
+                        Command named = new Command(c.getChannel(), c.getChannelid(), c.getCharacterid(), c.getPermission(), c.getName(), args);
+                        Reply.send(name, user, c.getChannel(), c.getChannelid(), c.getCharacterid(), route.plugin.help(named));
+                        executed = true;
                     }
                 }
             //Execute a command
             } else {
-                for (Plugin plugin : plugins) {
-                    String[] commands = plugin.getCommands();
-                    for (String cmd : commands) {
-                        if (cmd.compareTo(c.getName()) == 0 && c.getPermission() >= plugin.getPermissions(cmd)) {
-                            try {
-                                executed = plugin.execute(c);
-                            } catch (Exception e) {
-                                user.exception(name, e);
-                            }
+                Route[] found = find(c.getName());
+                if (found != null) {
+                    for (Route route : found) {
+                        if (c.getPermission() >= route.permission) {
+                            // Plugins run on the executor, never on the thread reading packets
+                            executed = executor.execute(route.plugin, named(c, route.command));
                         }
                     }
                 }
@@ -136,4 +243,29 @@ public class PluginList {
         }
         return executed;
     }
+
+    /**
+     * Returns the command under the name the plugin registered, plugins only
+     * know their own names and not the aliases or prefixes that lead to them
+     */
+    private static Command named(Command c, String command) {
+        if (c.getName().equalsIgnoreCase(command)) {
+            return c;
+        }
+        return new Command(c.getChannel(), c.getChannelid(), c.getCharacterid(), c.getPermission(), command, c.getArgs());
+    }
+
+    /** A command of a plugin and the permission needed to run it */
+    private static class Route {
+
+        final Plugin plugin;
+        final String command;
+        final int permission;
+
+        Route(Plugin plugin, String command, int permission) {
+            this.plugin = plugin;
+            this.command = command;
+            this.permission = permission;
+        }
+    }
 }
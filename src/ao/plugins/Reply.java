@@ -1,8 +1,15 @@
 package ao.plugins;
 
+import ao.chat.ChatClient;
+import ao.chat.PacketQueue;
+import ao.misc.AOML;
 import ao.misc.Convert;
+import ao.protocol.packets.Packet;
 import ao.protocol.packets.Packet.Direction;
 import ao.protocol.packets.bi.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Reply {
     
@@ -16,27 +23,40 @@ public class Reply {
     
     public static void send(String name, PluginUser user, Channel channel, byte[] channelid, int id, String msg) {
         try {
-            switch (channel) {
-                case TELL:
-                    PrivateMessagePacket tellPacket = new PrivateMessagePacket(id, msg, Direction.TO_SERVER);
-                    user.sendPacket(tellPacket);
-                    break;
-                case PRIVATE:
-                    PrivateChannelMessagePacket pcPacket = new PrivateChannelMessagePacket(Convert.byteToInt(channelid), msg);
-                    user.sendPacket(pcPacket);
-                    break;
-                case GROUP:
-                    ChannelMessagePacket cPacket = new ChannelMessagePacket(channelid, msg);
-                    user.sendPacket(cPacket);
-                    break;
-                case CON:
-                    user.print(name, msg);
-                    break;
-                default:
-                    throw new Exception("Channel reply error");
+            List<Packet> packets = new ArrayList<Packet>();
+            for (String page : AOML.paginate(msg, AOML.MAX_MESSAGE)) {
+                switch (channel) {
+                    case TELL:
+                        packets.add(new PrivateMessagePacket(id, page, Direction.TO_SERVER));
+                        break;
+                    case PRIVATE:
+                        packets.add(new PrivateChannelMessagePacket(Convert.byteToInt(channelid), page));
+                        break;
+                    case GROUP:
+                        packets.add(new ChannelMessagePacket(channelid, page));
+                        break;
+                    case CON:
+                        user.print(name, page);
+                        break;
+                    default:
+                        throw new Exception("Channel reply error");
+                }
             }
+            send(user, packets);
         } catch (Exception e) {
             user.exception(name, e);
         }
     }
+
+    /** Sends a reply through the plugin lane of the client's flood queue, pages stay together */
+    private static void send(PluginUser user, List<Packet> packets) throws IOException {
+        ChatClient client = user.getClient();
+        if (client == null) {
+            for (Packet packet : packets) {
+                user.sendPacket(packet);
+            }
+        } else if (!packets.isEmpty()) {
+            client.sendPackets(packets, PacketQueue.Lane.PLUGIN);
+        }
+    }
 }
@@ -0,0 +1,120 @@
+/*
+ * AsyncPacketListener.java
+ *
+ *************************************************************************
+ * Copyright 2026 The AnarchyTalk contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ao.protocol;
+
+import ao.protocol.packets.Packet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Delivers packets to another listener on a thread of its own, so a slow
+ * listener does not hold up the thread reading from the server. Listeners
+ * that share an executor see their packets in the order they arrived.
+ * The executor's queue is not bounded, the reader never waits for it.
+ * A listener that throws does not stop the deliveries, the exception is
+ * handed to a {@link ClientListener} as it would be on the reading thread.
+ */
+public class AsyncPacketListener implements PacketListener {
+
+    private final PacketListener m_listener;
+    private final ExecutorService m_executor;
+    private final ClientListener m_errors;
+
+    /** Creates a new instance of AsyncPacketListener with a thread of its own */
+    public AsyncPacketListener(PacketListener listener) {
+        this(listener, newExecutor("AsyncPacketListener"));
+    }   // end AsyncPacketListener()
+
+    /**
+     * Creates a new instance of AsyncPacketListener
+     *
+     * @param listener
+     *        the listener packets are delivered to
+     * @param executor
+     *        runs the deliveries, share a single threaded one to keep
+     *        several listeners in order
+     */
+    public AsyncPacketListener(PacketListener listener, ExecutorService executor) {
+        this(listener, executor, null);
+    }   // end AsyncPacketListener()
+
+    /**
+     * Creates a new instance of AsyncPacketListener
+     *
+     * @param listener
+     *        the listener packets are delivered to
+     * @param executor
+     *        runs the deliveries, share a single threaded one to keep
+     *        several listeners in order
+     * @param errors
+     *        told about exceptions the listener throws, usually one of the
+     *        client's listeners, or null to print them
+     */
+    public AsyncPacketListener(PacketListener listener, ExecutorService executor, ClientListener errors) {
+        m_listener = listener;
+        m_executor = executor;
+        m_errors = errors;
+    }   // end AsyncPacketListener()
+
+    /** Creates a single threaded executor with a daemon thread */
+    public static ExecutorService newExecutor(final String name) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }   // end newExecutor()
+
+    public void packet(final Client bot, final Packet packet) {
+        try {
+            m_executor.execute(new Runnable() {
+
+                public void run() {
+                    try {
+                        m_listener.packet(bot, packet);
+                    } catch (RuntimeException e) {
+                        // Thrown on the delivery thread it would end the process
+                        if (m_errors != null) {
+                            m_errors.exception(bot, e);
+                        } else {
+                            e.printStackTrace();
+                        }   // end else
+                    }   // end catch
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The executor has been shut down, nobody is listening any more
+        }   // end catch
+    }   // end packet()
+
+    /** Returns the listener packets are delivered to */
+    public PacketListener getListener() {
+        return m_listener;
+    }   // end getListener()
+
+    /** Stops delivering packets */
+    public void shutdown() {
+        m_executor.shutdown();
+    }   // end shutdown()
+}   // end class AsyncPacketListener
@@ -20,60 +20,382 @@
 
 package ao.protocol;
 
-import java.util.HashMap;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
- * <p></p>
+ * <p>Maps character IDs to names and names to character IDs.</p>
+ *
+ * <p>Both directions are open addressing tables over the same immutable entries,
+ * so IDs are never boxed and every name is stored once. Names are matched ignoring
+ * case. Lookups never lock, only changes to the table are serialized.</p>
+ *
+ * <p>A table created with a maximum size evicts the entries that have not been
+ * looked up lately (second chance / CLOCK) once it is full. The table can be saved
+ * with {@link #snapshot(DataOutput)} and loaded again with {@link #restore(DataInput)}.</p>
  *
  * @author Paul Smith
  */
 public class CharacterIDTable {
     
-    private HashMap<String, Integer> m_nameToIDMap;
-    private HashMap<Integer, String> m_IDToNameMap;
+    /** The ID the server replies with for characters that do not exist */
+    public static final int UNKNOWN = -1;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int INITIAL_CAPACITY = 256;
+    /** Marks a removed slot, lookups probe past it */
+    private static final Entry TOMBSTONE = new Entry(UNKNOWN, "", 0);
+    
+    private final int m_maxSize;
+    private volatile Table m_table;
+    private volatile int m_size = 0;
+    private int m_hand = 0;
     
     private final Object m_tableLock = new Object();
     
     /** Creates a new instance of AOCharacterIDTable */
     public CharacterIDTable() {
-        m_nameToIDMap = new HashMap<String, Integer>(134);
-        m_IDToNameMap = new HashMap<Integer, String>(134);
+        this(0);
+    }   // end AOCharacterIDTable()
+    
+    /** 
+     * Creates a new instance of AOCharacterIDTable 
+     *
+     * @param maxSize
+     *        the maximum number of characters kept, or 0 for no limit
+     */
+    public CharacterIDTable(int maxSize) {
+        m_maxSize = maxSize;
+        m_table = new Table(INITIAL_CAPACITY);
     }   // end AOCharacterIDTable()
     
     public void reset() {
         synchronized (m_tableLock) { 
-            m_nameToIDMap.clear();
-            m_IDToNameMap.clear();
+            m_table = new Table(INITIAL_CAPACITY);
+            m_size = 0;
+            m_hand = 0;
         }   // end synchronized
-        
-        System.gc();
     }   // end reset()
     
+    /** Returns the number of characters in the table */
+    public int size() {
+        return m_size;
+    }   // end size()
+    
+    /**
+     * Adds a character, replacing whatever the table knew about its ID or name.
+     * Characters that do not exist ({@link #UNKNOWN}) are only stored by name.
+     */
     public void add(int id, String name) {
-        add( Integer.valueOf(id), name );
+        if (name == null) {
+            return;
+        }   // end if
+        
+        int hash = hash(name);
+        synchronized (m_tableLock) { 
+            Table table = m_table;
+            Entry old = table.findName(name, hash);
+            if (old != null) {
+                if (old.id == id && old.name.equals(name)) {
+                    old.used = true;
+                    return;
+                }   // end if
+                remove(table, old);
+            }   // end if
+            if (id != UNKNOWN) {
+                old = table.findID(id);
+                if (old != null) {
+                    remove(table, old);
+                }   // end if
+            }   // end if
+            
+            if (m_maxSize > 0 && m_size >= m_maxSize) {
+                evict(table);
+            }   // end if
+            
+            table = ensureCapacity(table);
+            Entry entry = new Entry(id, name, hash);
+            table.insertName(entry);
+            if (id != UNKNOWN) {
+                table.insertID(entry);
+            }   // end if
+            m_size++;
+        }   // end synchronized
     }   // end add
     
     public void add(Integer id, String name) {
-        synchronized (m_tableLock) { 
-            m_nameToIDMap.put(name, id);
-            m_IDToNameMap.put(id, name);
-        }   // end synchronized
+        if (id != null) {
+            add(id.intValue(), name);
+        }   // end if
     }   // end add
     
+    /** Returns the ID of a character, or null if the character is not in the table */
     public Integer getID(String name) {
-        synchronized (m_tableLock) { 
-            return m_nameToIDMap.get(name);
-        }   // end synchronized
+        Entry entry = findName(name);
+        return entry == null ? null : Integer.valueOf(entry.id);
     }   // end getID
     
-    public String getName(int id) {
-        return getName( Integer.valueOf(id) );
+    /** 
+     * Returns the ID of a character 
+     *
+     * @param notFound
+     *        the value returned if the character is not in the table
+     */
+    public int getID(String name, int notFound) {
+        Entry entry = findName(name);
+        return entry == null ? notFound : entry.id;
     }   // end getID
     
+    public String getName(int id) {
+        Entry entry = m_table.findID(id);
+        if (entry == null) {
+            return null;
+        }   // end if
+        entry.used = true;
+        return entry.name;
+    }   // end getName
+    
     public String getName(Integer id) {
-        synchronized (m_tableLock) { 
-            return m_IDToNameMap.get(id);
+        return id == null ? null : getName(id.intValue());
+    }   // end getName
+    
+    private Entry findName(String name) {
+        if (name == null) {
+            return null;
+        }   // end if
+        Entry entry = m_table.findName(name, hash(name));
+        if (entry != null) {
+            entry.used = true;
+        }   // end if
+        return entry;
+    }   // end findName()
+    
+    /** 
+     * Writes the known characters to a stream, characters that do not exist are left out 
+     *
+     * @see #restore(DataInput)
+     */
+    public void snapshot(DataOutput out) throws IOException {
+        int[] ids;
+        String[] names;
+        int count = 0;
+        
+        synchronized (m_tableLock) {
+            Table table = m_table;
+            ids = new int[m_size];
+            names = new String[m_size];
+            for (int i = 0; i < table.m_byName.length(); i++) {
+                Entry entry = table.m_byName.get(i);
+                if (entry != null && entry != TOMBSTONE && entry.id != UNKNOWN) {
+                    ids[count] = entry.id;
+                    names[count] = entry.name;
+                    count++;
+                }   // end if
+            }   // end for
         }   // end synchronized
-    }   // end getID
+        
+        out.writeInt(SNAPSHOT_VERSION);
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeInt(ids[i]);
+            out.writeUTF(names[i]);
+        }   // end for
+    }   // end snapshot()
+    
+    /** 
+     * Adds the characters written by {@link #snapshot(DataOutput)} to the table 
+     *
+     * @throws IOException
+     *         if the stream fails or does not hold a snapshot
+     */
+    public void restore(DataInput in) throws IOException {
+        int version = in.readInt();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("Unknown character table snapshot version " + version);
+        }   // end if
+        
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int id = in.readInt();
+            add(id, in.readUTF());
+        }   // end for
+    }   // end restore()
+    
+    /** Removes an entry from both directions, must hold the table lock */
+    private void remove(Table table, Entry entry) {
+        table.removeName(entry);
+        if (entry.id != UNKNOWN) {
+            table.removeID(entry);
+        }   // end if
+        m_size--;
+    }   // end remove()
+    
+    /** Removes the first entry the clock hand finds unused, must hold the table lock */
+    private void evict(Table table) {
+        int capacity = table.m_byName.length();
+        for (int i = 0; i < capacity * 2; i++) {
+            Entry entry = table.m_byName.get(m_hand);
+            m_hand = (m_hand + 1) & table.m_mask;
+            
+            if (entry == null || entry == TOMBSTONE) {
+                continue;
+            } else if (entry.used) {
+                entry.used = false;
+            } else {
+                remove(table, entry);
+                return;
+            }   // end else
+        }   // end for
+    }   // end evict()
+    
+    /** 
+     * Rebuilds the table once three quarters of its slots are taken, 
+     * must hold the table lock 
+     */
+    private Table ensureCapacity(Table table) {
+        int capacity = table.m_byName.length();
+        if (Math.max(table.m_nameSlots, table.m_idSlots) + 1 <= capacity * 3 / 4) {
+            return table;
+        }   // end if
+        
+        // Grow if the entries need it, otherwise just drop the tombstones
+        Table rebuilt = new Table((m_size + 1) * 2 > capacity * 3 / 8 ? capacity * 2 : capacity);
+        for (int i = 0; i < capacity; i++) {
+            Entry entry = table.m_byName.get(i);
+            if (entry != null && entry != TOMBSTONE) {
+                rebuilt.insertName(entry);
+                if (entry.id != UNKNOWN) {
+                    rebuilt.insertID(entry);
+                }   // end if
+            }   // end if
+        }   // end for
+        
+        m_table = rebuilt;
+        m_hand = 0;
+        return rebuilt;
+    }   // end ensureCapacity()
+    
+    /** Hashes a name ignoring case, without creating a lower case copy */
+    private static int hash(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            hash = 31 * hash + Character.toLowerCase(Character.toUpperCase(name.charAt(i)));
+        }   // end for
+        return hash;
+    }   // end hash()
+    
+    /** Spreads the bits of a hash so sequential IDs do not cluster */
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }   // end mix()
+    
+    /** A character, shared by both directions of the table */
+    private static final class Entry {
+        
+        private final int id;
+        private final String name;
+        private final int hash;
+        private boolean used = true;
+        
+        public Entry(int id, String name, int hash) {
+            this.id = id;
+            this.name = name;
+            this.hash = hash;
+        }   // end Entry()
+    }   // end class Entry
+    
+    /** 
+     * The slots of both directions. Readers may use a table while it is being 
+     * changed or after it has been replaced, every slot holds a complete entry. 
+     */
+    private static final class Table {
+        
+        private final AtomicReferenceArray<Entry> m_byID;
+        private final AtomicReferenceArray<Entry> m_byName;
+        private final int m_mask;
+        // Slots that are not empty, tombstones included (written under the table lock)
+        private int m_idSlots = 0;
+        private int m_nameSlots = 0;
+        
+        public Table(int capacity) {
+            m_byID = new AtomicReferenceArray<Entry>(capacity);
+            m_byName = new AtomicReferenceArray<Entry>(capacity);
+            m_mask = capacity - 1;
+        }   // end Table()
+        
+        public Entry findID(int id) {
+            int i = mix(id) & m_mask;
+            Entry entry;
+            while ((entry = m_byID.get(i)) != null) {
+                if (entry != TOMBSTONE && entry.id == id) {
+                    return entry;
+                }   // end if
+                i = (i + 1) & m_mask;
+            }   // end while
+            return null;
+        }   // end findID()
+        
+        public Entry findName(String name, int hash) {
+            int i = mix(hash) & m_mask;
+            Entry entry;
+            while ((entry = m_byName.get(i)) != null) {
+                if (entry != TOMBSTONE && entry.hash == hash && entry.name.equalsIgnoreCase(name)) {
+                    return entry;
+                }   // end if
+                i = (i + 1) & m_mask;
+            }   // end while
+            return null;
+        }   // end findName()
+        
+        public void insertID(Entry entry) {
+            int i = mix(entry.id) & m_mask;
+            Entry current;
+            while ((current = m_byID.get(i)) != null && current != TOMBSTONE) {
+                i = (i + 1) & m_mask;
+            }   // end while
+            if (current == null) {
+                m_idSlots++;
+            }   // end if
+            m_byID.set(i, entry);
+        }   // end insertID()
+        
+        public void insertName(Entry entry) {
+            int i = mix(entry.hash) & m_mask;
+            Entry current;
+            while ((current = m_byName.get(i)) != null && current != TOMBSTONE) {
+                i = (i + 1) & m_mask;
+            }   // end while
+            if (current == null) {
+                m_nameSlots++;
+            }   // end if
+            m_byName.set(i, entry);
+        }   // end insertName()
+        
+        public void removeID(Entry entry) {
+            int i = mix(entry.id) & m_mask;
+            Entry current;
+            while ((current = m_byID.get(i)) != null) {
+                if (current == entry) {
+                    m_byID.set(i, TOMBSTONE);
+                    return;
+                }   // end if
+                i = (i + 1) & m_mask;
+            }   // end while
+        }   // end removeID()
+        
+        public void removeName(Entry entry) {
+            int i = mix(entry.hash) & m_mask;
+            Entry current;
+            while ((current = m_byName.get(i)) != null) {
+                if (current == entry) {
+                    m_byName.set(i, TOMBSTONE);
+                    return;
+                }   // end if
+                i = (i + 1) & m_mask;
+            }   // end while
+        }   // end removeName()
+    }   // end class Table
     
 }   // end class AOCharacterIDTable
@@ -18,97 +18,221 @@
  */
 package ao.protocol;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashMap;
 
 /**
- * <p></p>
+ * <p>Maps the 40 bit IDs of chat groups to their names and back.</p>
+ *
+ * <p>IDs are packed into longs (see {@link #toKey(byte[])}) and kept in an
+ * open addressing table, so {@link #getName(long)} neither allocates nor locks.
+ * There are only a few dozen groups and they rarely change, so every change
+ * publishes a new copy of the tables.</p>
+ *
+ * <p>The table can be saved with {@link #snapshot(DataOutput)} and loaded again
+ * with {@link #restore(DataInput)}.</p>
  *
  * @author Paul Smith
  */
 public class GroupTable {
 
-    private HashMap<String, GroupID> m_nameToIDMap;
-    private HashMap<GroupID, String> m_IDToNameMap;
+    /** Returned by {@link #getKey(String)} for unknown groups, no 40 bit ID packs to it */
+    public static final long NO_KEY = -1L;
+    private static final int SNAPSHOT_VERSION = 1;
+    private volatile Tables m_tables = new Tables(new long[0], new String[0], new HashMap<String, Long>());
     private final Object m_tableLock = new Object();
 
     /** Creates a new instance of AOGroupTable */
     public GroupTable() {
-        m_nameToIDMap = new HashMap<String, GroupID>();
-        m_IDToNameMap = new HashMap<GroupID, String>();
     }   // end AOGroupTable()
 
     public void reset() {
         synchronized (m_tableLock) {
-            m_nameToIDMap.clear();
-            m_IDToNameMap.clear();
+            m_tables = new Tables(new long[0], new String[0], new HashMap<String, Long>());
         }   // end synchronized
-
-        System.gc();
     }   // end reset()
 
+    /** 
+     * Packs a 40 bit group ID into a long 
+     *
+     * @throws IllegalArgumentException
+     *         if the ID is not 5 bytes long
+     */
+    public static long toKey(byte[] id) {
+        if (id == null || id.length != 5) {
+            throw new IllegalArgumentException("Invalid ID");
+        }   // end if
+
+        long key = 0;
+        for (int i = 0; i < 5; ++i) {
+            key = (key << 8) | (id[i] & 0xFF);
+        }   // end for
+        return key;
+    }   // end toKey()
+
+    /** Unpacks a group ID packed by {@link #toKey(byte[])} */
+    public static byte[] toID(long key) {
+        byte[] id = new byte[5];
+        for (int i = 4; i >= 0; --i) {
+            id[i] = (byte) key;
+            key >>>= 8;
+        }   // end for
+        return id;
+    }   // end toID()
+
     public void add(byte[] id, String name) {
-        synchronized (m_tableLock) {
-            m_nameToIDMap.put(name, new GroupID(id));
-            m_IDToNameMap.put(new GroupID(id), name);
-        }   // end synchronized
+        add(toKey(id), name);
     }   // end add
 
-    public byte[] getID(String name) {
+    public void add(long key, String name) {
         synchronized (m_tableLock) {
-            if (m_nameToIDMap.get(name) == null) {
-                return null;
-            } else {
-                return m_nameToIDMap.get(name).getID();
-            }
+            Tables tables = m_tables;
+            if (name == null || name.equals(tables.getName(key))) {
+                return;
+            }   // end if
+
+            // Collect the current groups with this one added or replaced
+            int count = 0;
+            long[] keys = new long[tables.m_size + 1];
+            String[] names = new String[tables.m_size + 1];
+            for (int i = 0; i < tables.m_keys.length; ++i) {
+                if (tables.m_names[i] != null && tables.m_keys[i] != key) {
+                    keys[count] = tables.m_keys[i];
+                    names[count] = tables.m_names[i];
+                    count++;
+                }   // end if
+            }   // end for
+            keys[count] = key;
+            names[count] = name;
+            count++;
+
+            HashMap<String, Long> nameToKey = new HashMap<String, Long>(tables.m_nameToKey);
+            nameToKey.put(name, Long.valueOf(key));
+
+            int capacity = 8;
+            while (capacity < count * 2) {
+                capacity <<= 1;
+            }   // end while
+            long[] tableKeys = new long[capacity];
+            String[] tableNames = new String[capacity];
+            for (int i = 0; i < count; ++i) {
+                int slot = hash(keys[i]) & (capacity - 1);
+                while (tableNames[slot] != null) {
+                    slot = (slot + 1) & (capacity - 1);
+                }   // end while
+                tableKeys[slot] = keys[i];
+                tableNames[slot] = names[i];
+            }   // end for
+
+            m_tables = new Tables(tableKeys, tableNames, nameToKey);
         }   // end synchronized
-    }   // end getID
+    }   // end add
 
-    public String getName(byte[] id) {
-        synchronized (m_tableLock) {
-            return m_IDToNameMap.get(new GroupID(id));
-        }   // end synchronized
+    public byte[] getID(String name) {
+        long key = getKey(name);
+        return key == NO_KEY ? null : toID(key);
     }   // end getID
 
-    private class GroupID {
-
-        private final byte[] m_id;
-
-        public GroupID(byte[] id) {
-            if (id == null || id.length != 5) {
-                throw new IllegalArgumentException("Invalid ID");
-            } else {
-                m_id = id;
-            }   // end else
-        }   // end GroupID()
-
-        public boolean equals(Object obj) {
-            if (obj instanceof GroupID) {
-                byte[] id = ((GroupID) obj).getID();
-
-                for (int i = 0; i < 5; ++i) {
-                    if (m_id[i] != id[i]) {
-                        return false;
-                    }
-                }   // end for
+    /** Returns the packed ID of a group, or {@link #NO_KEY} if the group is unknown */
+    public long getKey(String name) {
+        Long key = m_tables.m_nameToKey.get(name);
+        return key == null ? NO_KEY : key.longValue();
+    }   // end getKey
 
-                return true;
-            } else {
-                return false;
-            }   // end else
-        }   // end equals()
-
-        public int hashCode() {
-            int result = 0;
-
-            for (byte b : m_id) {
-                result += b;
-            }
-
-            return result;
-        }   // end hashCode()
-
-        public byte[] getID() {
-            return m_id;
-        }
-    }   // end class GroupID
+    public String getName(byte[] id) {
+        return getName(toKey(id));
+    }   // end getName
+
+    /** Returns the name of a group by its packed ID, without allocating */
+    public String getName(long key) {
+        return m_tables.getName(key);
+    }   // end getName
+
+    /** Returns the number of groups in the table */
+    public int size() {
+        return m_tables.m_size;
+    }   // end size()
+
+    /** 
+     * Writes the known groups to a stream 
+     *
+     * @see #restore(DataInput)
+     */
+    public void snapshot(DataOutput out) throws IOException {
+        Tables tables = m_tables;
+        out.writeInt(SNAPSHOT_VERSION);
+        out.writeInt(tables.m_size);
+        for (int i = 0; i < tables.m_keys.length; ++i) {
+            if (tables.m_names[i] != null) {
+                out.writeLong(tables.m_keys[i]);
+                out.writeUTF(tables.m_names[i]);
+            }   // end if
+        }   // end for
+    }   // end snapshot()
+
+    /** 
+     * Adds the groups written by {@link #snapshot(DataOutput)} to the table 
+     *
+     * @throws IOException
+     *         if the stream fails or does not hold a snapshot
+     */
+    public void restore(DataInput in) throws IOException {
+        int version = in.readInt();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("Unknown group table snapshot version " + version);
+        }   // end if
+
+        int count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+            long key = in.readLong();
+            add(key, in.readUTF());
+        }   // end for
+    }   // end restore()
+
+    /** Spreads the bits of a key, group IDs only differ in a few bytes */
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }   // end hash()
+
+    /** An immutable copy of the groups */
+    private static final class Tables {
+
+        private final long[] m_keys;
+        private final String[] m_names;
+        private final HashMap<String, Long> m_nameToKey;
+        private final int m_size;
+
+        public Tables(long[] keys, String[] names, HashMap<String, Long> nameToKey) {
+            m_keys = keys;
+            m_names = names;
+            m_nameToKey = nameToKey;
+            int size = 0;
+            for (String name : names) {
+                if (name != null) {
+                    size++;
+                }   // end if
+            }   // end for
+            m_size = size;
+        }   // end Tables()
+
+        public String getName(long key) {
+            if (m_keys.length == 0) {
+                return null;
+            }   // end if
+
+            int mask = m_keys.length - 1;
+            int slot = hash(key) & mask;
+            String name;
+            while ((name = m_names[slot]) != null) {
+                if (m_keys[slot] == key) {
+                    return name;
+                }   // end if
+                slot = (slot + 1) & mask;
+            }   // end while
+            return null;
+        }   // end getName()
+    }   // end class Tables
 }   // end class AOGroupTable
\ No newline at end of file
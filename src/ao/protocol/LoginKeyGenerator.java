@@ -22,7 +22,8 @@ package ao.protocol;
 
 import ao.misc.Convert;
 import java.math.BigInteger;
-import java.util.Random;
+import java.security.SecureRandom;
+import java.util.LinkedList;
 
 /**
  * <p>AOLoginKeyGenerator is a utilty class for generating the encrypted login keys
@@ -54,7 +55,14 @@ public class LoginKeyGenerator {
     public static int PROTOCOL_VERSION = 0;
     
     /** Used to generate random numbers whenever necessary. */
-    private static Random random = new Random();
+    private static SecureRandom random = new SecureRandom();
+    /** How many key pairs are computed ahead of time */
+    private static final int POOL_SIZE = 2;
+    /** Key pairs computed ahead of time, guarded by poolLock */
+    private static final LinkedList<KeyPair> pool = new LinkedList<KeyPair>();
+    private static final Object poolLock = new Object();
+    private static boolean refilling = false;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
     /** See <a href="http://en.wikipedia.org/wiki/Diffie-Hellman_key_exchange">Diffie-Hellman Key Exchange</a> */
     private static BigInteger P  = new BigInteger( "eca2e8c85d863dcdc26a429a71a9815ad052f6139669dd659f98ae159d313d13c6bf2838e10a69b6478b64a24bd054ba8248e8fa778703b418408249440b2c1edd28853e240d8a7e49540b76d120d3b1ad2878b1b99490eb4a2a5e84caa8a91cecbdb1aa7c816e8be343246f80c637abc653b893fd91686cf8d32d6cfe5f2a6f", 16 );
     /** See <a href="http://en.wikipedia.org/wiki/Diffie-Hellman_key_exchange">Diffie-Hellman Key Exchange</a> */
@@ -87,64 +95,91 @@ public class LoginKeyGenerator {
         else if (accountName == null) { throw new NullPointerException("No user name was given."); }
         else if (password == null) { throw new NullPointerException("No password was given."); }
         else {
-            return generateLoginKey( serverSeed, generateLocalSeed(16), accountName, password, P, G1, G2);
+            KeyPair keys = takeKeyPair();
+            return keys.publicKey + "-" + encrypt(keys.encryptionKey, accountName + "|" + serverSeed + "|" + password);
         }   // end else
     }   // end generateLoginKey()
 
     /**
-     * Given a server seed, a local seed, and a user name and password pair, 
-     * this function generates an encrypted login key.
-     *
-     * @param serverSeed
-     *        the seed that the AO server provided when the connection to it was first opened
-     *        (this is currently a 32 character hexadecimal string (128 bit))
-     * @param localSeed
-     *        a random 16 character hexadecimal string (64 bit) generated by the client
-     * @param accountName
-     *        the user name that the bot/user provided
-     * @param password
-     *        the password that the bot/user provided
-     * @return 
-     *        the generated encrypted login key
-     *
-     * @see ao.protocol.packets.toclient.LoginSeedPacket 
-     * @see ao.protocol.packets.toclient.LoginRequestPacket
-     * @see ao.protocol.Client#authenticate(String, String)
-     * @see #generateLocalSeed(int)
-     * @see #generateLoginKey(String, String, String)
-     * @see <a href="http://en.wikipedia.org/wiki/Diffie-Hellman_key_exchange">Diffie-Hellman Key Exchange</a>
+     * Starts computing key pairs on a background thread, so that the next
+     * {@link #generateLoginKey(String, String, String)} does not have to.
+     * Call it when a connection is about to be opened, it returns at once.
      */
-    private static String generateLoginKey(String serverSeed, String localSeed, String accountName, String password, BigInteger prime, BigInteger g1, BigInteger g2) {
-        BigInteger bigLocalSeed = new BigInteger(localSeed, 16);
-        BigInteger bigDecryptionKey = g2.modPow(bigLocalSeed, prime);
-        BigInteger bigEncyrptionKey = g1.modPow(bigLocalSeed, prime);
-        
-        String encryptionKey      = truncateEncryptionKey(bigEncyrptionKey.toString(16), 32);
-        String loginData          = accountName + "|" + serverSeed + "|" + password;
-        String encryptedLoginData = encrypt(encryptionKey, loginData);
-        
-        return bigDecryptionKey.toString(16) + "-" + encryptedLoginData;
-    }   // end generateLoginKey()
-    
+    public static void prepare() {
+        synchronized (poolLock) {
+            if (refilling || pool.size() >= POOL_SIZE) { return; }
+            refilling = true;
+        }   // end synchronized
+
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    KeyPair keys = new KeyPair(generateLocalSeed(16));
+                    synchronized (poolLock) {
+                        pool.add(keys);
+                        if (pool.size() >= POOL_SIZE) {
+                            refilling = false;
+                            return;
+                        }   // end if
+                    }   // end synchronized
+                }   // end while
+            }
+        }, "LoginKeyGenerator");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }   // end prepare()
+
+    /** Takes a precomputed key pair, or computes one if none is ready, every pair is used once */
+    private static KeyPair takeKeyPair() {
+        KeyPair keys;
+        synchronized (poolLock) {
+            keys = pool.poll();
+        }   // end synchronized
+        if (keys == null) {
+            keys = new KeyPair(generateLocalSeed(16));
+        }   // end if
+        prepare();
+        return keys;
+    }   // end takeKeyPair()
+
+    /**
+     * An ephemeral Diffie-Hellman key pair: the public key that is sent to
+     * the server and the TEA key the login data is encrypted with
+     */
+    private static final class KeyPair {
+
+        final String publicKey;
+        final int[] encryptionKey;
+
+        KeyPair(String localSeed) {
+            BigInteger bigLocalSeed = new BigInteger(localSeed, 16);
+            publicKey = G2.modPow(bigLocalSeed, P).toString(16);
+            encryptionKey = Convert.hexStringToIntArray(
+                    truncateEncryptionKey(G1.modPow(bigLocalSeed, P).toString(16), 32));
+        }   // end KeyPair()
+    }   // end class KeyPair
+
     /**
      * Generates a random local seed. 
-     * The seed generated is a {@code length} character hexadecimal string ({@code length*4} bit).
+     * The seed generated is a {@code length} character hexadecimal string ({@code length*4} bit)
+     * taken from a {@link SecureRandom}.
      *
      * @param length 
      *        the number of characters in the generated seed
      * @return 
      *        a random {@code length} character hexadecimal string ({@code length*4} bit)
      *
-     * @see #generateLoginKey(String, String, String, String)
+     * @see #generateLoginKey(String, String, String)
      */
     private static String generateLocalSeed(int length) {
-        String seed = "";
+        char[] seed = new char[length];
         
         for (int i = 0; i < length; ++i) {
-            seed += Integer.toHexString( random.nextInt(8) );
+            seed[i] = HEX[random.nextInt(16)];
         }   // end for
         
-        return seed;
+        return new String(seed);
     }   // end generateLocalSeed()
 
     /**
@@ -163,7 +198,7 @@ public class LoginKeyGenerator {
      * @return
      *        the truncated or zero-filled encryption key
      *
-     * @see #generateLoginKey(String, String, String, String)
+     * @see #generateLoginKey(String, String, String)
      * @see #encrypt(String, String)
      */
     private static String truncateEncryptionKey(String key, int length) {
@@ -193,101 +228,65 @@ public class LoginKeyGenerator {
     public static String encrypt(String encryptionKey, String loginData) {
         if (encryptionKey.length() < 32) { throw new IllegalArgumentException("The encryption key is too short."); }
         
-        String prefix          = generatePrefix(8);
-        String loginDataLength = loginDataLengthToString(loginData.length());
-        String pad             = generatePad( prefix.length() + loginDataLength.length() + loginData.length() );
-        
-        String unencrypted = prefix + loginDataLength + loginData + pad;
-        String encrypted   = "";
-        
-        int[] encryptionKeyInts = Convert.hexStringToIntArray(encryptionKey);
-        int[] unencryptedInts   = Convert.stringToIntArray(unencrypted);
-        
-        int[] oldBlock = { 0, 0 };
-        int[] newBlock = { 0, 0 };
-        
-        for (int i = 0; i < unencryptedInts.length; i += 2) {
-            newBlock[0] = unencryptedInts[i];
-            newBlock[1] = unencryptedInts[i + 1];
-            
-            if (i != 0) {
-                newBlock[0] ^= oldBlock[0];
-                newBlock[1] ^= oldBlock[1];
-            }   // end if
-            
-            Tea.encrypt(newBlock, encryptionKeyInts);
-            
-            oldBlock[0] = newBlock[0];
-            oldBlock[1] = newBlock[1];
-            
-            encrypted += Convert.intArrayToHexString(newBlock);
-        }   // end for
-        
-        return encrypted;
+        return encrypt(Convert.hexStringToIntArray(encryptionKey), loginData);
     }   // end encrypt()
-    
+
     /**
-     * Generates a random sequence of {@code length} characters.
+     * Encrypts a bot/user's login data with TEA in CBC mode. The data is laid
+     * out as 8 random bytes, its length (4 bytes, big endian), the login data
+     * and ' ' padding up to a multiple of 8 bytes, and is encrypted in place
+     * as little endian ints.
      *
-     * @param length 
-     *        the number of characters in the generated string
+     * @param key
+     *        the 128 bit encryption key as four ints
+     * @param loginData
+     *        the login data that will be encrypted
      * @return 
-     *        a random sequence of {@code length} characters
-     *
-     * @see #encrypt(String, String)
+     *        the encrypted login data as a hexadecimal string
      */
-    private static String generatePrefix(int length) {
-        char[] chars = new char[length];
+    private static String encrypt(int[] key, String loginData) {
+        int length = 8 + 4 + loginData.length();
+        byte[] unencrypted = new byte[(length + 7) & ~7];
         
-        for (int i = 0; i < length; ++i) {
-            chars[i] = (char)random.nextInt(255);
+        for (int i = 0; i < 8; ++i) {
+            unencrypted[i] = (byte) random.nextInt(255);
+        }   // end for
+        unencrypted[8]  = (byte) (loginData.length() >>> 24);
+        unencrypted[9]  = (byte) (loginData.length() >>> 16);
+        unencrypted[10] = (byte) (loginData.length() >>>  8);
+        unencrypted[11] = (byte)  loginData.length();
+        for (int i = 0; i < loginData.length(); ++i) {
+            unencrypted[12 + i] = (byte) loginData.charAt(i);
+        }   // end for
+        for (int i = length; i < unencrypted.length; ++i) {
+            unencrypted[i] = ' ';
         }   // end for
         
-        return new String(chars);
-    }   // end generatePrefix()
-    
-    /**
-     * Turns the length of the actual login data into a sequence of characters.
-     * 
-     * @param length 
-     *        the length of the actual login data
-     * @return
-     *        a four character string created from the given integer's binary data
-     *
-     * @see #encrypt(String, String)
-     */
-    private static String loginDataLengthToString(int length) {
-        char chars[] = new char[4];
-        chars[0] = (char)(length >>> 24       );
-        chars[1] = (char)(length >>> 16 & 0xff);
-        chars[2] = (char)(length >>>  8 & 0xff);
-        chars[3] = (char)(length        & 0xff);
-        return new String(chars);
-    }   // end loginDataLengthToString()
-    
-    /**
-     * Creates a sequence of ' ' characters to append 
-     * to the unencrypted login data, so that the length
-     * of the unecrypted login data is evenly divisible by 8.
-     *
-     * @param totalLength
-     *        the length of the unecrypted login data (without the pad)
-     * @return 
-     *        a sequence of ' ' characters
-     *
-     * @see #encrypt(String, String)
-     * @see #tea(int[], int[])
-     */
-    private static String generatePad(int totalLength) {
-        String pad    = "";
-        int    length = 8 - totalLength % 8;
+        int[] block = new int[unencrypted.length / 4];
+        for (int i = 0; i < block.length; ++i) {
+            block[i] = (unencrypted[i * 4] & 0xff)
+                    | (unencrypted[i * 4 + 1] & 0xff) << 8
+                    | (unencrypted[i * 4 + 2] & 0xff) << 16
+                    | (unencrypted[i * 4 + 3] & 0xff) << 24;
+        }   // end for
         
-        if (length < 8) {
-            for (int i = 0; i < length; ++i) { 
-                pad += " ";
+        for (int i = 0; i < block.length; i += 2) {
+            if (i != 0) {
+                block[i]     ^= block[i - 2];
+                block[i + 1] ^= block[i - 1];
+            }   // end if
+            Tea.encrypt(block, i, key);
+        }   // end for
+        
+        char[] encrypted = new char[block.length * 8];
+        for (int i = 0, j = 0; i < block.length; ++i) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                int b = block[i] >>> shift & 0xff;
+                encrypted[j++] = HEX[b >>> 4];
+                encrypted[j++] = HEX[b & 0xf];
             }   // end for
-        }   // end if
+        }   // end for
         
-        return pad;
-    }   // end generatePad()
+        return new String(encrypted);
+    }   // end encrypt()
 }   // end class LoginKeyGenerator
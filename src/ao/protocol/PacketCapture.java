@@ -0,0 +1,228 @@
+/*
+ * PacketCapture.java
+ *
+ *************************************************************************
+ * Copyright 2026 The AnarchyTalk contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ao.protocol;
+
+import ao.protocol.packets.Packet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>PacketCapture records the packets a client sees to a stream, so a
+ * session can be replayed later (see {@link ao.chat.PacketReplay}).</p>
+ *
+ * <p>A capture starts with the magic number {@value #MAGIC}, a version and
+ * the time the capture was started (ms since the epoch). Each packet is then
+ * written as a frame: the ms since the previous frame as a variable length
+ * integer (7 bits per byte, lowest first), a direction byte, the type, the
+ * length and the payload as the server sends it.</p>
+ *
+ * <p>The client hands every frame to the capture as it is read from or
+ * written to the server (see {@link ao.chat.ChatClient#setCapture}), before
+ * it is parsed, so frames of types the client is not subscribed to are
+ * recorded as well.</p>
+ */
+public class PacketCapture {
+
+    /** "AOPC" */
+    public static final int MAGIC = 0x414F5043;
+    public static final int VERSION = 1;
+    private final DataOutputStream m_out;
+    private long m_last;
+    private int m_frames = 0;
+    private boolean m_closed = false;
+
+    /** Creates a new instance of PacketCapture and writes the header */
+    public PacketCapture(OutputStream out) throws IOException {
+        m_out = new DataOutputStream(new BufferedOutputStream(out));
+        m_last = System.currentTimeMillis();
+        m_out.writeInt(MAGIC);
+        m_out.writeShort(VERSION);
+        m_out.writeLong(m_last);
+    }   // end PacketCapture()
+
+    /**
+     * Records a frame, a failing stream closes the capture rather than
+     * breaking the connection
+     */
+    public void frame(Packet.Direction direction, short type, ByteBuffer payload) {
+        try {
+            write(direction, type, payload);
+        } catch (IOException ex) {
+            System.err.println("PacketCapture: " + ex.getMessage());
+            close();
+        }   // end catch
+    }   // end frame()
+
+    /**
+     * Writes a frame, the payload from its position to its limit. The
+     * position of the buffer is left as it was.
+     */
+    public synchronized void write(Packet.Direction direction, short type, ByteBuffer payload) throws IOException {
+        if (m_closed) {
+            return;
+        }   // end if
+
+        int length = payload.remaining();
+        if (length > 0xFFFF) {
+            return;
+        }   // end if
+
+        long now = System.currentTimeMillis();
+        writeVarLong(Math.max(0, now - m_last));
+        m_last = Math.max(m_last, now);
+        m_out.writeByte(direction == Packet.Direction.TO_CLIENT ? 0 : 1);
+        m_out.writeShort(type);
+        m_out.writeShort(length);
+        if (payload.hasArray()) {
+            m_out.write(payload.array(), payload.arrayOffset() + payload.position(), length);
+        } else {
+            byte[] data = new byte[length];
+            payload.duplicate().get(data);
+            m_out.write(data);
+        }   // end else
+        m_frames++;
+    }   // end write()
+
+    /** Returns the number of frames written so far */
+    public synchronized int getFrameCount() {
+        return m_frames;
+    }   // end getFrameCount()
+
+    /** Flushes the frames written so far */
+    public synchronized void flush() throws IOException {
+        if (!m_closed) {
+            m_out.flush();
+        }   // end if
+    }   // end flush()
+
+    /** Flushes and closes the stream, packets passed on afterwards are ignored */
+    public synchronized void close() {
+        if (!m_closed) {
+            m_closed = true;
+            try {
+                m_out.close();
+            } catch (IOException ex) {
+                System.err.println("PacketCapture: " + ex.getMessage());
+            }   // end catch
+        }   // end if
+    }   // end close()
+
+    private void writeVarLong(long value) throws IOException {
+        while (value >= 0x80) {
+            m_out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }   // end while
+        m_out.writeByte((int) value);
+    }   // end writeVarLong()
+
+    /**
+     * Reads the frames of a capture one at a time. The payload buffer is
+     * reused, it is only valid until the next call to {@link #next()}.
+     */
+    public static class Reader {
+
+        private final DataInputStream m_in;
+        private final long m_start;
+        private long m_time;
+        private Packet.Direction m_direction;
+        private short m_type;
+        private int m_length;
+        private byte[] m_payload = new byte[1024];
+
+        /**
+         * Creates a new instance of Reader and reads the header
+         *
+         * @throws IOException
+         *         if the stream does not hold a capture
+         */
+        public Reader(InputStream in) throws IOException {
+            m_in = new DataInputStream(new BufferedInputStream(in));
+            if (m_in.readInt() != MAGIC) {
+                throw new IOException("Not a packet capture");
+            }   // end if
+            int version = m_in.readShort();
+            if (version != VERSION) {
+                throw new IOException("Unknown packet capture version " + version);
+            }   // end if
+            m_start = m_in.readLong();
+            m_time = m_start;
+        }   // end Reader()
+
+        /**
+         * Reads the next frame
+         *
+         * @return false at the end of the capture
+         * @throws IOException
+         *         if the stream fails or ends in the middle of a frame
+         */
+        public boolean next() throws IOException {
+            int b = m_in.read();
+            if (b < 0) {
+                return false;
+            }   // end if
+
+            long delta = 0;
+            int shift = 0;
+            while ((b & 0x80) != 0) {
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+                b = m_in.read();
+                if (b < 0 || shift > 63) {
+                    throw new EOFException("Truncated frame");
+                }   // end if
+            }   // end while
+            delta |= (long) b << shift;
+
+            m_time += delta;
+            m_direction = m_in.readByte() == 0 ? Packet.Direction.TO_CLIENT : Packet.Direction.TO_SERVER;
+            m_type = m_in.readShort();
+            m_length = m_in.readShort() & 0xFFFF;
+            if (m_length > m_payload.length) {
+                m_payload = new byte[Math.max(m_length, m_payload.length * 2)];
+            }   // end if
+            m_in.readFully(m_payload, 0, m_length);
+            return true;
+        }   // end next()
+
+        /** Returns when the capture was started (ms since the epoch) */
+        public long getStartTime() { return m_start; }
+        /** Returns when the current frame was recorded (ms since the epoch) */
+        public long getTime() { return m_time; }
+        public Packet.Direction getDirection() { return m_direction; }
+        public short getType() { return m_type; }
+        public int getLength() { return m_length; }
+
+        /** Returns the payload of the current frame, positioned at its start */
+        public ByteBuffer getPayload() {
+            return ByteBuffer.wrap(m_payload, 0, m_length);
+        }   // end getPayload()
+
+        public void close() throws IOException {
+            m_in.close();
+        }   // end close()
+    }   // end class Reader
+}   // end class PacketCapture
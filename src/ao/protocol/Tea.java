@@ -35,8 +35,23 @@ public class Tea {
      * @see <a href="http://en.wikipedia.org/wiki/Tiny_Encryption_Algorithm">Tiny Encryption Algorithm (TEA)</a>
      */
     public static void encrypt(int[] block, int[] key) {
-        int i = block[0];
-        int j = block[1];
+        encrypt(block, 0, key);
+    }   // end encrypt()
+
+    /**
+     * Encrypts the 64 bit block at {@code block[offset]} and {@code block[offset + 1]}
+     * in place, so a whole message can be encrypted without copying blocks out.
+     *
+     * @param block
+     *        the data to encrypt
+     * @param offset
+     *        the index of the block's first integer
+     * @param key
+     *        a four integer (128 bit) key to use in encrypting the block 
+     */
+    public static void encrypt(int[] block, int offset, int[] key) {
+        int i = block[offset];
+        int j = block[offset + 1];
         int sum = 0;
         int delta = 0x9e3779b9;
 
@@ -46,8 +61,8 @@ public class Tea {
             j += (i << 4 & 0xfffffff0) + key[2] ^ i + sum ^ (i >> 5 & 0x7ffffff) + key[3];
         }   // end for
 
-        block[0] = i;
-        block[1] = j;
+        block[offset] = i;
+        block[offset + 1] = j;
     }   // end encrypt()
 
     /**
@@ -20,10 +20,11 @@
 package ao.protocol.packets;
 
 import ao.db.MMDBDatabase;
-import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -34,62 +35,85 @@ public class ExtendedMessage {
     private long instanceId;
     private String message;
     private List<Object> params;
+    private String raw;
+    private String formatted;
 
     public ExtendedMessage(long categoryId, long instanceId, String paramString, MMDBDatabase db) {
         this.categoryId = categoryId;
         this.instanceId = instanceId;
-        if (db == null) {
-            message = paramString;
-        } else {
-            message = db.getMessage(categoryId, instanceId);
-
-            try {
-                params = parseParams(new DataInputStream(new ByteArrayInputStream(paramString.getBytes("UTF-8"))), db);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-        }
+        this.raw = paramString;
+        byte[] data = getBytes(paramString);
+        init(data, 0, data.length, db);
     }
 
     public ExtendedMessage(DataInputStream dataInputStream, MMDBDatabase db) {
-        this.categoryId = b85g(dataInputStream);
-        this.instanceId = b85g(dataInputStream);
-        if (db == null) {
-        } else {
-            message = db.getMessage(categoryId, instanceId);
+        this(readAll(dataInputStream), db);
+    }
+
+    /**
+     * Creates an extended message from its encoded body, the base-85 category
+     * and instance followed by the parameters
+     */
+    public ExtendedMessage(byte[] body, MMDBDatabase db) {
+        this.categoryId = b85g(body, 0, body.length);
+        this.instanceId = b85g(body, 5, body.length);
+        init(body, 10, body.length, db);
+    }
 
+    private void init(byte[] data, int offset, int end, MMDBDatabase db) {
+        if (db == null) {
+            // Without a database the parameters are all we can show, but
+            // a message that does not parse must not break displaying it
             try {
-                params = parseParams(dataInputStream, db);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+                params = parseParams(data, offset, end, null);
+            } catch (RuntimeException e) {
+                params = null;
             }
+        } else {
+            message = db.getMessage(categoryId, instanceId);
+            params = parseParams(data, offset, end, db);
         }
     }
 
-    private static List<Object> parseParams(DataInputStream dataInputStream, MMDBDatabase db) throws IOException {
+    private static List<Object> parseParams(byte[] data, int offset, int end, MMDBDatabase db) {
         List<Object> params = new ArrayList<Object>();
+        int position = offset;
 
-        while (dataInputStream.available() > 0) {
-            char paramType = (char) dataInputStream.read();
+        while (position < end) {
+            char paramType = (char) (data[position++] & 0xFF);
             switch (paramType) {
                 case 'R':
                     // reference
-                    params.add(db.getMessage(b85g(dataInputStream), b85g(dataInputStream)));
+                    long category = b85g(data, position, end);
+                    long instance = b85g(data, position + 5, end);
+                    position += 10;
+                    params.add(db == null ? null : db.getMessage(category, instance));
                     break;
 
                 case 'i':
                 case 'u':
                     // long
-                    params.add(b85g(dataInputStream));
+                    params.add(b85g(data, position, end));
+                    position += 5;
                     break;
 
                 case 'S':
                     // string
-                    int stringLength = dataInputStream.readShort();
-                    byte[] bytes = new byte[stringLength];
-                    dataInputStream.readFully(bytes);
-
-                    params.add(new String(bytes, ENCODING));
+                    if (position + 2 > end) {
+                        throw new RuntimeException(new EOFException());
+                    }
+                    int stringLength = (short) ((data[position] << 8) | (data[position + 1] & 0xFF));
+                    position += 2;
+                    if (stringLength < 0 || position + stringLength > end) {
+                        throw new RuntimeException(new EOFException());
+                    }
+
+                    try {
+                        params.add(new String(data, position, stringLength, ENCODING));
+                    } catch (UnsupportedEncodingException e) {
+                        throw new RuntimeException(e);
+                    }
+                    position += stringLength;
                     break;
 
                 default:
@@ -112,8 +136,59 @@ public class ExtendedMessage {
         }
     }
 
-    public String getFormattedMessage() {
-        return String.format(message, params.toArray());
+    /**
+     * Decodes five base-85 digits starting at offset, digits past the end
+     * count as -1 just like reading past the end of a stream does
+     */
+    public static long b85g(byte[] data, int offset, int end) {
+        long n = 0;
+        for (int i = offset; i < offset + 5; i++) {
+            n = (n * 85) + (i < end ? data[i] & 0xFF : -1) - 33;
+        }
+        return n;
+    }
+
+    private static byte[] getBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] readAll(DataInputStream input) {
+        try {
+            byte[] data = new byte[input.available()];
+            input.readFully(data);
+            return data;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the formatted message, it is only formatted once. Without a
+     * template the parameters (or the raw text) are returned instead.
+     */
+    public synchronized String getFormattedMessage() {
+        if (formatted == null) {
+            if (message != null && params != null) {
+                formatted = MessageTemplate.get(categoryId, instanceId, message).format(params.toArray());
+            } else if (params != null && !params.isEmpty()) {
+                StringBuilder result = new StringBuilder();
+                for (Object param : params) {
+                    if (param == null) { continue; }
+                    if (result.length() > 0) { result.append(' '); }
+                    result.append(param);
+                }
+                formatted = result.toString();
+            } else if (raw != null) {
+                formatted = raw;
+            } else {
+                formatted = categoryId + ":" + instanceId;
+            }
+        }
+        return formatted;
     }
 
     @Override
@@ -0,0 +1,192 @@
+/*
+ * MessageTemplate.java
+ *
+ *************************************************************************
+ * Copyright 2026 The AnarchyTalk contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ao.protocol.packets;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.MissingFormatArgumentException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A printf style template from the mdb, split once into literal text and
+ * conversions so formatting a message does not parse the template again.
+ * Plain %s and %d conversions are appended directly, anything with flags,
+ * a width or a precision is handed to String.format on its own, and templates
+ * this class does not understand are formatted with String.format as a whole.
+ */
+final class MessageTemplate {
+
+    private static final Pattern SPECIFIER =
+            Pattern.compile("%(\\d+\\$)?([-#+ 0,(\\<]*)?(\\d+)?(\\.\\d+)?([tT])?([a-zA-Z%])");
+    private static final int CACHE_SIZE = 256;
+    private static final Map<Long, MessageTemplate> CACHE =
+            new LinkedHashMap<Long, MessageTemplate>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, MessageTemplate> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private final String source;
+    /** Literal strings and {@link Conversion}s in template order, or null to use String.format */
+    private final Object[] segments;
+
+    private MessageTemplate(String source) {
+        this.source = source;
+        this.segments = compile(source);
+    }
+
+    /**
+     * Returns the compiled template for a message, templates are cached by
+     * category and instance and recompiled if the text no longer matches
+     */
+    static MessageTemplate get(long categoryId, long instanceId, String source) {
+        Long key = Long.valueOf((categoryId << 32) | (instanceId & 0xFFFFFFFFL));
+        synchronized (CACHE) {
+            MessageTemplate template = CACHE.get(key);
+            if (template != null && (template.source == source || template.source.equals(source))) {
+                return template;
+            }
+        }
+
+        MessageTemplate template = new MessageTemplate(source);
+        synchronized (CACHE) {
+            CACHE.put(key, template);
+        }
+        return template;
+    }
+
+    private static Object[] compile(String source) {
+        List<Object> segments = new ArrayList<Object>();
+        Matcher matcher = SPECIFIER.matcher(source);
+        StringBuilder literal = new StringBuilder();
+        int next = 0;
+        int start = 0;
+
+        for (int percent = source.indexOf('%'); percent >= 0; percent = source.indexOf('%', start)) {
+            literal.append(source, start, percent);
+            if (!matcher.find(percent) || matcher.start() != percent) {
+                return null;
+            }
+
+            char conversion = matcher.group(6).charAt(0);
+            if (conversion == '%' || conversion == 'n') {
+                if (matcher.group(1) != null || matcher.group(5) != null) {
+                    return null;
+                }
+                literal.append(conversion == '%' ? "%" : System.getProperty("line.separator"));
+            } else {
+                String flags = matcher.group(2);
+                if (flags != null && flags.indexOf('<') >= 0) {
+                    return null;
+                }
+
+                int index;
+                if (matcher.group(1) != null) {
+                    String position = matcher.group(1);
+                    index = Integer.parseInt(position.substring(0, position.length() - 1)) - 1;
+                    if (index < 0) {
+                        return null;
+                    }
+                } else {
+                    index = next++;
+                }
+
+                boolean simple = (flags == null || flags.length() == 0) && matcher.group(3) == null
+                        && matcher.group(4) == null && matcher.group(5) == null
+                        && (conversion == 's' || conversion == 'd');
+
+                if (literal.length() > 0) {
+                    segments.add(literal.toString());
+                    literal.setLength(0);
+                }
+                int spec = matcher.group(1) != null ? matcher.end(1) : percent + 1;
+                segments.add(new Conversion(index, conversion,
+                        simple ? null : "%" + source.substring(spec, matcher.end())));
+            }
+            start = matcher.end();
+        }
+
+        literal.append(source, start, source.length());
+        if (literal.length() > 0) {
+            segments.add(literal.toString());
+        }
+        return segments.toArray();
+    }
+
+    /** Formats the template the way {@code String.format(template, params)} would */
+    String format(Object[] params) {
+        if (segments == null) {
+            return String.format(source, params);
+        }
+
+        StringBuilder result = new StringBuilder(source.length() + 16 * params.length);
+        for (Object segment : segments) {
+            if (segment instanceof String) {
+                result.append((String) segment);
+                continue;
+            }
+
+            Conversion conversion = (Conversion) segment;
+            if (conversion.index >= params.length) {
+                throw new MissingFormatArgumentException(conversion.toString());
+            }
+
+            Object param = params[conversion.index];
+            if (conversion.pattern != null) {
+                result.append(String.format(conversion.pattern, param));
+            } else if (conversion.conversion == 's') {
+                result.append(String.valueOf(param));
+            } else if (param instanceof Long || param instanceof Integer) {
+                result.append(((Number) param).longValue());
+            } else {
+                // Let the formatter report the mismatch (or format the odd type)
+                result.append(String.format("%d", param));
+            }
+        }
+        return result.toString();
+    }
+
+    /** A single argument conversion */
+    private static final class Conversion {
+
+        final int index;
+        final char conversion;
+        /** The conversion without its argument index, or null for a plain %s or %d */
+        final String pattern;
+
+        Conversion(int index, char conversion, String pattern) {
+            this.index = index;
+            this.conversion = conversion;
+            this.pattern = pattern;
+        }
+
+        @Override
+        public String toString() {
+            return pattern == null ? "%" + conversion : pattern;
+        }
+    }
+}
@@ -28,8 +28,8 @@ import ao.protocol.packets.utils.PacketParser;
 import ao.protocol.packets.utils.PacketSerializer;
 
 import java.io.IOException;
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -43,13 +43,16 @@ public class ChannelMessagePacket extends MessagePacket {
     
     public static final short TYPE = 65;
     
-    private final byte[]    m_groupID;
+    private final long      m_groupKey;
+    private byte[]          m_groupID;
     private final int       m_characterID;
     private final String    m_msg;
     private final String    m_str;
-    private final byte[]    m_data;
+    private byte[]          m_data;
     private final Direction m_direction;
-    private final ExtendedMessage m_ex_msg;
+    private final String    m_ex_body;
+    private final MMDBDatabase m_db;
+    private ExtendedMessage m_ex_msg;
     
     /** 
      * Creates a new instance of ChannelMessagePacket
@@ -110,27 +113,16 @@ public class ChannelMessagePacket extends MessagePacket {
      *        the direction that the message was sent
      */
     public ChannelMessagePacket(byte[] groupID, int characterID, String msg, String str, Direction d) {
+        m_groupKey    = GroupTable.toKey(groupID);
         m_groupID     = groupID;
         m_characterID = characterID;
         m_msg         = msg;
         m_str         = str;
         m_direction   = d;
+        m_ex_body     = null;
+        m_db          = null;
         m_ex_msg      = null;
-        
-        // Serialize the packet
-        PacketSerializer serializer =
-            new PacketSerializer( 4 + 5 + 4 + m_msg.length() + m_str.length() );
-        serializer.write40Bit(m_groupID);
-        
-        if (m_direction == Direction.TO_CLIENT) {
-            serializer.write(m_characterID);
-        }   // end if
-        
-        serializer.write(m_msg);
-        serializer.write(m_str);
-        
-        m_data = serializer.getResult();
-        serializer.close();
+        m_data        = serialize();
     }   // end ChannelMessagePacket()
     
     /** 
@@ -148,15 +140,71 @@ public class ChannelMessagePacket extends MessagePacket {
      *         if the packet is malformed
      */
     public ChannelMessagePacket(byte[] data, MMDBDatabase db, Direction d) throws MalformedPacketException {
-        if (data == null) { throw new NullPointerException("No binary data was passed."); }
-        
+        this(PacketParser.wrap(data), db, d, false);
+        m_data = data;
+    }   // end ChannelMessagePacket()
+    
+    /** 
+     * Creates a new instance of ChannelMessagePacket
+     *
+     * @param data
+     *        the binary data of this packet (without the type and length bytes)
+     * @param db
+     *        the mdb database that will be used for extended messages
+     * @param d
+     *        the direction that the packet is being sent
+     * @param lazy
+     *        whether an extended message is only resolved when it is first asked for
+     * @throws NullPointerException
+     *         if data is null
+     * @throws AOMalformedPacketException
+     *         if the packet is malformed
+     */
+    public ChannelMessagePacket(byte[] data, MMDBDatabase db, Direction d, boolean lazy) throws MalformedPacketException {
+        this(PacketParser.wrap(data), db, d, lazy);
+        m_data = data;
+    }   // end ChannelMessagePacket()
+    
+    /** 
+     * Creates a new instance of ChannelMessagePacket
+     *
+     * @param frame
+     *        the binary data of this packet (without the type and length bytes),
+     *        no reference to it is kept
+     * @param db
+     *        the mdb database that will be used for extended messages
+     * @param d
+     *        the direction that the packet is being sent
+     * @throws AOMalformedPacketException
+     *         if the packet is malformed
+     */
+    public ChannelMessagePacket(ByteBuffer frame, MMDBDatabase db, Direction d) throws MalformedPacketException {
+        this(frame, db, d, false);
+    }   // end ChannelMessagePacket()
+    
+    /** 
+     * Creates a new instance of ChannelMessagePacket
+     *
+     * @param frame
+     *        the binary data of this packet (without the type and length bytes),
+     *        no reference to it is kept
+     * @param db
+     *        the mdb database that will be used for extended messages
+     * @param d
+     *        the direction that the packet is being sent
+     * @param lazy
+     *        whether an extended message is only resolved when it is first asked for
+     * @throws AOMalformedPacketException
+     *         if the packet is malformed
+     */
+    public ChannelMessagePacket(ByteBuffer frame, MMDBDatabase db, Direction d, boolean lazy) throws MalformedPacketException {
         try {
-            m_data                = data;
+            m_data                = null;
             m_direction           = d;
-            PacketParser parser = new PacketParser(data);
+            PacketParser parser = new PacketParser(frame);
         
             // Parse the packet
-            m_groupID = parser.parse40Bit();
+            m_groupKey = parser.parse40BitLong();
             
             if (m_direction == Direction.TO_CLIENT) {
                 m_characterID = parser.parseInt();
@@ -169,32 +217,80 @@ public class ChannelMessagePacket extends MessagePacket {
         
             parser.close();
 
+            m_db = db;
             if(m_characterID == 0 && m_msg.startsWith("~&") && m_msg.endsWith("~")){
-                String e_msg = m_msg.substring(2, m_msg.length() - 2);
-                m_ex_msg = new ExtendedMessage(new DataInputStream(new ByteArrayInputStream(e_msg.getBytes("UTF-8"))), db);
+                m_ex_body = m_msg.substring(2, m_msg.length() - 2);
+                if (!lazy) { getExtendedMessage(); }
             } else {
-                m_ex_msg = null;
+                m_ex_body = null;
             }
 
         } catch (IOException e) {
             throw new MalformedPacketException(
-                "The packet could not be parsed.", e, new UnparsablePacket(TYPE, data, d)
+                "The packet could not be parsed.", e, new UnparsablePacket(TYPE, PacketParser.toArray(frame), d)
             );
         }   // end catch
     }   // end ChannelMessagePacket()
     
+    /** Serializes the packet */
+    private byte[] serialize() {
+        PacketSerializer serializer =
+            new PacketSerializer( 4 + 5 + 4 + m_msg.length() + m_str.length() );
+        serializer.write40Bit(getGroupID());
+        
+        if (m_direction == Direction.TO_CLIENT) {
+            serializer.write(m_characterID);
+        }   // end if
+        
+        serializer.write(m_msg);
+        serializer.write(m_str);
+        
+        byte[] result = serializer.getResult();
+        serializer.close();
+        return result;
+    }   // end serialize()
+    
     /** Returns the ID of the group that this message was/will be sent to */
-    public byte[] getGroupID() { return m_groupID; }
+    public byte[] getGroupID() {
+        if (m_groupID == null) { m_groupID = GroupTable.toID(m_groupKey); }
+        return m_groupID;
+    }   // end getGroupID()
+    /** Returns the ID of the group packed into a long, see {@link GroupTable#getName(long)} */
+    public long getGroupKey() { return m_groupKey; }
     /** Returns the ID of the sender of this message */
     public int getCharID() { return m_characterID; }
     /** Returns the message that was/will be sent/recieved */
     public String getMessage() { return m_msg; }
-    public ExtendedMessage getExtendedMessage() { return m_ex_msg; }
+    /** Returns the extended message this message carries, or null if it is a plain message */
+    public synchronized ExtendedMessage getExtendedMessage() {
+        if (m_ex_msg == null && m_ex_body != null) {
+            try {
+                m_ex_msg = new ExtendedMessage(m_ex_body.getBytes("UTF-8"), m_db);
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }   // end catch
+        }   // end if
+        return m_ex_msg;
+    }   // end getExtendedMessage()
+    /** Returns whether this message carries an extended message */
+    public boolean isExtended() { return m_ex_body != null; }
+    /**
+     * Returns the encoded parameters of the extended message, what follows
+     * its category and instance, or null if it is a plain message
+     */
+    public String getExtendedParams() {
+        if (m_ex_body == null) { return null; }
+        return m_ex_body.length() > 10 ? m_ex_body.substring(10) : "";
+    }   // end getExtendedParams()
     public String getStr() { return m_str; }
     
     /** Always returns {@value #TYPE} */
     public short getType() { return TYPE; }
-    public byte[] getData() { return m_data; }
+    public byte[] getData() {
+        // Packets parsed from a frame are only serialized on demand
+        if (m_data == null) { m_data = serialize(); }
+        return m_data;
+    }   // end getData()
     /** Returns whether this message was recieved or sent by the client */
     public Direction getDirection() { return m_direction; }
     
@@ -202,7 +298,7 @@ public class ChannelMessagePacket extends MessagePacket {
     public String toString() {
         String result = "["+TYPE+"]ChannelMessagePacket: ";
         
-        for (byte b : m_groupID) { result += String.format("%02X", b); }
+        for (byte b : getGroupID()) { result += String.format("%02X", b); }
         
         result += ", " + Integer.toHexString( m_characterID );
         result += ", " + m_msg;
@@ -215,13 +311,13 @@ public class ChannelMessagePacket extends MessagePacket {
 
         String result = "";
         
-        if(m_ex_msg == null){
+        if(m_ex_body == null){
             String charName  = (charTable  == null ? null : charTable.getName(m_characterID));
-            String groupName = (groupTable == null ? null : groupTable.getName(m_groupID));
+            String groupName = (groupTable == null ? null : groupTable.getName(m_groupKey));
             result = "[";
         
             if (groupName == null) {
-                for (byte b : m_groupID) { result += String.format("%02X", b); }
+                for (byte b : getGroupID()) { result += String.format("%02X", b); }
             } else {
                 result += groupName;
             }   // end else
@@ -229,7 +325,7 @@ public class ChannelMessagePacket extends MessagePacket {
             result += "] " + (charName == null ? Integer.toHexString( m_characterID ) : charName) + ": ";
             result += m_msg;
         } else {
-            result = m_ex_msg.getFormattedMessage();
+            result = getExtendedMessage().getFormattedMessage();
         }
         return result;
     }   // end log()
@@ -83,6 +83,34 @@ public class CharacterLookupPacket extends Packet {
         serializer.close();
     }   // end CharacterLookupPacket()
     
+    /**
+     * Creates a new instance of CharacterLookupPacket, 
+     * the reply the server sends to a lookup
+     * 
+     * @param id
+     *        the id of the character, or -1 if the character does not exist
+     * @param name
+     *        the name of the character that was looked up
+     * @throws NullPointerException
+     *         if name is null
+     */
+    public CharacterLookupPacket(int id, String name) {
+        if (name == null) { throw new NullPointerException("No name was passed."); }
+        
+        m_name = name;
+        m_direction = Direction.TO_CLIENT;
+        m_id = id;
+        
+        // Serialize the packet
+        PacketSerializer serializer =
+            new PacketSerializer( 4 + 2 + m_name.length() );
+        serializer.write(m_id);
+        serializer.write(m_name);
+        
+        m_data = serializer.getResult();
+        serializer.close();
+    }   // end CharacterLookupPacket()
+    
     /** 
      * Creates a new instance of CharacterLookupPacket
      *
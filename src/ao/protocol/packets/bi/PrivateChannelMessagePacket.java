@@ -27,6 +27,7 @@ import ao.protocol.packets.utils.PacketParser;
 import ao.protocol.packets.utils.PacketSerializer;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class PrivateChannelMessagePacket extends MessagePacket {
 
@@ -36,7 +37,7 @@ public class PrivateChannelMessagePacket extends MessagePacket {
     private final int       m_characterID;
     private final String    m_msg;
     private final String    m_str;
-    private final byte[]    m_data;
+    private byte[]          m_data;
     private final Direction m_direction;
 
     /**
@@ -130,12 +131,24 @@ public class PrivateChannelMessagePacket extends MessagePacket {
      *         if the packet is malformed
      */
     public PrivateChannelMessagePacket(byte[] data, Direction d) throws MalformedPacketException {
-        if (data == null) { throw new NullPointerException("No binary data was passed."); }
+        this(PacketParser.wrap(data), d);
+        m_data = data;
+    }   // end PrivateChannelMessagePacket()
 
+    /**
+     * Creates a new instance of PrivateChannelMessagePacket
+     *
+     * @param frame
+     *        the binary data of this packet (without the type and length bytes),
+     *        no reference to it is kept
+     * @throws AOMalformedPacketException
+     *         if the packet is malformed
+     */
+    public PrivateChannelMessagePacket(ByteBuffer frame, Direction d) throws MalformedPacketException {
         try {
-            m_data                = data;
+            m_data                = null;
             m_direction           = d;
-            PacketParser parser = new PacketParser(data);
+            PacketParser parser = new PacketParser(frame);
 
             // Parse the packet
             m_groupID = parser.parseInt();
@@ -152,11 +165,29 @@ public class PrivateChannelMessagePacket extends MessagePacket {
             parser.close();
         } catch (IOException e) {
             throw new MalformedPacketException(
-                "The packet could not be parsed.", e, new UnparsablePacket(TYPE, data, d)
+                "The packet could not be parsed.", e, new UnparsablePacket(TYPE, PacketParser.toArray(frame), d)
             );
         }   // end catch
     }   // end PrivateChannelMessagePacket()
 
+    /** Serializes a packet that was parsed from a frame */
+    private byte[] serialize() {
+        PacketSerializer serializer =
+            new PacketSerializer( 4 + 4 + 4 + m_msg.length() + m_str.length() );
+        serializer.write(m_groupID);
+
+        if (m_direction == Direction.TO_CLIENT) {
+            serializer.write(m_characterID);
+        }   // end if
+
+        serializer.write(m_msg);
+        serializer.write(m_str);
+
+        byte[] result = serializer.getResult();
+        serializer.close();
+        return result;
+    }   // end serialize()
+
     /** Returns the ID of the group that this message was/will be sent to */
     public int getGroupID() { return m_groupID; }
     /** Returns the ID of the sender of this message */
@@ -167,7 +198,11 @@ public class PrivateChannelMessagePacket extends MessagePacket {
 
     /** Always returns {@value #TYPE} */
     public short getType() { return TYPE; }
-    public byte[] getData() { return m_data; }
+    public byte[] getData() {
+        // Packets parsed from a frame are only serialized on demand
+        if (m_data == null) { m_data = serialize(); }
+        return m_data;
+    }   // end getData()
     /** Returns whether this message was recieved or sent by the client */
     public Direction getDirection() { return m_direction; }
 
@@ -27,6 +27,7 @@ import ao.protocol.packets.utils.PacketParser;
 import ao.protocol.packets.utils.PacketSerializer;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * <p>{@code AOPrivateMessagePacket} is sent back and forth between the AO server
@@ -48,7 +49,7 @@ public class PrivateMessagePacket extends MessagePacket {
     private final int       m_characterID;
     private final String    m_msg;
     private final String    m_str;
-    private final byte[]    m_data;
+    private byte[]          m_data;
     private final Direction m_direction;
     
     public PrivateMessagePacket(int characterID, String msg){
@@ -97,12 +98,24 @@ public class PrivateMessagePacket extends MessagePacket {
      *         if the packet is malformed
      */
     public PrivateMessagePacket(byte[] data, Direction d) throws MalformedPacketException {
-        if (data == null) { throw new NullPointerException("No binary data was passed."); }
-        
+        this(PacketParser.wrap(data), d);
+        m_data = data;
+    }   // end PrivateMessagePacket()
+    
+    /** 
+     * Creates a new instance of PrivateMessagePacket
+     *
+     * @param frame
+     *        the binary data of this packet (without the type and length bytes),
+     *        no reference to it is kept
+     * @throws MalformedPacketException
+     *         if the packet is malformed
+     */
+    public PrivateMessagePacket(ByteBuffer frame, Direction d) throws MalformedPacketException {
         try {
-            m_data                = data;
+            m_data                = null;
             m_direction           = d;
-            PacketParser parser = new PacketParser(data);
+            PacketParser parser = new PacketParser(frame);
         
             // Parse the packet
             m_characterID = parser.parseInt();
@@ -112,11 +125,24 @@ public class PrivateMessagePacket extends MessagePacket {
             parser.close();
         } catch (IOException e) {
             throw new MalformedPacketException(
-                "The packet could not be parsed.", e, new UnparsablePacket(TYPE, data, d)
+                "The packet could not be parsed.", e, new UnparsablePacket(TYPE, PacketParser.toArray(frame), d)
             );
         }   // end catch
     }   // end PrivateMessagePacket()
     
+    /** Serializes a packet that was parsed from a frame */
+    private byte[] serialize() {
+        PacketSerializer serializer =
+            new PacketSerializer( 4 + 4 + m_msg.length() + m_str.length() );
+        serializer.write(m_characterID);
+        serializer.write(m_msg);
+        serializer.write(m_str);
+        
+        byte[] result = serializer.getResult();
+        serializer.close();
+        return result;
+    }   // end serialize()
+    
     /** Returns the ID of the sender/receiver of this message */
     public int getCharID() { return m_characterID; }
     /** Returns the message that was sent/received */
@@ -125,7 +151,11 @@ public class PrivateMessagePacket extends MessagePacket {
     
     /** Always returns {@value #TYPE} */
     public short getType() { return TYPE; }
-    public byte[] getData() { return m_data; }
+    public byte[] getData() {
+        // Packets parsed from a frame are only serialized on demand
+        if (m_data == null) { m_data = serialize(); }
+        return m_data;
+    }   // end getData()
     /** Returns whether this tell was received or sent by the client */
     public Direction getDirection() { return m_direction; }
     
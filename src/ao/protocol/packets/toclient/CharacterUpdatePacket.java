@@ -24,6 +24,7 @@ import ao.protocol.packets.utils.PacketParser;
 import ao.protocol.packets.utils.PacketSerializer;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * <p>{@code CharacterUpdatePacket}s are periodically sent from the AO server
@@ -41,7 +42,7 @@ public class CharacterUpdatePacket extends Packet {
     public static final short TYPE = 20;
     private final int m_id;
     private final String m_name;
-    private final byte[] m_data;
+    private byte[] m_data;
 
     /**
      * Creates a new instance of CharacterUpdatePacket
@@ -60,15 +61,7 @@ public class CharacterUpdatePacket extends Packet {
 
         m_id = id;
         m_name = name;
-
-        // Serialize the packet
-        PacketSerializer serializer =
-                new PacketSerializer(6 + m_name.length());
-        serializer.write(m_id);
-        serializer.write(m_name);
-
-        m_data = serializer.getResult();
-        serializer.close();
+        m_data = serialize();
     }   // end CharacterUpdatePacket()
 
     /** 
@@ -82,13 +75,23 @@ public class CharacterUpdatePacket extends Packet {
      *         if the packet is malformed
      */
     public CharacterUpdatePacket(byte[] data) throws MalformedPacketException {
-        if (data == null) {
-            throw new NullPointerException("No binary data was passed.");
-        }
+        this(PacketParser.wrap(data));
+        m_data = data;
+    }   // end CharacterUpdatePacket()
 
+    /** 
+     * Creates a new instance of CharacterUpdatePacket
+     *
+     * @param frame
+     *        the binary data of this packet (without the type and length bytes),
+     *        no reference to it is kept
+     * @throws AOMalformedPacketException
+     *         if the packet is malformed
+     */
+    public CharacterUpdatePacket(ByteBuffer frame) throws MalformedPacketException {
         try {
-            m_data = data;
-            PacketParser parser = new PacketParser(data);
+            m_data = null;
+            PacketParser parser = new PacketParser(frame);
 
             // Parse the packet
             m_id = parser.parseInt();
@@ -97,10 +100,22 @@ public class CharacterUpdatePacket extends Packet {
             parser.close();
         } catch (IOException e) {
             throw new MalformedPacketException(
-                    "The packet could not be parsed.", e, new UnparsablePacket(TYPE, data, Direction.TO_CLIENT));
+                    "The packet could not be parsed.", e, new UnparsablePacket(TYPE, PacketParser.toArray(frame), Direction.TO_CLIENT));
         }   // end catch
     }   // end CharacterUpdatePacket()
 
+    /** Serializes the packet */
+    private byte[] serialize() {
+        PacketSerializer serializer =
+                new PacketSerializer(6 + m_name.length());
+        serializer.write(m_id);
+        serializer.write(m_name);
+
+        byte[] result = serializer.getResult();
+        serializer.close();
+        return result;
+    }   // end serialize()
+
     /** Returns the id of the character */
     public int getCharacterID() {
         return m_id;
@@ -117,6 +132,10 @@ public class CharacterUpdatePacket extends Packet {
     }
 
     public byte[] getData() {
+        // Packets parsed from a frame are only serialized on demand
+        if (m_data == null) {
+            m_data = serialize();
+        }
         return m_data;
     }
 
@@ -37,7 +37,8 @@ public class SystemMessagePacket extends Packet {
     private final int m_windowID;
     private final int m_messageID;
     private final String m_msg;
-    private final ExtendedMessage m_ex_msg;
+    private final MMDBDatabase m_db;
+    private ExtendedMessage m_ex_msg;
     private final byte[] m_data;
 
     /**
@@ -59,6 +60,7 @@ public class SystemMessagePacket extends Packet {
         m_windowID = windowID;
         m_messageID = messageID;
         m_msg = msg;
+        m_db = db;
         m_ex_msg = new ExtendedMessage(cat_id, m_messageID, m_msg, db);
 
         // Serialize the packet
@@ -86,6 +88,24 @@ public class SystemMessagePacket extends Packet {
      *         if the packet is malformed
      */
     public SystemMessagePacket(byte[] data, MMDBDatabase db) throws MalformedPacketException {
+        this(data, db, false);
+    }   // end SystemMessagePacket()
+
+    /**
+     * Creates a new instance of SimpleSystemMessagePacket
+     *
+     * @param data
+     *        the binary data of this packet (without the type and length bytes)
+     * @param db
+     *        The mdb database that will be used for extended messages
+     * @param lazy
+     *        whether the extended message is only resolved when it is first asked for
+     * @throws NullPointerException
+     *         if data is null
+     * @throws AOMalformedPacketException
+     *         if the packet is malformed
+     */
+    public SystemMessagePacket(byte[] data, MMDBDatabase db, boolean lazy) throws MalformedPacketException {
         if (data == null) { throw new NullPointerException("No binary data was passed."); }
         
         try {
@@ -100,7 +120,8 @@ public class SystemMessagePacket extends Packet {
         
             parser.close();
 
-            m_ex_msg = new ExtendedMessage(cat_id, m_messageID, m_msg, db);
+            m_db = db;
+            if (!lazy) { getExtendedMessage(); }
 
         } catch (IOException e) {
             throw new MalformedPacketException(
@@ -115,12 +136,19 @@ public class SystemMessagePacket extends Packet {
     public String getMessage(){ return m_msg; }
     public String getMsgType() { return Integer.toHexString(m_messageID); }
     public int getCharID() { return m_clientID; }
+    /** Returns the extended message, it is resolved on first use */
+    public synchronized ExtendedMessage getExtendedMessage() {
+        if (m_ex_msg == null) {
+            m_ex_msg = new ExtendedMessage(cat_id, m_messageID, m_msg, m_db);
+        }
+        return m_ex_msg;
+    }
 
     /** Always returns {@code Direction.TO_CLIENT} */
     public Direction getDirection() { return Direction.TO_CLIENT; }
 
     public String display(){
-        return m_ex_msg.getFormattedMessage();
+        return getExtendedMessage().getFormattedMessage();
     }
     
     @Override
@@ -0,0 +1,52 @@
+/*
+ * FramePacketFactory.java
+ *
+ *************************************************************************
+ * Copyright 2026 The AnarchyTalk contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ao.protocol.packets.utils;
+
+import ao.protocol.packets.MalformedPacketException;
+import ao.protocol.packets.Packet;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link PacketFactory} that can parse packets straight out of a
+ * reusable frame buffer, so the client does not need to copy every
+ * packet into a fresh array before parsing it.
+ *
+ * @see PacketParser#PacketParser(java.nio.ByteBuffer)
+ */
+public interface FramePacketFactory extends PacketFactory {
+
+    /** 
+     * Converts the raw data of a packet into usable data. 
+     *
+     * @param type
+     *        the type of the packet to be parsed
+     * @param frame
+     *        the binary data of the packet between the buffer's position and limit
+     *        (without the type and length bytes). The packet returned must not keep
+     *        a reference to the frame, it is reused as soon as this method returns.
+     * @return
+     *        a parsed packet or an instance of {@link ao.protocol.packets.UnparsablePacket} 
+     *        if the packet type is not recognized
+     * @throws ao.protocol.packets.MalformedPacketException
+     *         if the packet could not be successfully parsed 
+     */
+    Packet toPacket(short type, ByteBuffer frame) throws MalformedPacketException;
+    
+}   // end interface FramePacketFactory
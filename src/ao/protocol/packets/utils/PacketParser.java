@@ -20,20 +20,37 @@
 
 package ao.protocol.packets.utils;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 
 /**
  * AOPacketParser is a utility class for parsing the binary data of packets.
  *
+ * <p>The parser reads with absolute indexes straight out of the byte array
+ * or frame it was given, nothing is copied except the parsed values.
+ * Strings are decoded with a decoder cached per thread.</p>
+ *
  * @author Paul Smith
  */
 public class PacketParser {
 
-    private DataInputStream m_input;
-    public final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+    public static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+    private static final ThreadLocal<Decoder> DECODER = new ThreadLocal<Decoder>() {
+
+        @Override
+        protected Decoder initialValue() {
+            return new Decoder();
+        }
+    };
+    private ByteBuffer m_input;
+    private int m_pos;
+    private final int m_limit;
 
     /** 
      * Creates a new instance of AOPacketParser 
@@ -42,15 +59,68 @@ public class PacketParser {
      *        the binary data that will be parsed
      */
     public PacketParser(byte[] data) {
-        m_input = new DataInputStream(new ByteArrayInputStream(data));
+        this(wrap(data));
+    }   // end PacketParser()
+
+    /** 
+     * Creates a new instance of AOPacketParser that parses the bytes
+     * between the frame's position and limit. The frame itself is not
+     * modified, but it must not be reused while the parser is in use.
+     *
+     * @param frame
+     *        the binary data that will be parsed
+     */
+    public PacketParser(ByteBuffer frame) {
+        m_input = frame.duplicate();
+        m_input.order(ByteOrder.BIG_ENDIAN);
+        m_pos = frame.position();
+        m_limit = frame.limit();
     }   // end PacketParser()
 
+    /** 
+     * Wraps the binary data of a packet
+     *
+     * @throws NullPointerException
+     *         if data is null
+     */
+    public static ByteBuffer wrap(byte[] data) {
+        if (data == null) { throw new NullPointerException("No binary data was passed."); }
+        return ByteBuffer.wrap(data);
+    }   // end wrap()
+
+    /** Copies the bytes between the frame's position and limit */
+    public static byte[] toArray(ByteBuffer frame) {
+        byte[] result = new byte[frame.remaining()];
+        if (frame.hasArray()) {
+            System.arraycopy(frame.array(), frame.arrayOffset() + frame.position(), result, 0, result.length);
+        } else {
+            frame.duplicate().get(result);
+        }   // end else
+        return result;
+    }   // end toArray()
+
+    /** Returns the number of bytes that have not been parsed yet */
+    public int remaining() {
+        return m_limit - m_pos;
+    }   // end remaining()
+
+    private void require(int length) throws IOException {
+        if (m_input == null) {
+            throw new IOException("The parser has been closed.");
+        } else if (m_limit - m_pos < length) {
+            throw new EOFException();
+        }   // end else
+    }   // end require()
+
     /** 
      * Parses the next byte (8 bits) 
      * @see PacketSerializer#write(byte)
      */
     public byte parseByte() throws IOException {
-        return m_input.readByte();
+        require(1);
+        byte result = m_input.get(m_pos);
+        m_pos += 1;
+        return result;
     }   // end parseByte()
 
     /** 
@@ -58,7 +128,10 @@ public class PacketParser {
      * @see PacketSerializer#write(short)
      */
     public short parseShort() throws IOException {
-        return m_input.readShort();
+        require(2);
+        short result = m_input.getShort(m_pos);
+        m_pos += 2;
+        return result;
     }   // end parseShort()
 
     /** 
@@ -66,7 +139,10 @@ public class PacketParser {
      * @see PacketSerializer#write(int)
      */
     public int parseInt() throws IOException {
-        return m_input.readInt();
+        require(4);
+        int result = m_input.getInt(m_pos);
+        m_pos += 4;
+        return result;
     }   // end parseInt()
 
     /** 
@@ -74,23 +150,32 @@ public class PacketParser {
      * @see PacketSerializer#write(long)
      */
     public long parseLong() throws IOException {
-        return m_input.readLong();
+        require(8);
+        long result = m_input.getLong(m_pos);
+        m_pos += 8;
+        return result;
     }   // end parseLong()
 
     /** 
      * Parses a string (16 bit length, 8*length bit character data) 
      *
-     * <p>NOTE: Characters are parsed as 8 bit ASCII, rather than Java's normal 16 bit Unicode.</p>
+     * <p>NOTE: Characters are decoded as UTF-8.</p>
      *
      * @see #parseShort()
      * @see PacketSerializer#write(String)
      */
     public String parseString() throws IOException {
-        short length = parseShort();
-        byte[] bytes = new byte[length];
-        m_input.readFully(bytes);
-        return new String(bytes, "UTF-8");
-        //return new String(bytes, UTF8_CHARSET);
+        int length = parseShort() & 0xFFFF;
+        require(length);
+        if (length == 0) {
+            return "";
+        }   // end if
+
+        m_input.limit(m_pos + length).position(m_pos);
+        String result = DECODER.get().decode(m_input, length);
+        m_input.limit(m_input.capacity());
+        m_pos += length;
+        return result;
     }   // end parseString()
 
     /** 
@@ -136,30 +221,59 @@ public class PacketParser {
      * @see PacketSerializer#write40Bit(byte[])
      */
     public byte[] parse40Bit() throws IOException {
+        require(5);
         byte[] result = new byte[5];
 
         for (int i = 0; i < 5; ++i) {
-            result[i] = parseByte();
+            result[i] = m_input.get(m_pos + i);
         }   // end for
+        m_pos += 5;
 
         return result;
     }   // end parse40Bit()
 
-    /** Closes the parser's underlying stream */
+    /** 
+     * Parses a 40 bit chunck of data packed into a long, without allocating
+     *
+     * @see ao.protocol.GroupTable#toKey(byte[])
+     */
+    public long parse40BitLong() throws IOException {
+        require(5);
+        long result = 0;
+
+        for (int i = 0; i < 5; ++i) {
+            result = (result << 8) | (m_input.get(m_pos + i) & 0xFF);
+        }   // end for
+        m_pos += 5;
+
+        return result;
+    }   // end parse40BitLong()
+
+    /** Releases the parser's reference to its data */
     public void close() {
-        try {
-            m_input.close();
-            m_input = null;
-        } catch (IOException e) {
-        } catch (NullPointerException e) {
-        }
+        m_input = null;
     }   // end close()
 
-    @Override
-    protected void finalize() throws Throwable {
-        super.finalize();
-        close();
-    }   // end dispose()
+    /** A UTF-8 decoder and the char buffer it decodes into */
+    private static class Decoder {
 
-}   // end class AOPacketParser
+        private final CharsetDecoder m_decoder = UTF8_CHARSET.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private CharBuffer m_chars = CharBuffer.allocate(256);
 
+        public String decode(ByteBuffer in, int length) {
+            // UTF-8 never decodes to more chars than it has bytes
+            if (m_chars.capacity() < length) {
+                m_chars = CharBuffer.allocate(Math.max(length, m_chars.capacity() * 2));
+            }   // end if
+
+            m_chars.clear();
+            m_decoder.reset();
+            m_decoder.decode(in, m_chars, true);
+            m_decoder.flush(m_chars);
+            m_chars.flip();
+            return m_chars.toString();
+        }   // end decode()
+    }   // end class Decoder
+}   // end class AOPacketParser
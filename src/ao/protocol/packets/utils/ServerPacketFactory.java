@@ -0,0 +1,109 @@
+/*
+ * ServerPacketFactory.java
+ *
+ *************************************************************************
+ * Copyright 2026 The AnarchyTalk contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ao.protocol.packets.utils;
+
+import ao.protocol.packets.*;
+import ao.protocol.packets.toserver.*;
+import ao.protocol.packets.bi.*;
+import java.io.IOException;
+
+/**
+ * <p>ServerPacketFactory parses the packets a client sends, for the server
+ * side of a connection (see {@link ao.chat.ServerConnection}).</p>
+ *
+ * <p>Several of the packets that travel both ways are laid out differently on
+ * their way to the server, they are parsed with their outgoing format and
+ * direction here. Packets only a server sends are returned unparsed.</p>
+ */
+public class ServerPacketFactory implements PacketFactory {
+
+    /** Creates a new instance of ServerPacketFactory */
+    public ServerPacketFactory() {
+    }
+
+    public Packet toPacket(short type, byte[] data) throws MalformedPacketException {
+        switch (type) {
+            case LoginRequestPacket.TYPE:
+                return new LoginRequestPacket(data);          // TYPE 2
+            case LoginSelectPacket.TYPE:
+                return new LoginSelectPacket(data);           // TYPE 3
+            case PrivateChannelAcceptPacket.TYPE:
+                return new PrivateChannelAcceptPacket(data);         // TYPE 52
+            case PrivateChannelLeavePacket.TYPE:
+                return new PrivateChannelLeavePacket(data);         // TYPE 53
+            case PrivateChannelKickAllPacket.TYPE:
+                return new PrivateChannelKickAllPacket();         // TYPE 54
+            case ChatCommandPacket.TYPE:
+                return new ChatCommandPacket(data);    // TYPE 120
+
+            //Bidirectional Packets
+            case CharacterLookupPacket.TYPE:
+                return parseLookup(data);                     // TYPE 21
+            case FriendUpdatePacket.TYPE:
+                return parseFriendUpdate(data);               // TYPE 40
+            case PrivateMessagePacket.TYPE:
+                return new PrivateMessagePacket(data, Packet.Direction.TO_SERVER);   // TYPE 30
+            case FriendRemovePacket.TYPE:
+                return new FriendRemovePacket(data, Packet.Direction.TO_SERVER);          // TYPE 41
+            case PrivateChannelInvitePacket.TYPE:
+                return new PrivateChannelInvitePacket(data, Packet.Direction.TO_SERVER);    // TYPE 50
+            case PrivateChannelKickPacket.TYPE:
+                return new PrivateChannelKickPacket(data, Packet.Direction.TO_SERVER);      // TYPE 51
+            case PrivateChannelMessagePacket.TYPE:
+                return new PrivateChannelMessagePacket(data, Packet.Direction.TO_SERVER);    // TYPE 57
+            case ChannelMessagePacket.TYPE:
+                return new ChannelMessagePacket(data, null, Packet.Direction.TO_SERVER);   // TYPE 65
+            case PingPacket.TYPE:
+                return new PingPacket(data, Packet.Direction.TO_SERVER);   // TYPE 100
+
+            //Unparsed Packets
+            default:
+                return new UnparsablePacket(type, data, Packet.Direction.TO_SERVER);
+        }   // end switch
+    }   // end toPacket()
+
+    /** A lookup only holds the name on its way to the server */
+    private static Packet parseLookup(byte[] data) throws MalformedPacketException {
+        try {
+            PacketParser parser = new PacketParser(data);
+            String name = parser.parseString();
+            parser.close();
+            return new CharacterLookupPacket(name, Packet.Direction.TO_SERVER);
+        } catch (IOException e) {
+            throw new MalformedPacketException(
+                "The packet could not be parsed.", e, new UnparsablePacket(CharacterLookupPacket.TYPE, data, Packet.Direction.TO_SERVER)
+            );
+        }   // end catch
+    }   // end parseLookup()
+
+    /** A friend update has no online flag on its way to the server */
+    private static Packet parseFriendUpdate(byte[] data) throws MalformedPacketException {
+        try {
+            PacketParser parser = new PacketParser(data);
+            int id = parser.parseInt();
+            String flags = parser.parseString();
+            parser.close();
+            return new FriendUpdatePacket(id, flags);
+        } catch (IOException e) {
+            throw new MalformedPacketException(
+                "The packet could not be parsed.", e, new UnparsablePacket(FriendUpdatePacket.TYPE, data, Packet.Direction.TO_SERVER)
+            );
+        }   // end catch
+    }   // end parseFriendUpdate()
+}   // end class ServerPacketFactory
@@ -25,6 +25,7 @@ import ao.protocol.packets.*;
 import ao.protocol.packets.toclient.*;
 import ao.protocol.packets.toserver.*;
 import ao.protocol.packets.bi.*;
+import java.nio.ByteBuffer;
 
 /**
  * {@code SimplePacketFactory} is an implementation of 
@@ -33,21 +34,41 @@ import ao.protocol.packets.bi.*;
  *
  * @author Paul Smith
  * @see #toPacket(short, byte[])
+ * @see #toPacket(short, java.nio.ByteBuffer)
  * @see ao.protocol.packets.utils.PacketFactory
  * @see ao.protocol.packets.Packet
  */
-public class SimplePacketFactory implements PacketFactory {
+public class SimplePacketFactory implements FramePacketFactory {
 
     private final MMDBDatabase database;
+    private final boolean lazy;
     /** Creates a new instance of SimplePacketFactory */
 
     public SimplePacketFactory() {
-        database = null;
+        this(null, false);
     }
 
     public SimplePacketFactory(MMDBDatabase db) {
+        this(db, false);
+    }   // end SimplePacketFactory()
+
+    /**
+     * Creates a new instance of SimplePacketFactory
+     *
+     * @param db
+     *        the mdb database that will be used for extended messages
+     * @param lazy
+     *        if true extended messages are only resolved when a listener asks for them
+     */
+    public SimplePacketFactory(MMDBDatabase db, boolean lazy) {
         database = db;
+        this.lazy = lazy;
     }   // end SimplePacketFactory()
+
+    /** Returns whether extended messages are resolved on demand */
+    public boolean isLazy() {
+        return lazy;
+    }
     
     public Packet toPacket(short type, byte[] data) throws MalformedPacketException {
         switch (type) {
@@ -63,7 +84,7 @@ public class SimplePacketFactory implements PacketFactory {
             case CharacterUnknownPacket.TYPE:
                 return new CharacterUnknownPacket(data);         // TYPE 10
             case SystemMessagePacket.TYPE:
-                return new SystemMessagePacket(data, database);            // TYPE 20
+                return new SystemMessagePacket(data, database, lazy);            // TYPE 37
             case VicinityMessagePacket.TYPE:
                 return new VicinityMessagePacket(data);       // TYPE 34
             case BroadcastMessagePacket.TYPE:
@@ -71,7 +92,7 @@ public class SimplePacketFactory implements PacketFactory {
             case SimpleSystemMessagePacket.TYPE:
                 return new SimpleSystemMessagePacket(data);         // TYPE 36
             case CharacterUpdatePacket.TYPE:
-                return new CharacterUpdatePacket(data);            // TYPE 37
+                return new CharacterUpdatePacket(data);            // TYPE 20
             case PrivateChannelAcceptPacket.TYPE:
                 return new PrivateChannelAcceptPacket(data);         // TYPE 52
             case PrivateChannelLeavePacket.TYPE:
@@ -107,7 +128,7 @@ public class SimplePacketFactory implements PacketFactory {
             case PrivateChannelMessagePacket.TYPE:
                 return new PrivateChannelMessagePacket(data, Packet.Direction.TO_CLIENT);    // TYPE 57
             case ChannelMessagePacket.TYPE:
-                return new ChannelMessagePacket(data, database, Packet.Direction.TO_CLIENT);   // TYPE 65
+                return new ChannelMessagePacket(data, database, Packet.Direction.TO_CLIENT, lazy);   // TYPE 65
             case PingPacket.TYPE:
                 return new PingPacket(data, Packet.Direction.TO_CLIENT);   // TYPE 100
                 
@@ -116,4 +137,23 @@ public class SimplePacketFactory implements PacketFactory {
                 return new UnparsablePacket(type, data, Packet.Direction.TO_CLIENT);
         }   // end switch
     }   // end toPacket()
+    
+    /**
+     * The packets that arrive in bulk are parsed straight out of the frame,
+     * all others are copied out of it and parsed as usual.
+     */
+    public Packet toPacket(short type, ByteBuffer frame) throws MalformedPacketException {
+        switch (type) {
+            case CharacterUpdatePacket.TYPE:
+                return new CharacterUpdatePacket(frame);            // TYPE 20
+            case PrivateMessagePacket.TYPE:
+                return new PrivateMessagePacket(frame, Packet.Direction.TO_CLIENT);   // TYPE 30
+            case PrivateChannelMessagePacket.TYPE:
+                return new PrivateChannelMessagePacket(frame, Packet.Direction.TO_CLIENT);    // TYPE 57
+            case ChannelMessagePacket.TYPE:
+                return new ChannelMessagePacket(frame, database, Packet.Direction.TO_CLIENT, lazy);   // TYPE 65
+            default:
+                return toPacket(type, PacketParser.toArray(frame));
+        }   // end switch
+    }   // end toPacket()
 }   // end class SimplePacketFactory
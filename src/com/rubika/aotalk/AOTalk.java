@@ -109,6 +109,8 @@ import com.viewpagerindicator.TitlePageIndicator;
 
 public class AOTalk extends SherlockFragmentActivity implements ViewPager.OnPageChangeListener, OnSharedPreferenceChangeListener {
 	private static final String APP_TAG = "--> The Leet";
+	// The most messages shown, older ones are left in the database
+	private static final int MESSAGE_LIMIT = 1000;
 
 	public static Messenger service = null;
 	private static Context context;
@@ -923,9 +925,11 @@ public class AOTalk extends SherlockFragmentActivity implements ViewPager.OnPage
 			boolean animate = false;
 			
 	    	if (currentUserID != 0 && messageAdapter.getCount() == 0) {
-	    		newMessages = databaseHandler.getAllPostsForUser(
+	    		newMessages = databaseHandler.getPostsForUser(
 		    			currentUserID, 
-		    			currentShowChannel
+		    			currentShowChannel,
+		    			0,
+		    			MESSAGE_LIMIT
 		    		);
 	    	} else {
 	    		newMessages = databaseHandler.getNewPostsForUser(
@@ -973,10 +977,10 @@ public class AOTalk extends SherlockFragmentActivity implements ViewPager.OnPage
 		    	}
 	    	}
 			
-			if (messageAdapter != null && (messageAdapter.getCount()) > 1000) {
+			if (messageAdapter != null && (messageAdapter.getCount()) > MESSAGE_LIMIT) {
 				List<ChatMessage> remList = new ArrayList<ChatMessage>();
 				
-				for(int i = 0; i <= (messageAdapter.getCount() - 1001); i++){
+				for(int i = 0; i <= (messageAdapter.getCount() - MESSAGE_LIMIT - 1); i++){
 					remList.add(messageAdapter.getItem(i));
 				}
 				
@@ -74,6 +74,7 @@ import android.preference.PreferenceManager;
 import android.preference.PreferenceScreen;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.RingtonePreference;
+import android.text.InputType;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.EditText;
@@ -534,6 +535,64 @@ public class Preferences extends SherlockPreferenceActivity  {
 	    checkboxDnetAsChannel.setSummaryOff(R.string.dnet_as_channel_info_off);
 	    checkboxDnetAsChannel.setDefaultValue(false);
         root.addPreference(checkboxDnetAsChannel);
+        
+        
+        // History, see RetentionPolicy
+	    prefCat = new PreferenceCategory(this);
+	    prefCat.setTitle(getString(R.string.history));
+        root.addPreference(prefCat);
+
+        CheckBoxPreference checkboxRetention = new CheckBoxPreference(this);
+        checkboxRetention.setKey("retention");
+        checkboxRetention.setTitle(getString(R.string.retention));
+        checkboxRetention.setSummaryOn(R.string.retention_info_on);
+        checkboxRetention.setSummaryOff(R.string.retention_info_off);
+        checkboxRetention.setDefaultValue(false);
+        root.addPreference(checkboxRetention);
+        
+        EditTextPreference retentionDays = new EditTextPreference(this);
+        retentionDays.setKey("retentionDays");
+        retentionDays.setTitle(getString(R.string.retention_days));
+        retentionDays.setSummary(getString(R.string.retention_days_info));
+        retentionDays.setDefaultValue("0");
+        retentionDays.getEditText().setInputType(InputType.TYPE_CLASS_NUMBER);
+        root.addPreference(retentionDays);
+        retentionDays.setDependency("retention");
+        
+        EditTextPreference retentionRows = new EditTextPreference(this);
+        retentionRows.setKey("retentionRows");
+        retentionRows.setTitle(getString(R.string.retention_rows));
+        retentionRows.setSummary(getString(R.string.retention_rows_info));
+        retentionRows.setDefaultValue("0");
+        retentionRows.getEditText().setInputType(InputType.TYPE_CLASS_NUMBER);
+        root.addPreference(retentionRows);
+        retentionRows.setDependency("retention");
+        
+        EditTextPreference retentionChannels = new EditTextPreference(this);
+        retentionChannels.setKey("retentionChannels");
+        retentionChannels.setTitle(getString(R.string.retention_channels));
+        retentionChannels.setSummary(getString(R.string.retention_channels_info));
+        retentionChannels.setDefaultValue("");
+        root.addPreference(retentionChannels);
+        retentionChannels.setDependency("retention");
+
+        CheckBoxPreference checkboxRetentionArchive = new CheckBoxPreference(this);
+        checkboxRetentionArchive.setKey("retentionArchive");
+        checkboxRetentionArchive.setTitle(getString(R.string.retention_archive));
+        checkboxRetentionArchive.setSummaryOn(R.string.retention_archive_info_on);
+        checkboxRetentionArchive.setSummaryOff(R.string.retention_archive_info_off);
+        checkboxRetentionArchive.setDefaultValue(true);
+        root.addPreference(checkboxRetentionArchive);
+        checkboxRetentionArchive.setDependency("retention");
+        
+        EditTextPreference archiveDays = new EditTextPreference(this);
+        archiveDays.setKey("archiveDays");
+        archiveDays.setTitle(getString(R.string.archive_days));
+        archiveDays.setSummary(getString(R.string.archive_days_info));
+        archiveDays.setDefaultValue("0");
+        archiveDays.getEditText().setInputType(InputType.TYPE_CLASS_NUMBER);
+        root.addPreference(archiveDays);
+        archiveDays.setDependency("retentionArchive");
        
         /*
 	    //Do lookups on web page
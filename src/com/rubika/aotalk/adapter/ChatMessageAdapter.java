@@ -33,7 +33,6 @@ import com.rubika.aotalk.TheLeet;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
-import android.text.Html;
 import android.text.method.LinkMovementMethod;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -73,17 +72,7 @@ public class ChatMessageAdapter extends ArrayAdapter<ChatMessage> {
 
         TextView t = (TextView) convertView.findViewById(R.id.message);
         
-        String text = entry.getMessage().replaceFirst("] 0:", "]");
-        
-        if (enableTimestamp) {
-        	if (enableFaces) {
-        		text = ChatParser.getFormattedTimeFromLong(entry.getTimestamp()) + "<br />" + text;
-        	} else {
-        		text = ChatParser.getFormattedTimeFromLong(entry.getTimestamp()) + " " + text;
-        	}
-        }
-				
-        t.setText(Html.fromHtml(text));
+        t.setText(entry.getSpanned(enableTimestamp, enableFaces));
         t.setTextColor(getColor(entry));
         t.setMovementMethod(LinkMovementMethod.getInstance());
         
@@ -1,10 +1,17 @@
 package com.rubika.aotalk.database;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.rubika.aotalk.item.Account;
 import com.rubika.aotalk.item.ChatMessage;
+import com.rubika.aotalk.item.SearchHit;
 import com.rubika.aotalk.util.Logging;
 import com.rubika.aotalk.util.Statics;
 import com.rubika.aotalk.util.WidgetController;
@@ -12,17 +19,21 @@ import com.rubika.aotalk.util.WidgetController;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 public class DatabaseHandler extends SQLiteOpenHelper {
 	private static final String APP_TAG = "--> The Leet :: DatabaseHandler";
 
-	private static final int DATABASE_VERSION = 5;
+	private static final int DATABASE_VERSION = 10;
 	private static final String DATABASE_NAME = "aotalk";
 	
 	private static final String TABLE_MESSAGE_NAME = "message";
+    private static final String TABLE_ARCHIVE_NAME = "message_archive";
+    private static final String TABLE_SEARCH_NAME = "message_search";
     private static final String TABLE_ACCOUNT_NAME = "accounts";
     private static final String TABLE_CHARACTER_NAME = "characters";
 	
@@ -33,6 +44,24 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 	private static final String KEY_MESSAGE_CHANNEL = "channelid";
 	private static final String KEY_MESSAGE_USER = "toid";
 	private static final String KEY_MESSAGE_TIME = "timewhen";
+	
+	// The parts of a message, see ChatMessage. Messages written before
+	// version 9 only have their HTML, in KEY_MESSAGE_MESSAGE.
+	private static final String KEY_MESSAGE_KIND = "kind";
+	private static final String KEY_MESSAGE_SENDER = "senderid";
+	private static final String KEY_MESSAGE_GROUP = "groupid";
+	private static final String KEY_MESSAGE_BODY = "body";
+	private static final String KEY_MESSAGE_EX_CATEGORY = "excategory";
+	private static final String KEY_MESSAGE_EX_INSTANCE = "exinstance";
+	private static final String KEY_MESSAGE_EX_PARAMS = "exparams";
+
+    private static final String KEY_ARCHIVE_DAY = "day";
+    private static final String KEY_ARCHIVE_COUNT = "count";
+    private static final String KEY_ARCHIVE_DATA = "data";
+
+    private static final String KEY_SEARCH_TEXT = "text";
+    private static final String KEY_SEARCH_SENDER = "sender";
+    private static final String KEY_SEARCH_CHANNEL = "channel";
 
     private static final String KEY_ACCOUNT_USERNAME = "username";
     private static final String KEY_ACCOUNT_PASSWORD = "password";
@@ -42,16 +71,71 @@ public class DatabaseHandler extends SQLiteOpenHelper {
     private static final String KEY_CHARACTER_NAME = "name";
     private static final String KEY_CHARACTER_IMAGE = "image";
     
+    // IDs are never reused, not even once the newest messages have been
+    // archived or deleted, pages and new posts are found by comparing them
     private static final String CREATE_MESSAGE_TABLE = "CREATE TABLE "
 	    + TABLE_MESSAGE_NAME + "("
-		+ KEY_ID + " INTEGER PRIMARY KEY,"
+		+ KEY_ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
 		+ KEY_MESSAGE_MESSAGE + " TEXT,"
 		+ KEY_MESSAGE_FROM + " TEXT," 
 		+ KEY_MESSAGE_CHANNEL + " TEXT," 
 		+ KEY_MESSAGE_USER + " TEXT," 
-		+ KEY_MESSAGE_TIME + " REAL" 
+		+ KEY_MESSAGE_TIME + " REAL," 
+		+ KEY_MESSAGE_KIND + " INTEGER DEFAULT 0,"
+		+ KEY_MESSAGE_SENDER + " INTEGER,"
+		+ KEY_MESSAGE_GROUP + " INTEGER,"
+		+ KEY_MESSAGE_BODY + " TEXT,"
+		+ KEY_MESSAGE_EX_CATEGORY + " INTEGER,"
+		+ KEY_MESSAGE_EX_INSTANCE + " INTEGER,"
+		+ KEY_MESSAGE_EX_PARAMS + " TEXT"
+		+ ")";
+	
+    // The columns the message table got in version 9
+    private static final String[] ADD_MESSAGE_COLUMNS = new String[] {
+    	KEY_MESSAGE_KIND + " INTEGER DEFAULT 0",
+    	KEY_MESSAGE_SENDER + " INTEGER",
+    	KEY_MESSAGE_GROUP + " INTEGER",
+    	KEY_MESSAGE_BODY + " TEXT",
+    	KEY_MESSAGE_EX_CATEGORY + " INTEGER",
+    	KEY_MESSAGE_EX_INSTANCE + " INTEGER",
+    	KEY_MESSAGE_EX_PARAMS + " TEXT"
+    };
+	
+    // Messages taken out of the message table, a deflated block per user, channel and day
+    private static final String CREATE_ARCHIVE_TABLE = "CREATE TABLE "
+	    + TABLE_ARCHIVE_NAME + "("
+		+ KEY_ID + " INTEGER PRIMARY KEY,"
+		+ KEY_MESSAGE_USER + " TEXT,"
+		+ KEY_MESSAGE_CHANNEL + " TEXT,"
+		+ KEY_ARCHIVE_DAY + " INTEGER,"
+		+ KEY_ARCHIVE_COUNT + " INTEGER,"
+		+ KEY_ARCHIVE_DATA + " BLOB"
+		+ ")";
+	
+    private static final String CREATE_ARCHIVE_INDEX = "CREATE UNIQUE INDEX IF NOT EXISTS "
+	    + TABLE_ARCHIVE_NAME + "_day ON " + TABLE_ARCHIVE_NAME + "("
+		+ KEY_MESSAGE_USER + ","
+		+ KEY_MESSAGE_CHANNEL + ","
+		+ KEY_ARCHIVE_DAY
+		+ ")";
+	
+    // Message text without markup, sender and channel, the docid is the
+    // message ID. FTS4 keeps the statistics the ranking needs, it came with
+    // the SQLite of API 11.
+    private static final String CREATE_SEARCH_TABLE = "CREATE VIRTUAL TABLE "
+	    + TABLE_SEARCH_NAME + " USING "
+	    + (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB ? "fts4" : "fts3") + "("
+		+ KEY_SEARCH_TEXT + ","
+		+ KEY_SEARCH_SENDER + ","
+		+ KEY_SEARCH_CHANNEL
 		+ ")";
 	
+    // Expired messages leave the index with the message table, archived
+    // ones can be read but are not searched, see enforceRetention()
+    private static final String CREATE_SEARCH_TRIGGER = "CREATE TRIGGER IF NOT EXISTS "
+	    + TABLE_SEARCH_NAME + "_delete AFTER DELETE ON " + TABLE_MESSAGE_NAME
+	    + " BEGIN DELETE FROM " + TABLE_SEARCH_NAME + " WHERE docid = old." + KEY_ID + "; END";
+	
     private static final String CREATE_ACCOUNT_TABLE = "CREATE TABLE "
 	    + TABLE_ACCOUNT_NAME + "("
 	    + KEY_ID + " INTEGER PRIMARY KEY,"
@@ -68,28 +152,154 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 	    + KEY_CHARACTER_IMAGE + " TEXT"
 		+ ")";
     
+    private static final String CREATE_MESSAGE_USER_INDEX = "CREATE INDEX IF NOT EXISTS "
+	    + TABLE_MESSAGE_NAME + "_user ON " + TABLE_MESSAGE_NAME + "("
+		+ KEY_MESSAGE_USER + ","
+		+ KEY_ID
+		+ ")";
+    
+    private static final String CREATE_MESSAGE_CHANNEL_INDEX = "CREATE INDEX IF NOT EXISTS "
+	    + TABLE_MESSAGE_NAME + "_channel ON " + TABLE_MESSAGE_NAME + "("
+		+ KEY_MESSAGE_USER + ","
+		+ KEY_MESSAGE_CHANNEL + ","
+		+ KEY_ID
+		+ ")";
+    
+    // The columns readPost() reads, in this order
+    private static final String[] MESSAGE_COLUMNS = new String[] {
+    	KEY_ID, KEY_MESSAGE_MESSAGE, KEY_MESSAGE_FROM, KEY_MESSAGE_CHANNEL, KEY_MESSAGE_USER, KEY_MESSAGE_TIME,
+    	KEY_MESSAGE_KIND, KEY_MESSAGE_SENDER, KEY_MESSAGE_GROUP, KEY_MESSAGE_BODY,
+    	KEY_MESSAGE_EX_CATEGORY, KEY_MESSAGE_EX_INSTANCE, KEY_MESSAGE_EX_PARAMS
+    };
+    
+    private static final String MESSAGE_USER_CHANNEL = KEY_MESSAGE_USER + " = ? AND " + KEY_MESSAGE_CHANNEL + " = ?";
+    
+    // Messages expired in one transaction
+    private static final int RETENTION_CHUNK = 2000;
+    // Pages handed back to the file system by one incremental vacuum step
+    private static final int VACUUM_STEP = 256;
+    // Old messages added to the search index in one transaction
+    private static final int INDEX_CHUNK = 1000;
+    // Search hits ranked by how well they match, the newest first. The
+    // ranking needs matchinfo(), which older SQLite versions do not have.
+    private static final int RANK_WINDOW = 500;
+    private static final boolean SEARCH_RANKED = android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB;
+    
+    private static final Comparator<ChatMessage> NEWEST_FIRST = new Comparator<ChatMessage>() {
+		@Override
+		public int compare(ChatMessage a, ChatMessage b) {
+			return a.getId() < b.getId() ? 1 : (a.getId() > b.getId() ? -1 : 0);
+		}
+	};
+    
+    private static final String INSERT_MESSAGE = "INSERT INTO "
+	    + TABLE_MESSAGE_NAME + "("
+		+ KEY_MESSAGE_KIND + ","
+		+ KEY_MESSAGE_SENDER + ","
+		+ KEY_MESSAGE_FROM + ","
+		+ KEY_MESSAGE_GROUP + ","
+		+ KEY_MESSAGE_CHANNEL + ","
+		+ KEY_MESSAGE_BODY + ","
+		+ KEY_MESSAGE_EX_CATEGORY + ","
+		+ KEY_MESSAGE_EX_INSTANCE + ","
+		+ KEY_MESSAGE_EX_PARAMS + ","
+		+ KEY_MESSAGE_USER + ","
+		+ KEY_MESSAGE_TIME
+		+ ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    
+    private static final String INDEX_MESSAGE = "INSERT INTO "
+	    + TABLE_SEARCH_NAME + "("
+		+ "docid,"
+		+ KEY_SEARCH_TEXT + ","
+		+ KEY_SEARCH_SENDER + ","
+		+ KEY_SEARCH_CHANNEL
+		+ ") VALUES (?, ?, ?, ?)";
+    
     private Context context;
+    private final PostWriter postWriter;
+    private volatile PostListener postListener = null;
     private static DatabaseHandler instance = null;
 
-    public static DatabaseHandler getInstance(Context ctx) {
+    public static synchronized DatabaseHandler getInstance(Context ctx) {
 		// Use the application context, which will ensure that you 
 		// don't accidentally leak an Activity's context.
 		// See this article for more information: http://bit.ly/6LRzfx
 		if (instance == null) {
+			createDatabase(ctx.getApplicationContext());
 			instance = new DatabaseHandler(ctx.getApplicationContext());
 		}
 		
 		return instance;
     }
     
+    /**
+     * Creates a new database file in incremental vacuum mode, which can only
+     * be chosen before its first table. Databases that exist keep their
+     * mode, switching it would take a full VACUUM.
+     */
+    private static void createDatabase(Context context) {
+    	File path = context.getDatabasePath(DATABASE_NAME);
+    	
+    	if (path.exists()) {
+    		return;
+    	}
+    	
+    	try {
+    		path.getParentFile().mkdirs();
+    		SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(path, null);
+    		
+    		try {
+    			// The mode is written to the file with its first page
+    			db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+    			db.execSQL("CREATE TABLE vacuum_mode (id INTEGER)");
+    			db.execSQL("DROP TABLE vacuum_mode");
+    		} finally {
+    			db.close();
+    		}
+    	} catch (SQLiteException e) {
+    		Logging.log(APP_TAG, e.getMessage());
+    	}
+    }
+    
     public DatabaseHandler(Context context) {
     	super(context, DATABASE_NAME, null, DATABASE_VERSION);
     	this.context = context;
+    	this.postWriter = new PostWriter(this, INSERT_MESSAGE, INDEX_MESSAGE, new PostWriter.Callback() {
+			@Override
+			public void committed(PostWriter.Post last, long lastId) {
+				// One widget update per batch, the widgets only show the latest line
+				ChatMessage message = last.message;
+				
+				WidgetController.setText(message.getMessage(), message.getType(), DatabaseHandler.this.context);
+				WidgetController.setClearText(message.getMessage(), message.getCharacter(), message.getChannel(), DatabaseHandler.this.context);
+
+				PostListener listener = postListener;
+				if (listener != null) {
+					listener.postsCommitted(lastId);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+
+		// Readers do not wait for the writer's transactions in WAL mode
+		if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB && !db.isReadOnly()) {
+			db.enableWriteAheadLogging();
+		}
 	}
 
 	@Override
 	public void onCreate(SQLiteDatabase db) {
 		db.execSQL(CREATE_MESSAGE_TABLE);
+		db.execSQL(CREATE_MESSAGE_USER_INDEX);
+		db.execSQL(CREATE_MESSAGE_CHANNEL_INDEX);
+		db.execSQL(CREATE_ARCHIVE_TABLE);
+		db.execSQL(CREATE_ARCHIVE_INDEX);
+		db.execSQL(CREATE_SEARCH_TABLE);
+		db.execSQL(CREATE_SEARCH_TRIGGER);
 		db.execSQL(CREATE_ACCOUNT_TABLE);
 		db.execSQL(CREATE_CHARACTER_TABLE);
 		
@@ -98,91 +308,237 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		db.execSQL("DROP TABLE IF EXISTS " + TABLE_MESSAGE_NAME);
-		db.execSQL("DROP TABLE IF EXISTS " + TABLE_ACCOUNT_NAME);
-		db.execSQL("DROP TABLE IF EXISTS " + TABLE_CHARACTER_NAME);
+		// Databases older than version 5 are rebuilt, from there on each
+		// version is migrated to the next one and nothing is lost
+		if (oldVersion < 5) {
+			db.execSQL("DROP TABLE IF EXISTS " + TABLE_MESSAGE_NAME);
+			db.execSQL("DROP TABLE IF EXISTS " + TABLE_ARCHIVE_NAME);
+			db.execSQL("DROP TABLE IF EXISTS " + TABLE_SEARCH_NAME);
+			db.execSQL("DROP TABLE IF EXISTS " + TABLE_ACCOUNT_NAME);
+			db.execSQL("DROP TABLE IF EXISTS " + TABLE_CHARACTER_NAME);
+			
+			onCreate(db);
+			return;
+		}
 		
-		onCreate(db);
+		if (oldVersion < 6) {
+			db.execSQL(CREATE_MESSAGE_USER_INDEX);
+			db.execSQL(CREATE_MESSAGE_CHANNEL_INDEX);
+		}
+		
+		if (oldVersion < 7) {
+			db.execSQL(CREATE_ARCHIVE_TABLE);
+			db.execSQL(CREATE_ARCHIVE_INDEX);
+		}
+		
+		// The messages already written are indexed by indexHistory()
+		if (oldVersion < 8) {
+			db.execSQL(CREATE_SEARCH_TABLE);
+			db.execSQL(CREATE_SEARCH_TRIGGER);
+		}
+		
+		// Older messages keep their HTML, readPost() tells them apart
+		if (oldVersion < 9) {
+			for (String column : ADD_MESSAGE_COLUMNS) {
+				db.execSQL("ALTER TABLE " + TABLE_MESSAGE_NAME + " ADD COLUMN " + column);
+			}
+		}
+		
+		if (oldVersion < 10) {
+			useAutoincrement(db);
+		}
 	}
 	
-	public void deleteAllPosts() {
-		synchronized(this) {
-			try {	
-				SQLiteDatabase db = this.getWritableDatabase();
-				
-				db.delete(TABLE_MESSAGE_NAME, null, null);
-				db.close();
-			} catch (SQLiteException e) {
-				Logging.log(APP_TAG, e.getMessage());				
+	/**
+	 * Rebuilds the message table with AUTOINCREMENT, so SQLite remembers the
+	 * highest ID it handed out. Without it a new message gets the ID after
+	 * the highest one left in the table, lower than messages that were
+	 * archived or deleted after it. The sequence starts above the archive.
+	 */
+	private static void useAutoincrement(SQLiteDatabase db) {
+		StringBuilder columns = new StringBuilder();
+		
+		for (String column : MESSAGE_COLUMNS) {
+			columns.append(columns.length() == 0 ? "" : ",").append(column);
+		}
+		
+		String temp = TABLE_MESSAGE_NAME + "_new";
+		
+		db.execSQL(CREATE_MESSAGE_TABLE.replaceFirst(TABLE_MESSAGE_NAME, temp));
+		db.execSQL("INSERT INTO " + temp + "(" + columns + ") SELECT " + columns + " FROM " + TABLE_MESSAGE_NAME);
+		// Dropping a table fires no delete triggers, the search index stays
+		db.execSQL("DROP TABLE " + TABLE_MESSAGE_NAME);
+		db.execSQL("ALTER TABLE " + temp + " RENAME TO " + TABLE_MESSAGE_NAME);
+		db.execSQL(CREATE_MESSAGE_USER_INDEX);
+		db.execSQL(CREATE_MESSAGE_CHANNEL_INDEX);
+		db.execSQL(CREATE_SEARCH_TRIGGER);
+		
+		long archived = 0;
+		Cursor cursor = db.query(TABLE_ARCHIVE_NAME, new String[] { KEY_ARCHIVE_DATA }, null, null, null, null, null);
+		
+		try {
+			while (cursor.moveToNext()) {
+				for (MessageArchive.Row row : MessageArchive.decode(cursor.getBlob(0))) {
+					archived = Math.max(archived, row.id);
+				}
 			}
+		} catch (IOException e) {
+			Logging.log(APP_TAG, e.getMessage());
+		} finally {
+			cursor.close();
 		}
+		
+		String[] name = new String[] { TABLE_MESSAGE_NAME };
+		
+		if (DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_sequence WHERE name = ?", name) == 0) {
+			db.execSQL("INSERT INTO sqlite_sequence (name, seq) VALUES (?, 0)", name);
+		}
+		
+		db.execSQL("UPDATE sqlite_sequence SET seq = MAX(seq, ?) WHERE name = ?",
+				new Object[] { archived, TABLE_MESSAGE_NAME });
 	}
 	
-	public void deleteAllPostsForUser(int userid) {
-		synchronized(this) {
-			try {
-				SQLiteDatabase db = this.getWritableDatabase();
-				
-				db.delete(TABLE_MESSAGE_NAME, KEY_MESSAGE_USER + " = ?", new String[] { String.valueOf(userid) });
-				db.close();
-			} catch (SQLiteException e) {
-				Logging.log(APP_TAG, e.getMessage());				
+	public void deleteAllPosts() {
+		postWriter.discard(0, new Runnable() {
+			@Override
+			public void run() {
+				synchronized(DatabaseHandler.this) {
+					try {	
+						SQLiteDatabase db = getWritableDatabase();
+						
+						db.delete(TABLE_MESSAGE_NAME, null, null);
+						db.delete(TABLE_ARCHIVE_NAME, null, null);
+					} catch (SQLiteException e) {
+						Logging.log(APP_TAG, e.getMessage());				
+					}
+				}
 			}
-		}
+		});
+	}
+	
+	public void deleteAllPostsForUser(final int userid) {
+		postWriter.discard(userid, new Runnable() {
+			@Override
+			public void run() {
+				synchronized(DatabaseHandler.this) {
+					try {
+						SQLiteDatabase db = getWritableDatabase();
+						
+						db.delete(TABLE_MESSAGE_NAME, KEY_MESSAGE_USER + " = ?", new String[] { String.valueOf(userid) });
+						db.delete(TABLE_ARCHIVE_NAME, KEY_MESSAGE_USER + " = ?", new String[] { String.valueOf(userid) });
+					} catch (SQLiteException e) {
+						Logging.log(APP_TAG, e.getMessage());				
+					}
+				}
+			}
+		});
 	}
 	
+	/**
+	 * Queues a post, it is written by the post writer in a batch with the
+	 * posts around it and the PostListener is told when it can be read
+	 */
 	public void addPost(String message, String from, String channel, int user) {
+		addPost(new ChatMessage(System.currentTimeMillis(), message.replace("\n", "<br />"), from, channel, 0), user);
+	}
+	
+	/** Queues a post kept as its parts, see ChatMessage */
+	public void addPost(ChatMessage message, int user) {
+		postWriter.add(new PostWriter.Post(message, user));
+	}
+	
+	/** Returns the ID of the last post written, posts up to it can be read */
+	public long getLastPostId() {
+		return postWriter.getLastId();
+	}
+	
+	/**
+	 * Waits until the posts queued so far have been written, or for at most
+	 * a timeout (ms)
+	 * 
+	 * @return true if they were written in time
+	 */
+	public boolean flush(long timeout) {
+		return postWriter.flush(timeout);
+	}
+	
+	public void setPostListener(PostListener listener) {
+		postListener = listener;
+	}
+	
+	public interface PostListener {
+		/** Called on the post writer thread after a batch of posts has been written */
+		void postsCommitted(long lastId);
+	}
+	
+	public List<ChatMessage> getAllPosts() {
 		synchronized(this) {
 			try {
-				SQLiteDatabase db = this.getWritableDatabase();
+				SQLiteDatabase db = this.getReadableDatabase();
 				
-				ContentValues values = new ContentValues();
-			    values.put(KEY_MESSAGE_MESSAGE, message.replace("\n", "<br />").replace("'", "''"));
-			    values.put(KEY_MESSAGE_FROM, from);
-			    values.put(KEY_MESSAGE_CHANNEL, channel);
-			    values.put(KEY_MESSAGE_USER, user);
-			    values.put(KEY_MESSAGE_TIME, System.currentTimeMillis());
-		
-			    db.insert(TABLE_MESSAGE_NAME, null, values);
-			    			    
-			    WidgetController.setText(message, ChatMessage.getType(channel), context);
-			    WidgetController.setClearText(message, from, channel, context);
+			    Cursor cursor = db.query(TABLE_MESSAGE_NAME, MESSAGE_COLUMNS, null, null, null, null, KEY_ID + " DESC");
 			    
-			    db.close();
+			    try {
+			    	return readPosts(cursor);
+			    } finally {
+			    	cursor.close();
+			    }
 			} catch (SQLiteException e) {
 				Logging.log(APP_TAG, e.getMessage());				
 			}
+			
+			return null;
 		}
 	}
 	
-	public List<ChatMessage> getAllPosts() {
+	/**
+	 * Returns a page of the posts of a user, oldest first. Pages are keyed by
+	 * ID, the next page back is the one before the first post of this one.
+	 * Archived posts are merged in by ID, retention runs per channel so one
+	 * channel can have archived posts newer than the posts another one still
+	 * has in the message table, see enforceRetention().
+	 * 
+	 * @param before
+	 *            only posts with a lower ID are returned, 0 for the latest
+	 * @param limit
+	 *            the most posts returned
+	 */
+	public List<ChatMessage> getPostsForUser(int userid, String channel, long before, int limit) {
 		synchronized(this) {
 			try {
 				SQLiteDatabase db = this.getReadableDatabase();
 				
-				List<ChatMessage> messages = new ArrayList<ChatMessage>();
-			    String selectQuery = "SELECT  * FROM " + TABLE_MESSAGE_NAME + " ORDER BY " + KEY_ID + " DESC";
-			 
-			    Cursor cursor = db.rawQuery(selectQuery, null);
-			 
-			    if (cursor.moveToFirst()) {
-			        do {
-			        	messages.add(
-			        		new ChatMessage(
-			        			cursor.getLong(cursor.getColumnIndex(KEY_MESSAGE_TIME)),
-			        			cursor.getString(cursor.getColumnIndex(KEY_MESSAGE_MESSAGE)),
-			        			cursor.getString(cursor.getColumnIndex(KEY_MESSAGE_FROM)),
-			        			cursor.getString(cursor.getColumnIndex(KEY_MESSAGE_CHANNEL)),
-			        			cursor.getInt(cursor.getColumnIndex(KEY_ID))
-			        		)
-			        	);
-			        } while (cursor.moveToNext());
+			    Cursor cursor = queryPosts(db, userid, channel, before > 0 ? KEY_ID + " < ?" : null, before, KEY_ID + " DESC", String.valueOf(limit));
+			    
+			    List<ChatMessage> messages;
+			    
+			    try {
+			    	messages = readPosts(cursor);
+			    } finally {
+			    	cursor.close();
 			    }
-		
-			    cursor.close();
-			    db.close();
+			    
+			    // A full page only has to look at the archived days it reaches back to,
+			    // the days before hold older posts. A day of slack covers clock changes.
+			    long fromDay = messages.size() < limit ? 0
+			    		: MessageArchive.day(messages.get(messages.size() - 1).getTimestamp()) - 1;
+			    List<ChatMessage> archived = new ArrayList<ChatMessage>();
+			    addArchivedPosts(db, userid, channel, before, fromDay, limit, archived);
+			    
+			    if (!archived.isEmpty()) {
+			    	messages.addAll(archived);
+			    	Collections.sort(messages, NEWEST_FIRST);
+			    	
+			    	while (messages.size() > limit) {
+			    		messages.remove(messages.size() - 1);
+			    	}
+			    }
+			    
+			    Collections.reverse(messages);
 			    
 			    return messages;
+			} catch (IOException e) {
+				Logging.log(APP_TAG, e.getMessage());
 			} catch (SQLiteException e) {
 				Logging.log(APP_TAG, e.getMessage());				
 			}
@@ -191,56 +547,85 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 		}
 	}
 	
-	public List<ChatMessage> getAllPostsForUser(int userid, String channel) {
+	/**
+	 * Adds archived posts with IDs below a post to a list, newest first,
+	 * until it holds limit posts. The archive is read a day at a time, the
+	 * channels of a day are merged by ID for the main channel.
+	 * 
+	 * @param before
+	 *            only posts with a lower ID are added, 0 for all of them
+	 * @param fromDay
+	 *            the oldest day read, 0 for all of them
+	 */
+	private static void addArchivedPosts(SQLiteDatabase db, int userid, String channel, long before, long fromDay, int limit, List<ChatMessage> messages) throws IOException {
+		List<String> args = new ArrayList<String>(3);
+		StringBuilder selection = new StringBuilder(KEY_MESSAGE_USER + " = ?");
+		args.add(String.valueOf(userid));
+		
+		if (!Statics.CHANNEL_MAIN.equals(channel)) {
+			selection.append(" AND " + KEY_MESSAGE_CHANNEL + " = ?");
+			args.add(String.valueOf(channel));
+		}
+		
+		if (fromDay > 0) {
+			selection.append(" AND " + KEY_ARCHIVE_DAY + " >= ?");
+			args.add(String.valueOf(fromDay));
+		}
+		
+		Cursor cursor = db.query(
+				TABLE_ARCHIVE_NAME,
+				new String[] { KEY_ARCHIVE_DAY, KEY_MESSAGE_CHANNEL, KEY_ARCHIVE_DATA },
+				selection.toString(),
+				args.toArray(new String[args.size()]),
+				null,
+				null,
+				KEY_ARCHIVE_DAY + " DESC"
+			);
+		
+		try {
+			List<ChatMessage> day = new ArrayList<ChatMessage>();
+			boolean more = cursor.moveToNext();
+			
+			while (more && messages.size() < limit) {
+				long current = cursor.getLong(0);
+				day.clear();
+				
+				while (more && cursor.getLong(0) == current) {
+					String dayChannel = cursor.getString(1);
+					
+					for (MessageArchive.Row row : MessageArchive.decode(cursor.getBlob(2))) {
+						if (before <= 0 || row.id < before) {
+							day.add(new ChatMessage(row.time, row.text, row.from, dayChannel, (int) row.id));
+						}
+					}
+					
+					more = cursor.moveToNext();
+				}
+				
+				Collections.sort(day, NEWEST_FIRST);
+				
+				for (int i = 0; i < day.size() && messages.size() < limit; i++) {
+					messages.add(day.get(i));
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/** Returns the posts of a user after a post, oldest first */
+	public List<ChatMessage> getNewPostsForUser(int userid, long postid, String channel) {
 		synchronized(this) {
 			try {
 				SQLiteDatabase db = this.getReadableDatabase();
 				
-				List<ChatMessage> messages = new ArrayList<ChatMessage>();
-			    Cursor cursor = null;
+			    Cursor cursor = queryPosts(db, userid, channel, KEY_ID + " > ?", postid, KEY_ID + " ASC", null);
 			    
-			    if (channel == Statics.CHANNEL_MAIN) {
-				    cursor = db.query(
-				    		TABLE_MESSAGE_NAME,
-				    		new String[] { KEY_ID, KEY_MESSAGE_MESSAGE, KEY_MESSAGE_FROM, KEY_MESSAGE_CHANNEL, KEY_MESSAGE_USER, KEY_MESSAGE_TIME },
-				    		KEY_MESSAGE_USER + " = ?",
-				    		new String[] { String.valueOf(userid) },
-				    		null,
-				    		null,
-				    		KEY_ID + " ASC",
-				    		null
-				    	);
-			    } else {
-				    cursor = db.query(
-				    		TABLE_MESSAGE_NAME,
-				    		new String[] { KEY_ID, KEY_MESSAGE_MESSAGE, KEY_MESSAGE_FROM, KEY_MESSAGE_CHANNEL, KEY_MESSAGE_USER, KEY_MESSAGE_TIME },
-				    		KEY_MESSAGE_USER + " = ? AND " + KEY_MESSAGE_CHANNEL + " = ?",
-				    		new String[] { String.valueOf(userid), String.valueOf(channel) },
-				    		null,
-				    		null,
-				    		KEY_ID + " ASC",
-				    		null
-				    	);
-			    }
-			    		 
-			    if (cursor.moveToFirst()) {
-			        do {
-			        	messages.add(
-			        		new ChatMessage(
-			        			cursor.getLong(cursor.getColumnIndex(KEY_MESSAGE_TIME)),
-			        			cursor.getString(cursor.getColumnIndex(KEY_MESSAGE_MESSAGE)).replace("''", "'"),
-			        			cursor.getString(cursor.getColumnIndex(KEY_MESSAGE_FROM)),
-			        			cursor.getString(cursor.getColumnIndex(KEY_MESSAGE_CHANNEL)),
-			        			cursor.getInt(cursor.getColumnIndex(KEY_ID))
-			        		)
-			        	);
-			        } while (cursor.moveToNext());
+			    try {
+			    	return readPosts(cursor);
+			    } finally {
+			    	cursor.close();
 			    }
-			 
-			    cursor.close();
-			    db.close();
-			    
-			    return messages;
 			} catch (SQLiteException e) {
 				Logging.log(APP_TAG, e.getMessage());				
 			}
@@ -249,62 +634,567 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 		}
 	}
 	
-	public List<ChatMessage> getNewPostsForUser(int userid, long postid, String channel) {
+	/**
+	 * Queries the posts of a user in one channel, or in all of them for the
+	 * main channel, the indexes on (user, channel, id) and (user, id) cover
+	 * both the filter and the order
+	 */
+	private Cursor queryPosts(SQLiteDatabase db, int userid, String channel, String idClause, long id, String order, String limit) {
+		List<String> args = new ArrayList<String>(3);
+		StringBuilder selection = new StringBuilder(KEY_MESSAGE_USER + " = ?");
+		args.add(String.valueOf(userid));
+		
+		if (!Statics.CHANNEL_MAIN.equals(channel)) {
+			selection.append(" AND " + KEY_MESSAGE_CHANNEL + " = ?");
+			args.add(String.valueOf(channel));
+		}
+		
+		if (idClause != null) {
+			selection.append(" AND ").append(idClause);
+			args.add(String.valueOf(id));
+		}
+		
+		return db.query(
+				TABLE_MESSAGE_NAME,
+				MESSAGE_COLUMNS,
+				selection.toString(),
+				args.toArray(new String[args.size()]),
+				null,
+				null,
+				order,
+				limit
+			);
+	}
+	
+	/** Reads the posts of a cursor over MESSAGE_COLUMNS */
+	private static List<ChatMessage> readPosts(Cursor cursor) {
+		List<ChatMessage> messages = new ArrayList<ChatMessage>(cursor.getCount());
+		
+		while (cursor.moveToNext()) {
+			messages.add(readPost(cursor));
+		}
+		
+		return messages;
+	}
+	
+	/**
+	 * Reads the post at a cursor over MESSAGE_COLUMNS, by position. Nothing
+	 * is rendered here, ChatMessage does that when the post is shown.
+	 */
+	private static ChatMessage readPost(Cursor cursor) {
+		String html = cursor.getString(1);
+		
+		// Posts written before version 9 are HTML with ' escaped
+		if (html != null) {
+			return new ChatMessage(
+					cursor.getLong(5),
+					html.replace("''", "'"),
+					cursor.getString(2),
+					cursor.getString(3),
+					cursor.getInt(0)
+				);
+		}
+		
+		return new ChatMessage(
+				cursor.getLong(5),
+				cursor.getInt(6),
+				cursor.getInt(7),
+				cursor.getString(2),
+				cursor.getLong(8),
+				cursor.getString(3),
+				cursor.getString(9),
+				cursor.getLong(10),
+				cursor.getLong(11),
+				cursor.getString(12),
+				cursor.getLong(0)
+			);
+	}
+	
+	/**
+	 * Moves the messages a policy no longer keeps to the archive, or deletes
+	 * them, drops archived days that are too old and hands the freed pages
+	 * back to the file system. Takes a while on a big database, call it from
+	 * a background thread.
+	 * 
+	 * @return the number of messages taken out of the message table
+	 */
+	public int enforceRetention(RetentionPolicy policy) {
+		int expired = 0;
+		
+		try {
+			SQLiteDatabase db = this.getWritableDatabase();
+			long now = System.currentTimeMillis();
+			
+			List<String[]> groups = new ArrayList<String[]>();
+			Cursor cursor = db.query(
+					TABLE_MESSAGE_NAME,
+					new String[] { KEY_MESSAGE_USER, KEY_MESSAGE_CHANNEL },
+					null,
+					null,
+					KEY_MESSAGE_USER + ", " + KEY_MESSAGE_CHANNEL,
+					null,
+					null
+				);
+			
+			try {
+				while (cursor.moveToNext()) {
+					if (cursor.getString(0) != null && cursor.getString(1) != null) {
+						groups.add(new String[] { cursor.getString(0), cursor.getString(1) });
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+			
+			for (String[] group : groups) {
+				long before = expireBefore(db, group[0], group[1], policy, now);
+				
+				if (before > 0) {
+					expired += expire(db, group[0], group[1], before, policy.getArchive());
+				}
+			}
+			
+			if (policy.getArchiveDays() > 0) {
+				db.delete(
+						TABLE_ARCHIVE_NAME,
+						KEY_ARCHIVE_DAY + " < ?",
+						new String[] { String.valueOf(MessageArchive.day(now) - policy.getArchiveDays()) }
+					);
+			}
+			
+			vacuum(db);
+		} catch (SQLiteException e) {
+			Logging.log(APP_TAG, e.getMessage());
+		}
+		
+		return expired;
+	}
+	
+	/** Returns the ID the messages of a channel are kept from, 0 if all of them are kept */
+	private long expireBefore(SQLiteDatabase db, String user, String channel, RetentionPolicy policy, long now) {
+		long before = 0;
+		int days = policy.getDays(channel);
+		int rows = policy.getRows(channel);
+		
+		if (days > 0) {
+			// Messages are written in time order, the first one that is new
+			// enough is kept with everything after it
+			Cursor cursor = db.query(
+					TABLE_MESSAGE_NAME,
+					new String[] { KEY_ID },
+					MESSAGE_USER_CHANNEL + " AND " + KEY_MESSAGE_TIME + " >= ?",
+					new String[] { user, channel, String.valueOf(now - days * MessageArchive.DAY) },
+					null,
+					null,
+					KEY_ID + " ASC",
+					"1"
+				);
+			
+			try {
+				before = cursor.moveToFirst() ? cursor.getLong(0) : Long.MAX_VALUE;
+			} finally {
+				cursor.close();
+			}
+		}
+		
+		if (rows > 0) {
+			Cursor cursor = db.query(
+					TABLE_MESSAGE_NAME,
+					new String[] { KEY_ID },
+					MESSAGE_USER_CHANNEL,
+					new String[] { user, channel },
+					null,
+					null,
+					KEY_ID + " DESC",
+					(rows - 1) + ",1"
+				);
+			
+			try {
+				if (cursor.moveToFirst()) {
+					before = Math.max(before, cursor.getLong(0));
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+		
+		return before;
+	}
+	
+	/** Archives or deletes the messages of a channel before an ID, a transaction per chunk */
+	private int expire(SQLiteDatabase db, String user, String channel, long before, boolean archive) {
+		int expired = 0;
+		boolean more = true;
+		String[] columns = archive ? MESSAGE_COLUMNS : new String[] { KEY_ID };
+		
+		while (more) {
+			db.beginTransaction();
+			
+			try {
+				List<MessageArchive.Row> rows = new ArrayList<MessageArchive.Row>();
+				long last = 0;
+				
+				Cursor cursor = db.query(
+						TABLE_MESSAGE_NAME,
+						columns,
+						MESSAGE_USER_CHANNEL + " AND " + KEY_ID + " < ?",
+						new String[] { user, channel, String.valueOf(before) },
+						null,
+						null,
+						KEY_ID + " ASC",
+						String.valueOf(RETENTION_CHUNK)
+					);
+				
+				try {
+					while (cursor.moveToNext()) {
+						last = cursor.getLong(0);
+						
+						// The archive keeps messages as they are shown
+						if (archive) {
+							ChatMessage message = readPost(cursor);
+							rows.add(new MessageArchive.Row(last, message.getTimestamp(), message.getCharacter(), message.getMessage()));
+						}
+					}
+					
+					more = cursor.getCount() == RETENTION_CHUNK;
+				} finally {
+					cursor.close();
+				}
+				
+				if (last == 0) {
+					break;
+				}
+				
+				if (archive) {
+					archiveRows(db, user, channel, rows);
+				}
+				
+				expired += db.delete(
+						TABLE_MESSAGE_NAME,
+						MESSAGE_USER_CHANNEL + " AND " + KEY_ID + " <= ?",
+						new String[] { user, channel, String.valueOf(last) }
+					);
+				
+				db.setTransactionSuccessful();
+			} catch (IOException e) {
+				// Keep the messages rather than lose them with a broken block
+				Logging.log(APP_TAG, e.getMessage());
+				more = false;
+			} finally {
+				db.endTransaction();
+			}
+		}
+		
+		return expired;
+	}
+	
+	/** Adds messages of a channel, oldest first, to the blocks of their days */
+	private void archiveRows(SQLiteDatabase db, String user, String channel, List<MessageArchive.Row> rows) throws IOException {
+		int start = 0;
+		
+		while (start < rows.size()) {
+			long day = MessageArchive.day(rows.get(start).time);
+			int end = start + 1;
+			
+			while (end < rows.size() && MessageArchive.day(rows.get(end).time) == day) {
+				end++;
+			}
+			
+			List<MessageArchive.Row> block = new ArrayList<MessageArchive.Row>();
+			Cursor cursor = db.query(
+					TABLE_ARCHIVE_NAME,
+					new String[] { KEY_ARCHIVE_DATA },
+					MESSAGE_USER_CHANNEL + " AND " + KEY_ARCHIVE_DAY + " = ?",
+					new String[] { user, channel, String.valueOf(day) },
+					null,
+					null,
+					null
+				);
+			
+			try {
+				if (cursor.moveToFirst()) {
+					block.addAll(MessageArchive.decode(cursor.getBlob(0)));
+				}
+			} finally {
+				cursor.close();
+			}
+			
+			block.addAll(rows.subList(start, end));
+			
+			ContentValues values = new ContentValues();
+		    values.put(KEY_MESSAGE_USER, user);
+		    values.put(KEY_MESSAGE_CHANNEL, channel);
+		    values.put(KEY_ARCHIVE_DAY, day);
+		    values.put(KEY_ARCHIVE_COUNT, block.size());
+		    values.put(KEY_ARCHIVE_DATA, MessageArchive.encode(block));
+		    
+		    db.replace(TABLE_ARCHIVE_NAME, null, values);
+		    
+			start = end;
+		}
+	}
+	
+	/**
+	 * Hands the free pages back to the file system, VACUUM_STEP pages at a
+	 * time so the post writer can commit between the steps. Databases made
+	 * before incremental vacuum keep their free pages for new messages, a
+	 * full VACUUM would lock out the writer for as long as it takes.
+	 */
+	private void vacuum(SQLiteDatabase db) {
+		if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != 2) {
+			return;
+		}
+		
+		long free = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+		
+		while (free > 0) {
+			Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_STEP + ")", null);
+			
+			try {
+				while (cursor.moveToNext()) {
+					// Each row is a page freed
+				}
+			} finally {
+				cursor.close();
+			}
+			
+			long left = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+			
+			// The writer frees pages of its own, stop once a step gains nothing
+			if (left >= free) {
+				break;
+			}
+			
+			free = left;
+		}
+	}
+	
+	/**
+	 * Adds the messages written before the search index existed to it,
+	 * newest first with a transaction per chunk. Posts written since then
+	 * are indexed by the post writer, so only the messages below the lowest
+	 * ID in the index are left. Call it from a background thread.
+	 * 
+	 * @return the number of messages indexed
+	 */
+	public int indexHistory() {
+		int indexed = 0;
+		
+		try {
+			SQLiteDatabase db = this.getWritableDatabase();
+			SQLiteStatement index = db.compileStatement(INDEX_MESSAGE);
+			boolean more = true;
+			
+			try {
+				while (more) {
+					db.beginTransaction();
+					
+					try {
+						// The content table has the docid as its key, unlike
+						// the index itself it finds the lowest one right away
+						Cursor cursor = db.rawQuery("SELECT MIN(docid) FROM " + TABLE_SEARCH_NAME + "_content", null);
+						long below = Long.MAX_VALUE;
+						
+						try {
+							if (cursor.moveToFirst() && !cursor.isNull(0)) {
+								below = cursor.getLong(0);
+							}
+						} finally {
+							cursor.close();
+						}
+						
+						cursor = db.query(
+								TABLE_MESSAGE_NAME,
+								MESSAGE_COLUMNS,
+								KEY_ID + " < ?",
+								new String[] { String.valueOf(below) },
+								null,
+								null,
+								KEY_ID + " DESC",
+								String.valueOf(INDEX_CHUNK)
+							);
+						
+						try {
+							while (cursor.moveToNext()) {
+								ChatMessage message = readPost(cursor);
+								
+								index.clearBindings();
+								index.bindLong(1, message.getId());
+								bind(index, 2, SearchText.strip(message.getText()));
+								bind(index, 3, message.getCharacter());
+								bind(index, 4, message.getChannel());
+								index.executeInsert();
+							}
+							
+							indexed += cursor.getCount();
+							more = cursor.getCount() == INDEX_CHUNK;
+						} finally {
+							cursor.close();
+						}
+						
+						db.setTransactionSuccessful();
+					} finally {
+						db.endTransaction();
+					}
+				}
+			} finally {
+				index.close();
+			}
+		} catch (SQLiteException e) {
+			Logging.log(APP_TAG, e.getMessage());
+		}
+		
+		return indexed;
+	}
+	
+	/**
+	 * Searches the messages of a user, in one channel or in all of them for
+	 * the main channel. Every word has to be found, the last one may be the
+	 * start of a word. Only the message table is searched, not the archive.
+	 * The newest RANK_WINDOW hits are ranked by how well they match (from
+	 * API 11), pages past them are in order of time, newest first.
+	 * 
+	 * @param offset
+	 *            the hits skipped, for the pages after the first one
+	 * @param limit
+	 *            the most hits returned
+	 */
+	public List<SearchHit> search(int userid, String channel, String terms, int offset, int limit) {
+		List<SearchHit> hits = new ArrayList<SearchHit>();
+		String match = SearchText.query(terms);
+		
+		if (match == null || limit <= 0) {
+			return hits;
+		}
+		
 		synchronized(this) {
 			try {
 				SQLiteDatabase db = this.getReadableDatabase();
 				
-				List<ChatMessage> messages = new ArrayList<ChatMessage>();
-			    Cursor cursor = null;
-			    
-			    if (channel == Statics.CHANNEL_MAIN) {
-				    cursor = db.query(
-				    		TABLE_MESSAGE_NAME,
-				    		new String[] { KEY_ID, KEY_MESSAGE_MESSAGE, KEY_MESSAGE_FROM, KEY_MESSAGE_CHANNEL, KEY_MESSAGE_USER, KEY_MESSAGE_TIME },
-				    		KEY_MESSAGE_USER + " = ? AND " + KEY_ID + " > ? ",
-				    		new String[] { String.valueOf(userid), String.valueOf(postid) },
-				    		null,
-				    		null,
-				    		KEY_ID + " ASC",
-				    		null
-				    	);
-			    } else {
-				    cursor = db.query(
-				    		TABLE_MESSAGE_NAME,
-				    		new String[] { KEY_ID, KEY_MESSAGE_MESSAGE, KEY_MESSAGE_FROM, KEY_MESSAGE_CHANNEL, KEY_MESSAGE_USER, KEY_MESSAGE_TIME },
-				    		KEY_MESSAGE_USER + " = ? AND " + KEY_ID + " > ? AND " + KEY_MESSAGE_CHANNEL + " = ?",
-				    		new String[] { String.valueOf(userid), String.valueOf(postid), String.valueOf(channel) },
-				    		null,
-				    		null,
-				    		KEY_ID + " ASC",
-				    		null
-				    	);
-			    	
-			    }
-			    	
-			    if (cursor.moveToFirst()) {
-			        do {
-			        	messages.add(
-			        		new ChatMessage(
-				        			cursor.getLong(cursor.getColumnIndex(KEY_MESSAGE_TIME)),
-				        			cursor.getString(cursor.getColumnIndex(KEY_MESSAGE_MESSAGE)).replace("''", "'"),
-				        			cursor.getString(cursor.getColumnIndex(KEY_MESSAGE_FROM)),
-				        			cursor.getString(cursor.getColumnIndex(KEY_MESSAGE_CHANNEL)),
-				        			cursor.getInt(cursor.getColumnIndex(KEY_ID))
-			        		)
-			        	);
-			        } while (cursor.moveToNext());
-			    }
-			 
-			    cursor.close();
-			    db.close();
-			    
-			    return messages;
+				List<String> args = new ArrayList<String>(3);
+				StringBuilder where = new StringBuilder(" WHERE " + TABLE_SEARCH_NAME + " MATCH ? AND "
+						+ TABLE_MESSAGE_NAME + "." + KEY_MESSAGE_USER + " = ?");
+				args.add(match);
+				args.add(String.valueOf(userid));
+				
+				if (channel != null && !Statics.CHANNEL_MAIN.equals(channel)) {
+					where.append(" AND " + TABLE_MESSAGE_NAME + "." + KEY_MESSAGE_CHANNEL + " = ?");
+					args.add(channel);
+				}
+				
+				String from = " FROM " + TABLE_SEARCH_NAME + " JOIN " + TABLE_MESSAGE_NAME
+						+ " ON " + TABLE_MESSAGE_NAME + "." + KEY_ID + " = " + TABLE_SEARCH_NAME + ".docid";
+				String[] selectionArgs = args.toArray(new String[args.size()]);
+				
+				// The page is picked by ID first, so snippets are only made for its hits
+				List<SearchHit> page = new ArrayList<SearchHit>();
+				
+				if (SEARCH_RANKED && offset + limit <= RANK_WINDOW) {
+					Cursor cursor = db.rawQuery(
+							"SELECT " + TABLE_SEARCH_NAME + ".docid, matchinfo(" + TABLE_SEARCH_NAME + ", 'pcx')"
+							+ from + where + " ORDER BY " + TABLE_SEARCH_NAME + ".docid DESC LIMIT " + RANK_WINDOW,
+							selectionArgs
+						);
+					
+					try {
+						while (cursor.moveToNext()) {
+							page.add(new SearchHit(cursor.getInt(0), 0, null, null, null, SearchText.score(cursor.getBlob(1))));
+						}
+					} finally {
+						cursor.close();
+					}
+					
+					Collections.sort(page, new Comparator<SearchHit>() {
+						@Override
+						public int compare(SearchHit a, SearchHit b) {
+							if (a.getScore() != b.getScore()) {
+								return a.getScore() > b.getScore() ? -1 : 1;
+							}
+							
+							return b.getID() - a.getID();
+						}
+					});
+					
+					page = page.subList(Math.min(offset, page.size()), Math.min(offset + limit, page.size()));
+				} else {
+					Cursor cursor = db.rawQuery(
+							"SELECT " + TABLE_SEARCH_NAME + ".docid" + from + where
+							+ " ORDER BY " + TABLE_SEARCH_NAME + ".docid DESC LIMIT " + limit + " OFFSET " + offset,
+							selectionArgs
+						);
+					
+					try {
+						while (cursor.moveToNext()) {
+							page.add(new SearchHit(cursor.getInt(0), 0, null, null, null, 0));
+						}
+					} finally {
+						cursor.close();
+					}
+				}
+				
+				if (page.isEmpty()) {
+					return hits;
+				}
+				
+				StringBuilder ids = new StringBuilder();
+				Map<Integer, SearchHit> found = new HashMap<Integer, SearchHit>();
+				
+				for (SearchHit hit : page) {
+					ids.append(ids.length() > 0 ? "," : "").append(hit.getID());
+				}
+				
+				Cursor cursor = db.rawQuery(
+						"SELECT " + TABLE_SEARCH_NAME + ".docid, snippet(" + TABLE_SEARCH_NAME + ", '<b>', '</b>', '...'), "
+						+ TABLE_MESSAGE_NAME + "." + KEY_MESSAGE_TIME + ", "
+						+ TABLE_MESSAGE_NAME + "." + KEY_MESSAGE_FROM + ", "
+						+ TABLE_MESSAGE_NAME + "." + KEY_MESSAGE_CHANNEL
+						+ from + " WHERE " + TABLE_SEARCH_NAME + " MATCH ? AND "
+						+ TABLE_SEARCH_NAME + ".docid IN (" + ids + ")",
+						new String[] { match }
+					);
+				
+				try {
+					while (cursor.moveToNext()) {
+						found.put(cursor.getInt(0), new SearchHit(
+								cursor.getInt(0),
+								cursor.getLong(2),
+								cursor.getString(3),
+								cursor.getString(4),
+								cursor.getString(1),
+								0
+							));
+					}
+				} finally {
+					cursor.close();
+				}
+				
+				for (SearchHit hit : page) {
+					SearchHit full = found.get(hit.getID());
+					
+					if (full != null) {
+						hits.add(new SearchHit(
+								full.getID(),
+								full.getTime(),
+								full.getCharacter(),
+								full.getChannel(),
+								full.getSnippet(),
+								hit.getScore()
+							));
+					}
+				}
 			} catch (SQLiteException e) {
-				Logging.log(APP_TAG, e.getMessage());				
+				Logging.log(APP_TAG, e.getMessage());
 			}
 			
-			return null;
+			return hits;
+		}
+	}
+	
+	private static void bind(SQLiteStatement statement, int index, String value) {
+		if (value == null) {
+			statement.bindNull(index);
+		} else {
+			statement.bindString(index, value);
 		}
 	}
 	
@@ -320,7 +1210,6 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 			    values.put(KEY_ACCOUNT_AUTO, (account.getAutoconnect() == true)? 1:0);
 			 
 			    db.insert(TABLE_ACCOUNT_NAME, null, values);
-			    db.close();
 			} catch (SQLiteException e) {
 				Logging.log(APP_TAG, e.getMessage());				
 			}
@@ -339,7 +1228,6 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 			    values.put(KEY_ACCOUNT_AUTO, (account.getAutoconnect() == true)? 1:0);
 			 
 			    db.update(TABLE_ACCOUNT_NAME, values, KEY_ID + " = ?", new String[] { String.valueOf(account.getID()) });
-			    db.close();
 			} catch (SQLiteException e) {
 				Logging.log(APP_TAG, e.getMessage());				
 			}
@@ -352,7 +1240,6 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 				SQLiteDatabase db = this.getWritableDatabase();
 				
 				db.delete(TABLE_ACCOUNT_NAME, KEY_ID + " = ?", new String[] { String.valueOf(account.getID()) });
-				db.close();
 			} catch (SQLiteException e) {
 				Logging.log(APP_TAG, e.getMessage());				
 			}
@@ -384,13 +1271,9 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 				    }
 				 
 				    cursor.close();
-				    db.close();
-				    
 				    return accountList;
 			    } else {
 				    cursor.close();
-				    db.close();
-				    
 			    	return null;
 			    }
 			} catch (SQLiteException e) {
@@ -428,13 +1311,9 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 				    	);
 			
 				    cursor.close();
-					db.close();
-					
 				    return account;
 			    } else {
 				    cursor.close();
-					db.close();
-					
 			    	return null;
 			    }
 			} catch (SQLiteException e) {
@@ -473,7 +1352,6 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 			    }
 			    
 			    cursor.close();
-			    db.close();
 			} catch (SQLiteException e) {
 				Logging.log(APP_TAG, e.getMessage());				
 			}
@@ -507,7 +1385,6 @@ public class DatabaseHandler extends SQLiteOpenHelper {
 				    cursor.close();
 			    }
 			    
-				db.close();
 			} catch (SQLiteException e) {
 				Logging.log(APP_TAG, e.getMessage());
 			}
@@ -0,0 +1,127 @@
+package com.rubika.aotalk.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Packs the messages of one channel and day into a deflated block for the
+ * archive table. A block holds a version, the number of messages and then
+ * each message as its ID, time, sender and text, strings as UTF-8 with their
+ * length or -1 for null.
+ *
+ * Blocks of version 1 hold the text as it was stored then, with ' escaped as
+ * '', it is unescaped when they are read.
+ */
+class MessageArchive {
+	private static final int VERSION = 2;
+	private static final String CHARSET = "UTF-8";
+
+	static final long DAY = 24L * 60 * 60 * 1000;
+
+	static class Row {
+		final long id;
+		final long time;
+		final String from;
+		final String text;
+
+		Row(long id, long time, String from, String text) {
+			this.id = id;
+			this.time = time;
+			this.from = from;
+			this.text = text;
+		}
+	}
+
+	/** Returns the day a message was sent, as days since the epoch (UTC) */
+	static long day(long time) {
+		return time / DAY;
+	}
+
+	static byte[] encode(List<Row> rows) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+
+		try {
+			DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater));
+
+			out.writeByte(VERSION);
+			out.writeInt(rows.size());
+
+			for (Row row : rows) {
+				out.writeLong(row.id);
+				out.writeLong(row.time);
+				writeString(out, row.from);
+				writeString(out, row.text);
+			}
+
+			out.close();
+		} finally {
+			deflater.end();
+		}
+
+		return bytes.toByteArray();
+	}
+
+	static List<Row> decode(byte[] block) throws IOException {
+		DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(block)));
+
+		try {
+			int version = in.readByte();
+
+			if (version != VERSION && version != 1) {
+				throw new IOException("Unknown archive block version " + version);
+			}
+
+			int count = in.readInt();
+			List<Row> rows = new ArrayList<Row>(count);
+
+			for (int i = 0; i < count; i++) {
+				long id = in.readLong();
+				long time = in.readLong();
+				String from = readString(in);
+				String text = readString(in);
+
+				if (version == 1 && text != null) {
+					text = text.replace("''", "'");
+				}
+
+				rows.add(new Row(id, time, from, text));
+			}
+
+			return rows;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] data = value.getBytes(CHARSET);
+			out.writeInt(data.length);
+			out.write(data);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+
+		if (length < 0) {
+			return null;
+		}
+
+		byte[] data = new byte[length];
+		in.readFully(data);
+
+		return new String(data, CHARSET);
+	}
+}
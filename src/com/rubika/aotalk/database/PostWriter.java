@@ -0,0 +1,294 @@
+package com.rubika.aotalk.database;
+
+import com.rubika.aotalk.item.ChatMessage;
+import com.rubika.aotalk.util.Logging;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Writes posts on a thread of its own. Posts are queued in a ring and
+ * committed in batches, one transaction with a compiled insert per batch, so
+ * a burst of chat costs one sync instead of one per line.
+ *
+ * Readers are told about committed posts by the ID of the last row of the
+ * batch, IDs only grow so everything up to it can be read.
+ *
+ * Each post is added to the search index in the same transaction, so the
+ * index never lags behind the messages it covers.
+ *
+ * Posts are stored as the parts of their ChatMessage, nothing is escaped or
+ * rendered on the way in.
+ */
+class PostWriter implements Runnable {
+	private static final String APP_TAG = "--> The Leet :: PostWriter";
+
+	private static final int CAPACITY = 1024;
+	private static final int BATCH = 256;
+	// How long (ms) to wait for more posts before a batch is committed
+	private static final long LINGER = 100;
+
+	static class Post {
+		final ChatMessage message;
+		final int user;
+
+		Post(ChatMessage message, int user) {
+			this.message = message;
+			this.user = user;
+		}
+	}
+
+	interface Callback {
+		/** Called on the writer thread after each batch has been committed */
+		void committed(Post last, long lastId);
+	}
+
+	private final SQLiteOpenHelper helper;
+	private final String insertSql;
+	private final String indexSql;
+	private final Callback callback;
+
+	private final Post[] ring = new Post[CAPACITY];
+	private int head = 0;
+	private int count = 0;
+	private long queued = 0;
+	private long done = 0;
+	// Held while a batch is taken from the ring and committed
+	private final Object commitLock = new Object();
+
+	private SQLiteDatabase statementDb = null;
+	private SQLiteStatement insert = null;
+	private SQLiteStatement index = null;
+	private volatile long lastId = 0;
+
+	PostWriter(SQLiteOpenHelper helper, String insertSql, String indexSql, Callback callback) {
+		this.helper = helper;
+		this.insertSql = insertSql;
+		this.indexSql = indexSql;
+		this.callback = callback;
+
+		Thread thread = new Thread(this, "PostWriter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Queues a post, waits only if the ring is full */
+	public synchronized void add(Post post) {
+		while (count == CAPACITY) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+		ring[(head + count) % CAPACITY] = post;
+		count++;
+		queued++;
+		notifyAll();
+	}
+
+	/** Returns the ID of the last post committed, 0 if none has been */
+	public long getLastId() {
+		return lastId;
+	}
+
+	/**
+	 * Waits until the posts queued so far have been committed, or for at
+	 * most a timeout
+	 *
+	 * @return true if they were committed in time
+	 */
+	public synchronized boolean flush(long timeout) {
+		long target = queued;
+		long until = System.currentTimeMillis() + timeout;
+		long left = timeout;
+
+		while (done < target && left > 0) {
+			try {
+				wait(left);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+
+			left = until - System.currentTimeMillis();
+		}
+
+		return done >= target;
+	}
+
+	/**
+	 * Runs a task with no batch in flight and the queued posts of a user
+	 * dropped, for deletes that must not be undone by a late commit
+	 *
+	 * @param user
+	 *            the user whose posts are dropped, 0 drops all of them
+	 */
+	public void discard(int user, Runnable task) {
+		synchronized (commitLock) {
+			synchronized (this) {
+				int kept = 0;
+
+				for (int i = 0; i < count; i++) {
+					Post post = ring[(head + i) % CAPACITY];
+
+					if (user != 0 && post.user != user) {
+						ring[(head + kept) % CAPACITY] = post;
+						kept++;
+					}
+				}
+
+				for (int i = kept; i < count; i++) {
+					ring[(head + i) % CAPACITY] = null;
+				}
+
+				done += count - kept;
+				count = kept;
+				notifyAll();
+			}
+
+			task.run();
+		}
+	}
+
+	@Override
+	public void run() {
+		Post[] batch = new Post[BATCH];
+
+		while (true) {
+			int size;
+			long id;
+
+			// Only the queue is held while waiting, discard() must not wait
+			// for the next post
+			synchronized (this) {
+				try {
+					while (count == 0) {
+						wait();
+					}
+
+					long until = System.currentTimeMillis() + LINGER;
+					long left = LINGER;
+
+					while (count < BATCH && left > 0) {
+						wait(left);
+						left = until - System.currentTimeMillis();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+
+			synchronized (commitLock) {
+				synchronized (this) {
+					size = Math.min(count, BATCH);
+
+					// The posts may have been discarded meanwhile
+					if (size == 0) {
+						continue;
+					}
+
+					for (int i = 0; i < size; i++) {
+						batch[i] = ring[head];
+						ring[head] = null;
+						head = (head + 1) % CAPACITY;
+					}
+
+					count -= size;
+					notifyAll();
+				}
+
+				id = write(batch, size);
+			}
+
+			synchronized (this) {
+				done += size;
+				notifyAll();
+			}
+
+			if (id > 0) {
+				lastId = id;
+				callback.committed(batch[size - 1], id);
+			}
+
+			for (int i = 0; i < size; i++) {
+				batch[i] = null;
+			}
+		}
+	}
+
+	/** Commits a batch, returns the ID of its last row or 0 if it failed */
+	private long write(Post[] batch, int size) {
+		long id = 0;
+
+		try {
+			SQLiteDatabase db = helper.getWritableDatabase();
+
+			if (insert == null || statementDb != db) {
+				if (insert != null) {
+					insert.close();
+					index.close();
+				}
+
+				insert = db.compileStatement(insertSql);
+				index = db.compileStatement(indexSql);
+				statementDb = db;
+			}
+
+			db.beginTransaction();
+
+			try {
+				for (int i = 0; i < size; i++) {
+					ChatMessage message = batch[i].message;
+
+					insert.clearBindings();
+					insert.bindLong(1, message.getKind());
+					insert.bindLong(2, message.getSenderId());
+					bind(insert, 3, message.getCharacter());
+					insert.bindLong(4, message.getGroupId());
+					bind(insert, 5, message.getChannel());
+					bind(insert, 6, message.getBody());
+
+					if (message.getKind() == ChatMessage.KIND_EXTENDED) {
+						insert.bindLong(7, message.getExtendedCategory());
+						insert.bindLong(8, message.getExtendedInstance());
+						bind(insert, 9, message.getExtendedParams());
+					}
+
+					insert.bindLong(10, batch[i].user);
+					insert.bindLong(11, message.getTimestamp());
+
+					id = insert.executeInsert();
+
+					index.clearBindings();
+					index.bindLong(1, id);
+					bind(index, 2, SearchText.strip(message.getText()));
+					bind(index, 3, message.getCharacter());
+					bind(index, 4, message.getChannel());
+					index.executeInsert();
+				}
+
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		} catch (SQLiteException e) {
+			Logging.log(APP_TAG, "Dropped " + size + " posts: " + e.getMessage());
+			return 0;
+		}
+
+		return id;
+	}
+
+	private static void bind(SQLiteStatement statement, int index, String value) {
+		if (value == null) {
+			statement.bindNull(index);
+		} else {
+			statement.bindString(index, value);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package com.rubika.aotalk.database;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.rubika.aotalk.util.Logging;
+
+import android.content.SharedPreferences;
+
+/**
+ * How long messages are kept, see DatabaseHandler.enforceRetention(). Each
+ * channel keeps messages for a number of days and at most a number of them,
+ * 0 means no limit. Channels without limits of their own use the defaults.
+ */
+public class RetentionPolicy {
+	private static final String APP_TAG = "--> The Leet :: RetentionPolicy";
+
+	private int days;
+	private int rows;
+	private boolean archive = true;
+	private int archiveDays = 0;
+	private final Map<String, int[]> channels = new HashMap<String, int[]>();
+
+	public RetentionPolicy(int days, int rows) {
+		this.days = days;
+		this.rows = rows;
+	}
+
+	/**
+	 * Reads a policy from the preferences retentionDays, retentionRows,
+	 * retentionArchive, archiveDays and retentionChannels. The limits of
+	 * single channels are written as "channel=days:rows", separated by ";".
+	 * Without them nothing is expired and the archive is kept for ever.
+	 */
+	public static RetentionPolicy fromPreferences(SharedPreferences settings) {
+		RetentionPolicy policy = new RetentionPolicy(
+				parse(settings.getString("retentionDays", "0")),
+				parse(settings.getString("retentionRows", "0"))
+			);
+
+		policy.setArchive(settings.getBoolean("retentionArchive", true));
+		policy.setArchiveDays(parse(settings.getString("archiveDays", "0")));
+
+		String limits = settings.getString("retentionChannels", "");
+
+		for (String limit : limits.split(";")) {
+			int name = limit.lastIndexOf('=');
+			int separator = limit.lastIndexOf(':');
+
+			if (name > 0 && separator > name) {
+				policy.setChannel(
+						limit.substring(0, name).trim(),
+						parse(limit.substring(name + 1, separator)),
+						parse(limit.substring(separator + 1))
+					);
+			}
+		}
+
+		return policy;
+	}
+
+	private static int parse(String value) {
+		try {
+			return Math.max(0, Integer.parseInt(value.trim()));
+		} catch (NumberFormatException e) {
+			Logging.log(APP_TAG, e.getMessage());
+			return 0;
+		}
+	}
+
+	public void setChannel(String channel, int days, int rows) {
+		channels.put(channel, new int[] { days, rows });
+	}
+
+	/** Returns how many days the messages of a channel are kept, 0 for ever */
+	public int getDays(String channel) {
+		int[] limits = channels.get(channel);
+		return limits != null ? limits[0] : days;
+	}
+
+	/** Returns how many messages of a channel are kept, 0 for all of them */
+	public int getRows(String channel) {
+		int[] limits = channels.get(channel);
+		return limits != null ? limits[1] : rows;
+	}
+
+	/** Sets if expired messages are moved to the archive rather than deleted */
+	public void setArchive(boolean archive) {
+		this.archive = archive;
+	}
+
+	public boolean getArchive() {
+		return archive;
+	}
+
+	/** Sets how many days archived messages are kept, 0 for ever */
+	public void setArchiveDays(int archiveDays) {
+		this.archiveDays = archiveDays;
+	}
+
+	public int getArchiveDays() {
+		return archiveDays;
+	}
+}
@@ -0,0 +1,121 @@
+package com.rubika.aotalk.database;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.regex.Pattern;
+
+/**
+ * Text handling for the search index: messages are indexed without their
+ * AOML and HTML markup, and what a user types is turned into a query that
+ * cannot break the FTS query syntax.
+ */
+class SearchText {
+	private static final Pattern BREAK = Pattern.compile("<br\\s*/?>", Pattern.CASE_INSENSITIVE);
+	private static final Pattern TAG = Pattern.compile("<[^>]*>");
+	private static final Pattern SPACE = Pattern.compile("\\s+");
+
+	// Weights of the indexed columns: text, sender and channel
+	private static final double[] WEIGHTS = { 1.0, 2.0, 0.5 };
+
+	/** Returns the words of a message without markup */
+	static String strip(String message) {
+		if (message == null) {
+			return null;
+		}
+
+		String text = BREAK.matcher(message).replaceAll(" ");
+		text = TAG.matcher(text).replaceAll(" ");
+		text = text
+				.replace("&lt;", "<")
+				.replace("&gt;", ">")
+				.replace("&quot;", "\"")
+				.replace("&#39;", "'")
+				.replace("&nbsp;", " ")
+				.replace("&amp;", "&");
+
+		return SPACE.matcher(text).replaceAll(" ").trim();
+	}
+
+	/**
+	 * Turns what a user typed into a MATCH expression. Words are split the
+	 * way the simple tokenizer splits the indexed text, so "don't" searches
+	 * for "don" and "t". Every word must be found, the last one may be the
+	 * start of a word.
+	 *
+	 * @return the expression, null if there is nothing to search for
+	 */
+	static String query(String input) {
+		if (input == null) {
+			return null;
+		}
+
+		StringBuilder query = new StringBuilder();
+		boolean inTerm = false;
+
+		for (int i = 0; i < input.length(); i++) {
+			char c = input.charAt(i);
+
+			if (isTokenChar(c)) {
+				if (!inTerm && query.length() > 0) {
+					query.append(' ');
+				}
+
+				// Only ASCII is folded by the tokenizer, lower case also
+				// keeps AND, OR and NOT from being read as operators
+				query.append(c < 128 ? Character.toLowerCase(c) : c);
+				inTerm = true;
+			} else {
+				inTerm = false;
+			}
+		}
+
+		if (query.length() == 0) {
+			return null;
+		}
+
+		return query.append('*').toString();
+	}
+
+	/**
+	 * Returns whether the simple tokenizer keeps a character in a word: ASCII
+	 * letters and digits and everything past ASCII, the rest splits words
+	 */
+	private static boolean isTokenChar(char c) {
+		return c >= 128 || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	/**
+	 * Scores a row from its matchinfo(..., 'pcx') blob: for every phrase and
+	 * column the share of all the phrase's hits found in this row, weighted
+	 * by column
+	 */
+	static double score(byte[] matchinfo) {
+		if (matchinfo == null || matchinfo.length < 8) {
+			return 0;
+		}
+
+		ByteBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+		int phrases = info.getInt(0);
+		int columns = info.getInt(4);
+		double score = 0;
+
+		for (int p = 0; p < phrases; p++) {
+			for (int c = 0; c < columns; c++) {
+				int offset = 8 + (p * columns + c) * 12;
+
+				if (offset + 8 > matchinfo.length) {
+					return score;
+				}
+
+				int hits = info.getInt(offset);
+				int total = info.getInt(offset + 4);
+
+				if (hits > 0 && total > 0) {
+					score += (c < WEIGHTS.length ? WEIGHTS[c] : 1.0) * hits / total;
+				}
+			}
+		}
+
+		return score;
+	}
+}
@@ -18,10 +18,31 @@
  */
 package com.rubika.aotalk.item;
 
+import ao.db.MMDBDatabase;
+import ao.protocol.packets.ExtendedMessage;
+
 import com.rubika.aotalk.util.ChatParser;
 import com.rubika.aotalk.util.Statics;
 
+import android.text.Html;
+import android.text.Spanned;
+
+/**
+ * A message in the chat. Messages from the chat server keep their parts, who
+ * sent what to which group, and are only turned into HTML when they are first
+ * shown. Other messages, and those stored before the parts were kept, are
+ * plain HTML of kind KIND_TEXT.
+ */
 public class ChatMessage {
+	public static final int KIND_TEXT = 0;
+	public static final int KIND_CHANNEL = 1;
+	public static final int KIND_EXTENDED = 2;
+	public static final int KIND_PRIVATE = 3;
+	public static final int KIND_PRIVATE_CHANNEL = 4;
+
+	// Templates for extended messages, set by the service once it is opened
+	private static volatile MMDBDatabase templates = null;
+
     private String message;
     private long timestamp;
     private String character;
@@ -29,6 +50,18 @@ public class ChatMessage {
     private long id;
     private boolean doAnimation = true;
 	private String icon;
+
+	private int kind = KIND_TEXT;
+	private int senderId;
+	private long groupId;
+	private String text;
+	private long extendedCategory;
+	private long extendedInstance;
+	private String extendedParams;
+
+	// The message as shown, with the settings it was made for
+	private Spanned spanned = null;
+	private int spannedStyle = -1;
     
     // Constructor for the ChatMessage class
     public ChatMessage() {
@@ -43,14 +76,175 @@ public class ChatMessage {
 	    this.channel   = channel;
 	    this.id 	   = id;
     }
+
+    /**
+     * Constructor for a message kept as its parts, see the static methods
+     * below for the parts each kind uses
+     */
+	public ChatMessage(long timestamp, int kind, int senderId, String character, long groupId, String channel,
+			String text, long extendedCategory, long extendedInstance, String extendedParams, long id) {
+		this.timestamp = timestamp;
+		this.kind = kind;
+		this.senderId = senderId;
+		this.character = character;
+		this.groupId = groupId;
+		this.channel = channel;
+		this.extendedCategory = extendedCategory;
+		this.extendedInstance = extendedInstance;
+		this.extendedParams = extendedParams;
+		this.id = id;
+
+		if (kind == KIND_TEXT) {
+			this.message = text;
+		} else {
+			this.text = text;
+		}
+	}
+
+	/** A message to a chat group, the channel is the name of the group */
+	public static ChatMessage channel(long timestamp, int senderId, String character, long groupId, String channel, String text) {
+		return new ChatMessage(timestamp, KIND_CHANNEL, senderId, character, groupId, channel, text, 0, 0, null, 0);
+	}
+
+	/** An extended message to a chat group, see ExtendedMessage */
+	public static ChatMessage extended(long timestamp, int senderId, String character, long groupId, String channel,
+			long category, long instance, String params) {
+		return new ChatMessage(timestamp, KIND_EXTENDED, senderId, character, groupId, channel, null, category, instance, params, 0);
+	}
+
+	/** A tell from another character */
+	public static ChatMessage privateMessage(long timestamp, int senderId, String character, String text) {
+		return new ChatMessage(timestamp, KIND_PRIVATE, senderId, character, 0, Statics.CHANNEL_PM, text, 0, 0, null, 0);
+	}
+
+	/** A message to a private group, the group ID is the ID of its owner */
+	public static ChatMessage privateChannel(long timestamp, int senderId, String character, int ownerId, String owner,
+			String text) {
+		return new ChatMessage(timestamp, KIND_PRIVATE_CHANNEL, senderId, character, ownerId,
+				Statics.PREFIX_PRIVATE_GROUP + owner, text, 0, 0, null, 0);
+	}
+
+	/** Sets the templates extended messages are formatted with */
+	public static void setTemplateDatabase(MMDBDatabase db) {
+		templates = db;
+	}
     
     // Getter and setter methods for all the fields.
+
+    /** Returns the message as HTML, messages kept as their parts are only made once */
     public String getMessage() {
+    	if (message == null && kind != KIND_TEXT) {
+    		message = render();
+    	}
+
     	return message;
     }
+
+	private String render() {
+		String name = character != null ? character : Integer.toHexString(senderId);
+
+		switch (kind) {
+		case KIND_CHANNEL:
+			return "[" + (channel != null ? channel : String.format("%010X", groupId)) + "] "
+					+ (senderId != 0 ? name + ": " : "") + html(text);
+		case KIND_EXTENDED:
+			return html(getText());
+		case KIND_PRIVATE:
+			return "from [" + name + "]: " + html(text);
+		case KIND_PRIVATE_CHANNEL:
+			String owner = channel;
+
+			if (owner != null && owner.startsWith(Statics.PREFIX_PRIVATE_GROUP)) {
+				owner = owner.substring(Statics.PREFIX_PRIVATE_GROUP.length());
+			}
+
+			return "[" + owner + "] " + name + ": " + html(text);
+		default:
+			return html(text);
+		}
+	}
+
+	private static String html(String text) {
+		return text == null ? "" : text.replace("\n", "<br />");
+	}
+
+	/**
+	 * Returns the message as shown in the chat, with or without the time and
+	 * as it is laid out next to faces. It is made again only when the
+	 * settings change.
+	 */
+	public Spanned getSpanned(boolean showTime, boolean showFaces) {
+		int style = (showTime ? 1 : 0) | (showFaces ? 2 : 0);
+
+		if (spanned == null || spannedStyle != style) {
+			String html = getMessage().replaceFirst("] 0:", "]");
+
+			if (showTime) {
+				html = ChatParser.getFormattedTimeFromLong(timestamp) + (showFaces ? "<br />" : " ") + html;
+			}
+
+			spanned = Html.fromHtml(html);
+			spannedStyle = style;
+		}
+
+		return spanned;
+	}
+
+	/**
+	 * Returns the text of the message without who sent it, extended messages
+	 * formatted from their template
+	 */
+	public String getText() {
+		if (kind == KIND_TEXT) {
+			return message;
+		}
+
+		if (text == null && kind == KIND_EXTENDED) {
+			text = new ExtendedMessage(extendedCategory, extendedInstance,
+					extendedParams != null ? extendedParams : "", templates).getFormattedMessage();
+		}
+
+		return text;
+	}
+
+	/** Returns the text as it is stored, null for extended messages */
+	public String getBody() {
+		if (kind == KIND_TEXT) {
+			return message;
+		}
+
+		return kind == KIND_EXTENDED ? null : text;
+	}
+
+	public int getKind() {
+		return kind;
+	}
+
+	public int getSenderId() {
+		return senderId;
+	}
+
+	/** Returns the ID of the group, packed into a long, or of the private group's owner */
+	public long getGroupId() {
+		return groupId;
+	}
+
+	public long getExtendedCategory() {
+		return extendedCategory;
+	}
+
+	public long getExtendedInstance() {
+		return extendedInstance;
+	}
+
+	public String getExtendedParams() {
+		return extendedParams;
+	}
     
     public void setMessage(String message) {
+    	this.kind = KIND_TEXT;
     	this.message = message;
+    	this.spanned = null;
     }
     
     public long getId() {
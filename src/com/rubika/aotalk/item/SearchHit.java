@@ -0,0 +1,46 @@
+package com.rubika.aotalk.item;
+
+public class SearchHit {
+	private int id;
+	private long time;
+	private String character;
+	private String channel;
+	private String snippet;
+	private double score;
+
+	public SearchHit(int id, long time, String character, String channel, String snippet, double score) {
+		this.id = id;
+		this.time = time;
+		this.character = character;
+		this.channel = channel;
+		this.snippet = snippet;
+		this.score = score;
+	}
+
+	/** Returns the ID of the message, see DatabaseHandler.getPostsForUser() */
+	public int getID() {
+		return id;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	public String getCharacter() {
+		return character;
+	}
+
+	public String getChannel() {
+		return channel;
+	}
+
+	/** Returns the text around the matches, the matches in <b></b> */
+	public String getSnippet() {
+		return snippet;
+	}
+
+	/** Returns how well the message matches, higher is better */
+	public double getScore() {
+		return score;
+	}
+}
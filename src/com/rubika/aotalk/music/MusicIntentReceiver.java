@@ -33,7 +33,7 @@ public class MusicIntentReceiver extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
     	if (intent.getAction().equals(android.media.AudioManager.ACTION_AUDIO_BECOMING_NOISY)) {
             //Toast.makeText(context, "Headphones disconnected", Toast.LENGTH_SHORT).show();
-        	context.startService(new Intent(ClientService.ACTION_STOP));
+        	context.startService(new Intent(context, ClientService.class).setAction(ClientService.ACTION_STOP));
         }
     }
 }
@@ -1,14 +1,22 @@
 package com.rubika.aotalk.service;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -24,7 +32,9 @@ import org.json.JSONObject;
 import com.google.analytics.tracking.android.EasyTracker;
 import com.google.analytics.tracking.android.Tracker;
 import com.rubika.aotalk.AOTalk;
+import com.rubika.aotalk.BuildConfig;
 import com.rubika.aotalk.database.DatabaseHandler;
+import com.rubika.aotalk.database.RetentionPolicy;
 import com.rubika.aotalk.item.Account;
 import com.rubika.aotalk.item.Channel;
 import com.rubika.aotalk.item.ChatMessage;
@@ -34,22 +44,27 @@ import com.rubika.aotalk.music.MusicFocusable;
 import com.rubika.aotalk.music.MusicIntentReceiver;
 import com.rubika.aotalk.util.Logging;
 import com.rubika.aotalk.util.Statics;
+import com.rubika.aotalk.util.StorageTools;
 import com.rubika.aotalk.R;
 import com.spoledge.aacdecoder.AACPlayer;
 import com.spoledge.aacdecoder.PlayerCallback;
 
+import android.app.AlarmManager;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
+import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Handler;
@@ -57,6 +72,7 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 
 import android.support.v4.app.NotificationCompat;
@@ -65,14 +81,22 @@ import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.text.Html;
 import ao.chat.ChatClient;
+import ao.chat.ChatSession;
+import ao.chat.PacketReplay;
+import ao.db.MMDBDatabase;
+import ao.db.MMDBFile;
 import ao.misc.Convert;
 import ao.misc.NameFormat;
+import ao.protocol.AsyncPacketListener;
 import ao.protocol.CharacterInfo;
 import ao.protocol.Client;
 import ao.protocol.Client.ClientState;
 import ao.protocol.ClientListener;
 import ao.protocol.ClientStateException;
 import ao.protocol.DimensionAddress;
+import ao.protocol.PacketCapture;
+import ao.protocol.PacketListener;
+import ao.protocol.packets.ExtendedMessage;
 import ao.protocol.packets.Packet;
 import ao.protocol.packets.bi.ChannelMessagePacket;
 import ao.protocol.packets.bi.FriendUpdatePacket;
@@ -88,6 +112,7 @@ import ao.protocol.packets.toclient.PrivateChannelCharacterJoinPacket;
 import ao.protocol.packets.toclient.PrivateChannelCharacterLeavePacket;
 import ao.protocol.packets.toclient.SystemMessagePacket;
 import ao.protocol.packets.toclient.VicinityMessagePacket;
+import ao.protocol.packets.utils.SimplePacketFactory;
 
 public class ClientService extends Service implements MusicFocusable {
 	protected static final String APP_TAG = "--> The Leet :: ClientService";
@@ -101,6 +126,9 @@ public class ClientService extends Service implements MusicFocusable {
 	public static final String ACTION_TOGGLE_PLAYBACK = "com.rubika.aotalk.action.TOGGLE_PLAYBACK";
 	public static final String ACTION_PLAY = "com.rubika.aotalk.action.PLAY";
 	public static final String ACTION_STOP = "com.rubika.aotalk.action.STOP";
+	public static final String ACTION_KEEPALIVE = "com.rubika.aotalk.action.KEEPALIVE";
+	public static final String ACTION_REPLAY = "com.rubika.aotalk.action.REPLAY";
+	public static final String ACTION_RECONNECT = "com.rubika.aotalk.action.RECONNECT";
 
 	private CharacterInfo currentCharacter;
 	public String currentTargetChannel = "";
@@ -108,13 +136,30 @@ public class ClientService extends Service implements MusicFocusable {
 	public String currentShowChannel = Statics.CHANNEL_MAIN;
 	private int notificationCounter;
 	public ChatClient chatClient;
+	private ExecutorService packetDelivery;
+	private ClientListener clientListener;
 	private Account currentAccount;
 	private SharedPreferences settings;
 	public SharedPreferences.Editor editor;
 	public boolean manualLogin = false;
 	public boolean accountFailed = false;
-	private int reconnectAttempts = 0;
-	private long lastReconnectAttempt = 0;
+	private ReconnectScheduler reconnectScheduler;
+	private boolean waitingForNetwork = false;
+	private BroadcastReceiver connectivityReceiver;
+	private PendingIntent keepaliveIntent;
+	private PacketCapture packetCapture;
+
+	private ChatSession session;
+	private final ExecutorService sessionWriter = AsyncPacketListener
+			.newExecutor("SessionWriter");
+	private Handler sessionHandler = new Handler();
+	private long sessionSweepDelay = 15000;
+	private Handler retentionHandler = new Handler();
+	private long retentionDelay = 6 * 60 * 60 * 1000;
+	private volatile boolean retentionRunning = false;
+	private long flushTimeout = 2000;
+	private final Set<Integer> staleFriends = new HashSet<Integer>();
+	private final Set<String> staleChannels = new HashSet<String>();
 
 	private String PLAYURL = "";
 
@@ -329,6 +374,8 @@ public class ClientService extends Service implements MusicFocusable {
 					clientService.get().editor.commit();
 
 					clientService.get().manualLogin = true;
+					clientService.get().reconnectScheduler.reset();
+					clientService.get().waitingForNetwork = false;
 
 					if (clientService.get().chatClient.getState() != Client.ClientState.DISCONNECTED) {
 						try {
@@ -388,6 +435,9 @@ public class ClientService extends Service implements MusicFocusable {
 
 							muted += channel.getName();
 						}
+
+						clientService.get().session.setChannel(
+								channel.getName(), channel.getMuted());
 					}
 
 					clientService.get().editor
@@ -552,8 +602,44 @@ public class ClientService extends Service implements MusicFocusable {
 			}
 		}
 
-		chatClient = new ChatClient();
-		chatClient.addListener(new ClientListener() {
+		// Stored messages are formatted with the same templates when shown
+		MMDBDatabase templates = openTemplateDatabase();
+		ChatMessage.setTemplateDatabase(templates);
+
+		// Keepalives are sent from an alarm, see startKeepalive()
+		chatClient = new ChatClient(0, new SimplePacketFactory(templates, true));
+		chatClient.setKeepTables(true);
+		restoreSession();
+
+		Intent reconnectIntent = new Intent(this, ClientService.class);
+		reconnectIntent.setAction(ACTION_RECONNECT);
+		reconnectScheduler = new ReconnectScheduler(this,
+				PendingIntent.getService(this, 0, reconnectIntent, 0),
+				new Runnable() {
+					public void run() {
+						reconnect();
+					}
+				}, 2000, 300000, 10);
+
+		connectivityReceiver = new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				networkChanged();
+			}
+		};
+		registerReceiver(connectivityReceiver, new IntentFilter(
+				ConnectivityManager.CONNECTIVITY_ACTION));
+		chatClient.setSubscribedTypes(CharacterListPacket.TYPE,
+				LoginErrorPacket.TYPE, PrivateMessagePacket.TYPE,
+				ChannelMessagePacket.TYPE, SystemMessagePacket.TYPE,
+				BroadcastMessagePacket.TYPE, VicinityMessagePacket.TYPE,
+				FriendUpdatePacket.TYPE, ChannelUpdatePacket.TYPE,
+				PrivateChannelInvitePacket.TYPE,
+				PrivateChannelCharacterJoinPacket.TYPE,
+				PrivateChannelKickPacket.TYPE,
+				PrivateChannelCharacterLeavePacket.TYPE,
+				PrivateChannelMessagePacket.TYPE);
+		clientListener = new ClientListener() {
 			@Override
 			public void connected(Client bot) {
 				Logging.log(APP_TAG, "Connected");
@@ -573,7 +659,14 @@ public class ClientService extends Service implements MusicFocusable {
 				startForeground(NOTIFICATION, notificationBuilder.build());
 
 				manualLogin = false;
+				reconnectScheduler.reset();
+				waitingForNetwork = false;
 				chatClient.start();
+				startKeepalive();
+
+				if (settings.getBoolean("capturePackets", false)) {
+					startCapture();
+				}
 
 				tracker.sendEvent("Connection", "Connected",
 						currentCharacter.getName(), 0L);
@@ -624,6 +717,10 @@ public class ClientService extends Service implements MusicFocusable {
 				editor.putInt("lastCharacter", currentCharacter.getID());
 				editor.putString("lastCharacterName", currentCharacter.getName());
 				editor.commit();
+
+				session.setLastCharacterID(currentCharacter.getID());
+				sessionHandler.removeCallbacks(sessionSweepTask);
+				sessionHandler.postDelayed(sessionSweepTask, sessionSweepDelay);
 				
 				if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN_MR1) {
 					//DashClockExtender.getInstance().changeMessage();
@@ -652,8 +749,11 @@ public class ClientService extends Service implements MusicFocusable {
 				message(Message.obtain(null, Statics.MESSAGE_DISCONNECTED,
 						(settings.getBoolean("reconnect", true) ? 1 : 0), 0));
 
-				friendList.clear();
-				channelList.clear();
+				sessionHandler.removeCallbacks(sessionSweepTask);
+				saveSession();
+				stopKeepalive();
+				stopCapture();
+
 				invitationList.clear();
 				privateList.clear();
 
@@ -663,25 +763,19 @@ public class ClientService extends Service implements MusicFocusable {
 					Logging.log(APP_TAG, "Skipping automatic reconnect");
 					currentAccount = null;
 					currentCharacter = null;
+
+					clearSessionLists();
 				} else {
-					Logging.log(APP_TAG, "Automatic reconnect (" + reconnectAttempts + ")");
 					accountFailed = false;
 
-					if (lastReconnectAttempt + 2500 >= System
-							.currentTimeMillis()) {
-						reconnectAttempts++;
-					} else {
-						reconnectAttempts = 0;
-					}
-
-					lastReconnectAttempt = System.currentTimeMillis();
-
-					if (reconnectAttempts < 5) {
-						connect(currentAccount);
+					if (scheduleReconnect()) {
+						markSessionStale();
 					} else {
 						Logging.log(APP_TAG, "Too many automatic reconnects");
 						currentAccount = null;
 						currentCharacter = null;
+
+						clearSessionLists();
 					}
 				}
 
@@ -708,92 +802,24 @@ public class ClientService extends Service implements MusicFocusable {
 
 			@Override
 			public void packet(Client bot, Packet packet) {
-				Message message = null;
-
-				if (packet == null) {
-					return;
-				}
-
-				// Character list packet
-				if (packet.getType() == CharacterListPacket.TYPE) {
-					message = handleCharacterListPacket(packet);
-				}
-
-				// Log in failed
-				if (packet.getType() == LoginErrorPacket.TYPE) {
-					message = handleLoginErrorPacket(packet);
-				}
-
-				// Private message
-				if (packet.getType() == PrivateMessagePacket.TYPE
-						&& packet.getDirection() == Packet.Direction.TO_CLIENT) {
-					message = handlePrivateMessagePacket(packet);
-				}
-
-				// Chat group message
-				if (packet.getType() == ChannelMessagePacket.TYPE
-						&& packet.getDirection() == Packet.Direction.TO_CLIENT) {
-					message = handleChannelMessagePacket(packet);
-				}
-
-				// System message
-				if (packet.getType() == SystemMessagePacket.TYPE
-						&& packet.getDirection() == Packet.Direction.TO_CLIENT) {
-					message = handleSystemMessagePacket(packet);
-				}
-
-				// Broadcast message
-				if (packet.getType() == BroadcastMessagePacket.TYPE
-						&& packet.getDirection() == Packet.Direction.TO_CLIENT) {
-					message = handleBroadcastMessagePacket(packet);
-				}
-
-				// Vicinity notice
-				if (packet.getType() == VicinityMessagePacket.TYPE) {
-					message = handleVicinityMessagePacket(packet);
-				}
-
-				// Friend update
-				if (packet.getType() == FriendUpdatePacket.TYPE) {
-					message = handleFriendUpdatePacket(packet);
-				}
-
-				// Group announcement
-				if (packet.getType() == ChannelUpdatePacket.TYPE) {
-					message = handleChannelUpdatePacket(packet);
-				}
-
-				// Private group invitation
-				if (packet.getType() == PrivateChannelInvitePacket.TYPE) {
-					message = handlePrivateChannelInvitePacket(packet);
-				}
-
-				// Private group join
-				if (packet.getType() == PrivateChannelCharacterJoinPacket.TYPE) {
-					message = handlePrivateChannelCharacterJoinPacket(packet);
-				}
-
-				// Private group kick
-				if (packet.getType() == PrivateChannelKickPacket.TYPE) {
-					message = handlePrivateChannelKickPacket(packet);
-				}
-
-				// Private group leave
-				if (packet.getType() == PrivateChannelCharacterLeavePacket.TYPE) {
-					message = handlePrivateChannelCharacterLeavePacket(packet);
-				}
-
-				// Private group message
-				if (packet.getType() == PrivateChannelMessagePacket.TYPE) {
-					message = handlePrivateChannelMessagePacket(packet);
-				}
-
-				// Send message if one exists
-				if (message != null) {
-					message(message);
-				}
+				// Packets are handled by the typed handlers, see addPacketHandlers()
 			}
-		});
+		};
+		chatClient.addListener(clientListener);
+		packetDelivery = AsyncPacketListener.newExecutor("PacketDelivery");
+		addPacketHandlers();
+
+		// Posts are written in batches, the activities are updated once a
+		// batch can be read rather than when the packet arrives
+		DatabaseHandler.getInstance(context).setPostListener(
+				new DatabaseHandler.PostListener() {
+					@Override
+					public void postsCommitted(long lastId) {
+						message(Message.obtain(null, Statics.MESSAGE_UPDATE,
+								(int) lastId, 0));
+					}
+				});
+		retentionHandler.postDelayed(retentionTask, 60000);
 
 		audioManager = (AudioManager) context
 				.getSystemService(Context.AUDIO_SERVICE);
@@ -957,6 +983,632 @@ public class ClientService extends Service implements MusicFocusable {
 		giveUpAudioFocus();
 		stopForeground(true);
 		unregisterRemoteControl();
+
+		sessionHandler.removeCallbacks(sessionSweepTask);
+		saveSession();
+		sessionWriter.shutdown();
+		retentionHandler.removeCallbacks(retentionTask);
+
+		reconnectScheduler.reset();
+		stopKeepalive();
+		stopCapture();
+		unregisterReceiver(connectivityReceiver);
+
+		if (packetDelivery != null) {
+			packetDelivery.shutdown();
+		}
+
+		DatabaseHandler.getInstance(context).setPostListener(null);
+
+		// Bounded, this runs on the main thread. Posts still queued after it
+		// are written by the writer thread as long as the process lives.
+		if (!DatabaseHandler.getInstance(context).flush(flushTimeout)) {
+			Logging.log(APP_TAG, "Posts still queued on exit");
+		}
+	}
+
+	/**
+	 * Handles the packets of one type, a message returned by handle() is sent
+	 * to the bound activities
+	 */
+	private abstract class PacketHandler implements PacketListener {
+		@Override
+		public void packet(Client bot, Packet packet) {
+			Message message = handle(packet);
+
+			if (message != null) {
+				message(message);
+			}
+		}
+
+		protected abstract Message handle(Packet packet);
+	}
+
+	/**
+	 * Opens text.mdb from the files directory, the file is memory mapped so
+	 * this does not read it. The file belongs to the game and is not part of
+	 * the app, it is installed the first time it is found, see
+	 * installTemplateDatabase(). Without it extended messages are shown as
+	 * their raw parameters.
+	 */
+	private MMDBDatabase openTemplateDatabase() {
+		File file = new File(getFilesDir(), "text.mdb");
+		if (file.exists() || installTemplateDatabase(file)) {
+			try {
+				return new MMDBFile(file);
+			} catch (IOException e) {
+				Logging.log(APP_TAG, "Could not open text.mdb: " + e.getMessage());
+				file.delete();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Copies text.mdb to the files directory from the assets, if the app has
+	 * been built with it, or else from Android/data/<package>/text.mdb on the
+	 * external storage. Users copy it there from cd_image/text.mdb in their
+	 * game folder.
+	 */
+	private boolean installTemplateDatabase(File file) {
+		InputStream in = null;
+
+		try {
+			in = getAssets().open("text.mdb");
+		} catch (IOException e) {
+			File external = new File(android.os.Environment.getExternalStorageDirectory().getAbsolutePath()
+					+ File.separator + "Android"
+					+ File.separator + "data"
+					+ File.separator + getPackageName()
+					+ File.separator + "text.mdb");
+
+			if (!StorageTools.isExternalStorageAvailable() || !external.exists()) {
+				Logging.log(APP_TAG, "No text.mdb, copy it to " + external);
+				return false;
+			}
+
+			try {
+				in = new FileInputStream(external);
+			} catch (IOException ex) {
+				Logging.log(APP_TAG, "Could not read " + external + ": " + ex.getMessage());
+				return false;
+			}
+		}
+
+		// Copied to a temporary file first, a partial copy is never opened
+		File temp = new File(file.getPath() + ".tmp");
+
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+
+			try {
+				byte[] buffer = new byte[8192];
+				int read;
+
+				while ((read = in.read(buffer)) > 0) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				out.close();
+			}
+
+			if (temp.renameTo(file)) {
+				Logging.log(APP_TAG, "Installed text.mdb");
+				return true;
+			}
+		} catch (IOException e) {
+			Logging.log(APP_TAG, "Could not install text.mdb: " + e.getMessage());
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+		}
+
+		temp.delete();
+		return false;
+	}
+
+	/**
+	 * Schedules the next automatic reconnect, returns false once there have
+	 * been too many attempts
+	 */
+	private boolean scheduleReconnect() {
+		long delay = reconnectScheduler.schedule();
+
+		if (delay < 0) {
+			reconnectScheduler.reset();
+			return false;
+		}
+
+		Logging.log(APP_TAG, "Automatic reconnect ("
+				+ reconnectScheduler.getAttempts() + ") in " + delay + " ms");
+		return true;
+	}
+
+	/**
+	 * Runs when a scheduled reconnect is due, without a network the attempt
+	 * waits for the connectivity broadcast instead of failing
+	 */
+	private void reconnect() {
+		if (currentAccount == null
+				|| chatClient.getState() != ClientState.DISCONNECTED) {
+			return;
+		}
+
+		if (ServiceTools.isOnline(context)) {
+			waitingForNetwork = false;
+			connect(currentAccount);
+		} else {
+			Logging.log(APP_TAG, "Waiting for network to reconnect");
+			waitingForNetwork = true;
+		}
+	}
+
+	/**
+	 * Called on every connectivity broadcast. A pending reconnect is tried
+	 * as soon as a network is back, and a live connection is pinged since
+	 * the socket usually does not survive a change of network.
+	 */
+	private void networkChanged() {
+		if (!ServiceTools.isOnline(context)) {
+			return;
+		}
+
+		if (waitingForNetwork) {
+			waitingForNetwork = false;
+			connect(currentAccount);
+		} else if (reconnectScheduler.retryNow()) {
+			Logging.log(APP_TAG, "Network is back, reconnecting now");
+		} else if (chatClient.getState() == ClientState.LOGGED_IN) {
+			new Thread(new Runnable() {
+				public void run() {
+					ping();
+				}
+			}).start();
+		}
+	}
+
+	/**
+	 * Sends keepalives from an inexact repeating alarm, so the system can
+	 * line them up with other wakeups of the radio
+	 */
+	private void startKeepalive() {
+		long interval = 240;
+
+		try {
+			interval = Long.parseLong(settings.getString("keepaliveInterval", "240"));
+		} catch (NumberFormatException e) {
+			Logging.log(APP_TAG, e.getMessage());
+		}
+
+		interval = Math.max(30, interval) * 1000;
+
+		Intent intent = new Intent(this, ClientService.class);
+		intent.setAction(ACTION_KEEPALIVE);
+		keepaliveIntent = PendingIntent.getService(this, 0, intent, 0);
+
+		((AlarmManager) getSystemService(ALARM_SERVICE)).setInexactRepeating(
+				AlarmManager.ELAPSED_REALTIME_WAKEUP,
+				SystemClock.elapsedRealtime() + interval, interval,
+				keepaliveIntent);
+	}
+
+	private void stopKeepalive() {
+		if (keepaliveIntent != null) {
+			((AlarmManager) getSystemService(ALARM_SERVICE))
+					.cancel(keepaliveIntent);
+			keepaliveIntent = null;
+		}
+	}
+
+	/**
+	 * Records the packets of this session to external storage, so a heavy
+	 * session can be replayed later with ACTION_REPLAY
+	 */
+	private void startCapture() {
+		stopCapture();
+
+		if (!StorageTools.isExternalStorageAvailable()
+				|| StorageTools.isExternalStorageReadOnly()) {
+			return;
+		}
+
+		File dir = new File(android.os.Environment.getExternalStorageDirectory().getAbsolutePath()
+				+ File.separator + "Android"
+				+ File.separator + "data"
+				+ File.separator + getPackageName()
+				+ File.separator + "captures");
+
+		if (!dir.exists() && !dir.mkdirs()) {
+			Logging.log(APP_TAG, "Could not create " + dir);
+			return;
+		}
+
+		File file = new File(dir, "capture-" + System.currentTimeMillis() + ".aopc");
+
+		try {
+			packetCapture = new PacketCapture(new FileOutputStream(file));
+			chatClient.setCapture(packetCapture);
+			Logging.log(APP_TAG, "Capturing packets to " + file);
+		} catch (IOException e) {
+			Logging.log(APP_TAG, "Could not capture packets: " + e.getMessage());
+		}
+	}
+
+	private void stopCapture() {
+		if (packetCapture != null) {
+			chatClient.setCapture(null);
+			packetCapture.close();
+
+			Logging.log(APP_TAG, "Captured " + packetCapture.getFrameCount() + " packets");
+			packetCapture = null;
+		}
+	}
+
+	/**
+	 * Feeds a capture through the packet factory and every packet handler,
+	 * the time logged includes draining the delivery thread. Replayed
+	 * messages are written like real ones, so a replay is refused while
+	 * connected and posts to a placeholder character no history is shown
+	 * for.
+	 */
+	private void replay(File file, double speed) {
+		if (chatClient.getState() != ClientState.DISCONNECTED) {
+			Logging.log(APP_TAG, "Not replaying while connected");
+			return;
+		}
+
+		CharacterInfo character = currentCharacter;
+		currentCharacter = new CharacterInfo(0, "Replay", 0, 0);
+
+		try {
+			long started = System.nanoTime();
+			PacketReplay.Result result = new PacketReplay(chatClient).replay(
+					new FileInputStream(file), speed);
+
+			packetDelivery.submit(new Runnable() {
+				public void run() {
+				}
+			}).get();
+
+			Logging.log(APP_TAG, "Replayed " + result + ", handled in "
+					+ ((System.nanoTime() - started) / 1000000L) + " ms");
+		} catch (IOException e) {
+			Logging.log(APP_TAG, "Replay failed: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Logging.log(APP_TAG, "Replay interrupted");
+		} catch (ExecutionException e) {
+			Logging.log(APP_TAG, "Replay failed: " + e.getMessage());
+		} finally {
+			currentCharacter = character;
+		}
+	}
+
+	/**
+	 * Pings the server, an unanswered previous ping disconnects the client
+	 * so the reconnect scheduler takes over
+	 */
+	private void ping() {
+		try {
+			chatClient.ping();
+		} catch (IOException e) {
+			Logging.log(APP_TAG, "Keepalive failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Loads the last session into the chat client's tables and the channel
+	 * list, the channels are kept until the server has had a chance to
+	 * confirm them
+	 */
+	private void restoreSession() {
+		session = new ChatSession(new File(getFilesDir(), "session.dat"));
+
+		if (settings.getBoolean("reconnect", true) && session.load(chatClient)) {
+			for (Map.Entry<String, Boolean> entry : session.getChannels().entrySet()) {
+				byte[] id = chatClient.getGroupTable().getID(entry.getKey());
+
+				if (id != null) {
+					channelList.add(new Channel(entry.getKey(), Convert
+							.byteToInt(id), !Statics.channelsDisabled
+							.contains(entry.getKey()), entry.getValue()
+							|| channelsMuted.contains(entry.getKey())));
+				}
+			}
+
+			markSessionStale();
+
+			Logging.log(APP_TAG, "Restored session with "
+					+ chatClient.getCharTable().size() + " characters and "
+					+ chatClient.getGroupTable().size() + " groups");
+		}
+	}
+
+	/**
+	 * Writes the session to disk on a background thread, one save at a time
+	 * since every save goes through the same temporary file
+	 */
+	private void saveSession() {
+		if (session == null || sessionWriter.isShutdown()) {
+			return;
+		}
+
+		sessionWriter.execute(new Runnable() {
+			public void run() {
+				try {
+					session.save(chatClient);
+				} catch (IOException e) {
+					Logging.log(APP_TAG, "Could not save session: " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Keeps the friend and channel lists over a reconnect, the entries the
+	 * server does not confirm again are removed by sessionSweepTask
+	 */
+	private void markSessionStale() {
+		synchronized (staleFriends) {
+			staleFriends.clear();
+			staleChannels.clear();
+
+			for (Friend friend : friendList) {
+				staleFriends.add(friend.getID());
+			}
+
+			for (Channel channel : channelList) {
+				staleChannels.add(channel.getName());
+			}
+		}
+	}
+
+	private void clearSessionLists() {
+		synchronized (staleFriends) {
+			staleFriends.clear();
+			staleChannels.clear();
+		}
+
+		friendList.clear();
+		channelList.clear();
+	}
+
+	/**
+	 * Applies the retention settings to the message database and adds the
+	 * messages the search index is missing, on a thread of its own, then
+	 * again every retentionDelay ms
+	 */
+	private Runnable retentionTask = new Runnable() {
+		public void run() {
+			retentionHandler.postDelayed(this, retentionDelay);
+
+			if (retentionRunning) {
+				return;
+			}
+
+			retentionRunning = true;
+			// Off until it is turned on, nothing is expired behind the
+			// user's back
+			final RetentionPolicy policy = settings.getBoolean("retention",
+					false) ? RetentionPolicy.fromPreferences(settings) : null;
+
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						DatabaseHandler database = DatabaseHandler
+								.getInstance(context);
+
+						if (policy != null) {
+							int expired = database.enforceRetention(policy);
+							Logging.log(APP_TAG, "Retention expired "
+									+ expired + " messages");
+						}
+
+						int indexed = database.indexHistory();
+						Logging.log(APP_TAG, "Indexed " + indexed
+								+ " messages for search");
+					} finally {
+						retentionRunning = false;
+					}
+				}
+			}).start();
+		}
+	};
+
+	/**
+	 * Runs a while after logging in, by then the server has sent every friend
+	 * and channel so whatever is still stale is gone. The sweep is done on
+	 * the delivery thread so it does not race the packet handlers.
+	 */
+	private Runnable sessionSweepTask = new Runnable() {
+		public void run() {
+			if (packetDelivery == null || packetDelivery.isShutdown()) {
+				return;
+			}
+
+			packetDelivery.execute(new Runnable() {
+				public void run() {
+					boolean friendsChanged = false;
+					boolean channelsChanged = false;
+
+					synchronized (staleFriends) {
+						for (int i = friendList.size() - 1; i >= 0; i--) {
+							if (staleFriends.contains(friendList.get(i).getID())) {
+								friendList.remove(i);
+								friendsChanged = true;
+							}
+						}
+
+						for (int i = channelList.size() - 1; i >= 0; i--) {
+							if (staleChannels.contains(channelList.get(i).getName())) {
+								session.removeChannel(channelList.get(i).getName());
+								channelList.remove(i);
+								channelsChanged = true;
+							}
+						}
+
+						staleFriends.clear();
+						staleChannels.clear();
+					}
+
+					if (friendsChanged) {
+						Message msg = Message.obtain(null, Statics.MESSAGE_FRIEND);
+						msg.obj = friendList;
+						message(msg);
+					}
+
+					if (channelsChanged) {
+						Message msg = Message.obtain(null, Statics.MESSAGE_CHANNEL);
+						msg.obj = channelList;
+						message(msg);
+					}
+
+					saveSession();
+				}
+			});
+		}
+	};
+
+	/**
+	 * Registers a handler that runs on the delivery thread, so writing to the
+	 * database and updating the UI never holds up the connection. What a
+	 * handler throws goes to the client listener, like it did when handlers
+	 * ran on the reading thread.
+	 */
+	private void addPacketHandler(short type, PacketHandler handler) {
+		chatClient.addPacketListener(type, new AsyncPacketListener(handler,
+				packetDelivery, clientListener));
+	}
+
+	/**
+	 * Registers a handler for every packet type the service cares about, the
+	 * client looks them up by type instead of every packet walking a list of checks
+	 */
+	private void addPacketHandlers() {
+		// Character list packet
+		addPacketHandler(CharacterListPacket.TYPE, new PacketHandler() {
+			@Override
+			protected Message handle(Packet packet) {
+				return handleCharacterListPacket(packet);
+			}
+		});
+
+		// Log in failed
+		addPacketHandler(LoginErrorPacket.TYPE, new PacketHandler() {
+			@Override
+			protected Message handle(Packet packet) {
+				return handleLoginErrorPacket(packet);
+			}
+		});
+
+		// Private message
+		addPacketHandler(PrivateMessagePacket.TYPE, new PacketHandler() {
+			@Override
+			protected Message handle(Packet packet) {
+				if (packet.getDirection() != Packet.Direction.TO_CLIENT) {
+					return null;
+				}
+				return handlePrivateMessagePacket(packet);
+			}
+		});
+
+		// Chat group message
+		addPacketHandler(ChannelMessagePacket.TYPE, new PacketHandler() {
+			@Override
+			protected Message handle(Packet packet) {
+				if (packet.getDirection() != Packet.Direction.TO_CLIENT) {
+					return null;
+				}
+				return handleChannelMessagePacket(packet);
+			}
+		});
+
+		// System message
+		addPacketHandler(SystemMessagePacket.TYPE, new PacketHandler() {
+			@Override
+			protected Message handle(Packet packet) {
+				if (packet.getDirection() != Packet.Direction.TO_CLIENT) {
+					return null;
+				}
+				return handleSystemMessagePacket(packet);
+			}
+		});
+
+		// Broadcast message
+		addPacketHandler(BroadcastMessagePacket.TYPE, new PacketHandler() {
+			@Override
+			protected Message handle(Packet packet) {
+				if (packet.getDirection() != Packet.Direction.TO_CLIENT) {
+					return null;
+				}
+				return handleBroadcastMessagePacket(packet);
+			}
+		});
+
+		// Vicinity notice
+		addPacketHandler(VicinityMessagePacket.TYPE, new PacketHandler() {
+			@Override
+			protected Message handle(Packet packet) {
+				return handleVicinityMessagePacket(packet);
+			}
+		});
+
+		// Friend update
+		addPacketHandler(FriendUpdatePacket.TYPE, new PacketHandler() {
+			@Override
+			protected Message handle(Packet packet) {
+				return handleFriendUpdatePacket(packet);
+			}
+		});
+
+		// Group announcement
+		addPacketHandler(ChannelUpdatePacket.TYPE, new PacketHandler() {
+			@Override
+			protected Message handle(Packet packet) {
+				return handleChannelUpdatePacket(packet);
+			}
+		});
+
+		// Private group invitation
+		addPacketHandler(PrivateChannelInvitePacket.TYPE, new PacketHandler() {
+			@Override
+			protected Message handle(Packet packet) {
+				return handlePrivateChannelInvitePacket(packet);
+			}
+		});
+
+		// Private group join
+		addPacketHandler(PrivateChannelCharacterJoinPacket.TYPE, new PacketHandler() {
+			@Override
+			protected Message handle(Packet packet) {
+				return handlePrivateChannelCharacterJoinPacket(packet);
+			}
+		});
+
+		// Private group kick
+		addPacketHandler(PrivateChannelKickPacket.TYPE, new PacketHandler() {
+			@Override
+			protected Message handle(Packet packet) {
+				return handlePrivateChannelKickPacket(packet);
+			}
+		});
+
+		// Private group leave
+		addPacketHandler(PrivateChannelCharacterLeavePacket.TYPE, new PacketHandler() {
+			@Override
+			protected Message handle(Packet packet) {
+				return handlePrivateChannelCharacterLeavePacket(packet);
+			}
+		});
+
+		// Private group message
+		addPacketHandler(PrivateChannelMessagePacket.TYPE, new PacketHandler() {
+			@Override
+			protected Message handle(Packet packet) {
+				return handlePrivateChannelMessagePacket(packet);
+			}
+		});
 	}
 
 	private Message handleCharacterListPacket(Packet packet) {
@@ -964,10 +1616,13 @@ public class ClientService extends Service implements MusicFocusable {
 
 		Message msg = null;
 		CharacterInfo[] cl = ((CharacterListPacket) packet).getCharacters();
+		session.setCharacters(cl);
 
 		if (settings.getBoolean("reconnect", true) && !manualLogin) {
 			if (currentCharacter != null) {
 				login(currentCharacter);
+			} else if (session.getLastCharacter() != null) {
+				login(session.getLastCharacter());
 			} else {
 				if (settings.getInt("lastCharacter", 0) != 0) {
 					CharacterInfo cu = null;
@@ -1005,7 +1660,6 @@ public class ClientService extends Service implements MusicFocusable {
 
 	private Message handlePrivateMessagePacket(Packet packet) {
 		Logging.log(APP_TAG, "Got PrivateMessagePacket");
-		Message msg = null;
 
 		boolean skipThis = false;
 		boolean treatAsChannel = false;
@@ -1063,12 +1717,13 @@ public class ClientService extends Service implements MusicFocusable {
 		if (!skipThis) {
 			if (!treatAsChannel) {
 				DatabaseHandler.getInstance(context).addPost(
-						((PrivateMessagePacket) packet).display(
-								chatClient.getCharTable(),
-								chatClient.getGroupTable()),
-						chatClient.getCharTable().getName(
-								((PrivateMessagePacket) packet).getCharID()),
-						Statics.CHANNEL_PM, currentCharacter.getID());
+						ChatMessage.privateMessage(
+								System.currentTimeMillis(),
+								((PrivateMessagePacket) packet).getCharID(),
+								chatClient.getCharTable().getName(
+										((PrivateMessagePacket) packet).getCharID()),
+								((PrivateMessagePacket) packet).getMessage()),
+						currentCharacter.getID());
 
 				if (clients.size() == 0
 						&& settings.getBoolean("notificationEnabled", true)) {
@@ -1085,7 +1740,6 @@ public class ClientService extends Service implements MusicFocusable {
 													.getMessage()).toString(),
 							true, true);
 				}
-				msg = Message.obtain(null, Statics.MESSAGE_UPDATE, 0, 0);
 			} else {
 				Logging.log(APP_TAG, String.format(
 						"Treating message as channel (%s)", channel));
@@ -1110,37 +1764,48 @@ public class ClientService extends Service implements MusicFocusable {
 					if (!channelsMuted.contains(channel)) {
 						DatabaseHandler.getInstance(context).addPost(message,
 								from, channel, currentCharacter.getID());
-
-						msg = Message
-								.obtain(null, Statics.MESSAGE_UPDATE, 0, 0);
 					}
 				}
 			}
 		}
 
-		return msg;
+		return null;
 	}
 
 	private Message handleChannelMessagePacket(Packet packet) {
 		Logging.log(APP_TAG, "Got ChannelMessagePacket");
-		Message msg = null;
+		ChannelMessagePacket channelPacket = (ChannelMessagePacket) packet;
+
+		// Resolved once by the packed ID, no lookup object per message
+		String groupName = chatClient.getGroupTable().getName(
+				channelPacket.getGroupKey());
+
+		if (!channelsMuted.contains(groupName)) {
+			String from = chatClient.getCharTable().getName(
+					channelPacket.getCharID());
+			ChatMessage message;
+
+			// Stored as parts, the text is only made when it is shown
+			if (channelPacket.isExtended()) {
+				ExtendedMessage extended = channelPacket.getExtendedMessage();
+
+				message = ChatMessage.extended(System.currentTimeMillis(),
+						channelPacket.getCharID(), from,
+						channelPacket.getGroupKey(), groupName,
+						extended.getCategoryId(), extended.getInstanceId(),
+						channelPacket.getExtendedParams());
+			} else {
+				message = ChatMessage.channel(System.currentTimeMillis(),
+						channelPacket.getCharID(), from,
+						channelPacket.getGroupKey(), groupName,
+						channelPacket.getMessage());
+			}
 
-		if (!channelsMuted.contains(chatClient.getGroupTable().getName(
-				((ChannelMessagePacket) packet).getGroupID()))) {
-			DatabaseHandler.getInstance(context).addPost(
-					((ChannelMessagePacket) packet).display(
-							chatClient.getCharTable(),
-							chatClient.getGroupTable()),
-					chatClient.getCharTable().getName(
-							((ChannelMessagePacket) packet).getCharID()),
-					chatClient.getGroupTable().getName(
-							((ChannelMessagePacket) packet).getGroupID()),
+			DatabaseHandler.getInstance(context).addPost(message,
 					currentCharacter.getID());
-
-			msg = Message.obtain(null, Statics.MESSAGE_UPDATE, 0, 0);
 		}
 
-		return msg;
+		return null;
 	}
 
 	private Message handleSystemMessagePacket(Packet packet) {
@@ -1179,7 +1844,7 @@ public class ClientService extends Service implements MusicFocusable {
 					currentCharacter.getID());
 		}
 
-		return Message.obtain(null, Statics.MESSAGE_UPDATE, 0, 0);
+		return null;
 	}
 
 	private Message handleBroadcastMessagePacket(Packet packet) {
@@ -1191,7 +1856,7 @@ public class ClientService extends Service implements MusicFocusable {
 				Statics.CHANNEL_SYSTEM, Statics.CHANNEL_SYSTEM,
 				currentCharacter.getID());
 
-		return Message.obtain(null, Statics.MESSAGE_UPDATE, 0, 0);
+		return null;
 	}
 
 	private Message handleVicinityMessagePacket(Packet packet) {
@@ -1203,13 +1868,17 @@ public class ClientService extends Service implements MusicFocusable {
 				Statics.CHANNEL_SYSTEM, Statics.CHANNEL_SYSTEM,
 				currentCharacter.getID());
 
-		return Message.obtain(null, Statics.MESSAGE_UPDATE, 0, 0);
+		return null;
 	}
 
 	private Message handleFriendUpdatePacket(Packet packet) {
 		Logging.log(APP_TAG, "Got FriendUpdatePacket");
 		Message msg = null;
 
+		synchronized (staleFriends) {
+			staleFriends.remove(((FriendUpdatePacket) packet).getCharID());
+		}
+
 		if (!((FriendUpdatePacket) packet).isFriend()) {
 			boolean removeFriend = false;
 			int removeFriendID = 0;
@@ -1289,9 +1958,15 @@ public class ClientService extends Service implements MusicFocusable {
 
 		boolean addChannel = true;
 
+		synchronized (staleFriends) {
+			staleChannels.remove(((ChannelUpdatePacket) packet).getGroupName());
+		}
+
 		for (Channel channel : channelList) {
 			if (channel.getName().equals(
 					((ChannelUpdatePacket) packet).getGroupName())) {
+				channel.setID(Convert.byteToInt(((ChannelUpdatePacket) packet)
+						.getGroupID()));
 				addChannel = false;
 			}
 		}
@@ -1314,6 +1989,8 @@ public class ClientService extends Service implements MusicFocusable {
 					.getGroupName(), Convert
 					.byteToInt(((ChannelUpdatePacket) packet).getGroupID()),
 					enabled, muted));
+			session.setChannel(((ChannelUpdatePacket) packet).getGroupName(),
+					muted);
 
 			msg = Message.obtain(null, Statics.MESSAGE_CHANNEL);
 			msg.obj = channelList;
@@ -1383,7 +2060,7 @@ public class ClientService extends Service implements MusicFocusable {
 										.getGroupID()),
 				currentCharacter.getID());
 
-		return Message.obtain(null, Statics.MESSAGE_UPDATE, 0, 0);
+		return null;
 	}
 
 	private Message handlePrivateChannelKickPacket(Packet packet) {
@@ -1421,7 +2098,7 @@ public class ClientService extends Service implements MusicFocusable {
 
 		message(message);
 
-		return Message.obtain(null, Statics.MESSAGE_UPDATE, 0, 0);
+		return null;
 	}
 
 	private Message handlePrivateChannelCharacterLeavePacket(Packet packet) {
@@ -1445,24 +2122,27 @@ public class ClientService extends Service implements MusicFocusable {
 										.getGroupID()),
 				currentCharacter.getID());
 
-		return Message.obtain(null, Statics.MESSAGE_UPDATE, 0, 0);
+		return null;
 	}
 
 	private Message handlePrivateChannelMessagePacket(Packet packet) {
 		Logging.log(APP_TAG, "Got PrivateChannelMessagePacket");
 
+		PrivateChannelMessagePacket channelPacket = (PrivateChannelMessagePacket) packet;
+
 		DatabaseHandler.getInstance(context).addPost(
-				((PrivateChannelMessagePacket) packet).display(
-						chatClient.getCharTable(), chatClient.getGroupTable()),
-				chatClient.getCharTable().getName(
-						((PrivateChannelMessagePacket) packet).getCharID()),
-				Statics.PREFIX_PRIVATE_GROUP
-						+ chatClient.getCharTable().getName(
-								((PrivateChannelMessagePacket) packet)
-										.getGroupID()),
+				ChatMessage.privateChannel(
+						System.currentTimeMillis(),
+						channelPacket.getCharID(),
+						chatClient.getCharTable().getName(
+								channelPacket.getCharID()),
+						channelPacket.getGroupID(),
+						chatClient.getCharTable().getName(
+								channelPacket.getGroupID()),
+						channelPacket.getMessage()),
 				currentCharacter.getID());
 
-		return Message.obtain(null, Statics.MESSAGE_UPDATE, 0, 0);
+		return null;
 	}
 
 	@Override
@@ -1479,6 +2159,25 @@ public class ClientService extends Service implements MusicFocusable {
 					play();
 				} else if (action.equals(ACTION_STOP)) {
 					stop();
+				} else if (action.equals(ACTION_KEEPALIVE)) {
+					new Thread(new Runnable() {
+						public void run() {
+							ping();
+						}
+					}).start();
+				} else if (action.equals(ACTION_RECONNECT)) {
+					reconnectScheduler.fire();
+				} else if (action.equals(ACTION_REPLAY) && BuildConfig.DEBUG) {
+					final String file = intent.getStringExtra("file");
+					final double speed = intent.getDoubleExtra("speed", 0);
+
+					if (file != null) {
+						new Thread(new Runnable() {
+							public void run() {
+								replay(new File(file), speed);
+							}
+						}, "PacketReplay").start();
+					}
 				}
 			}
 		}
@@ -1583,7 +2282,6 @@ public class ClientService extends Service implements MusicFocusable {
 									message.getMessage()),
 							message.getCharacter(), Statics.CHANNEL_PM,
 							currentCharacter.getID());
-					message(Message.obtain(null, Statics.MESSAGE_UPDATE, 0, 0));
 				}
 			} catch (IOException e) {
 				Logging.log(APP_TAG, e.getMessage());
@@ -1845,6 +2543,7 @@ public class ClientService extends Service implements MusicFocusable {
 	public void connect(Account acc) {
 		if (acc != null) {
 			currentAccount = acc;
+			reconnectScheduler.cancel();
 
 			new Thread(new Runnable() {
 				public void run() {
@@ -1884,10 +2583,14 @@ public class ClientService extends Service implements MusicFocusable {
 							}
 						}
 					} catch (IOException e) {
+						Logging.log(APP_TAG, e.getMessage());
+
+						if (reconnectScheduler.isRetrying() && scheduleReconnect()) {
+							return;
+						}
+
 						message(Message.obtain(null, Statics.MESSAGE_CONNECTION_ERROR, 0, 0));
 						accountFailed = true;
-						
-						Logging.log(APP_TAG, e.getMessage());
 					} catch (ClientStateException e) {
 						message(Message.obtain(null, Statics.MESSAGE_CONNECTION_ERROR, 0, 0));
 						accountFailed = true;
@@ -0,0 +1,144 @@
+package com.rubika.aotalk.service;
+
+import java.util.Random;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.os.SystemClock;
+
+/**
+ * Schedules reconnect attempts with exponential backoff. The delay doubles
+ * with every failed attempt up to a maximum, and a random part of it is
+ * taken off so clients that lost the same server do not all come back at
+ * once. A retry can be brought forward with {@link #retryNow()}, for example
+ * when the network comes back.
+ *
+ * Attempts are timed by an elapsed realtime alarm, so the backoff keeps
+ * running while the device sleeps. The alarm sends the given intent, whoever
+ * receives it calls {@link #fire()}.
+ */
+public class ReconnectScheduler {
+	private final AlarmManager alarmManager;
+	private final PendingIntent alarm;
+	private final Random random = new Random();
+	private final Runnable reconnect;
+	private final long baseDelay;
+	private final long maxDelay;
+	private final int maxAttempts;
+
+	private int attempts = 0;
+	private boolean pending = false;
+	private long nextAttempt = 0;
+
+	/**
+	 * @param context used to reach the alarm service
+	 * @param alarm sent when an attempt is due
+	 * @param reconnect run by {@link #fire()} for every attempt
+	 * @param baseDelay the delay (ms) before the first attempt
+	 * @param maxDelay the longest delay (ms) between two attempts
+	 * @param maxAttempts attempts before giving up, 0 to never give up
+	 */
+	public ReconnectScheduler(Context context, PendingIntent alarm,
+			Runnable reconnect, long baseDelay, long maxDelay, int maxAttempts) {
+		this.alarmManager = (AlarmManager) context
+				.getSystemService(Context.ALARM_SERVICE);
+		this.alarm = alarm;
+		this.reconnect = reconnect;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Schedules the next attempt
+	 *
+	 * @return the delay (ms) until the attempt, or -1 if there have been too
+	 *         many attempts already
+	 */
+	public synchronized long schedule() {
+		if (maxAttempts > 0 && attempts >= maxAttempts) {
+			return -1;
+		}
+
+		long delay = baseDelay << Math.min(attempts, 20);
+		if (delay > maxDelay || delay <= 0) {
+			delay = maxDelay;
+		}
+
+		// Equal jitter, half of the delay is kept so the backoff still grows
+		delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+
+		attempts++;
+		post(delay);
+
+		return delay;
+	}
+
+	/**
+	 * Runs the pending attempt right away, returns false if no attempt is
+	 * pending. The backoff is not reset, a failure is scheduled as usual.
+	 */
+	public synchronized boolean retryNow() {
+		if (!pending) {
+			return false;
+		}
+
+		post(0);
+		return true;
+	}
+
+	/**
+	 * Runs the pending attempt on the caller's thread, called when the alarm
+	 * goes off. Returns false if no attempt is pending, the alarm may have
+	 * been on its way when the attempt was cancelled.
+	 */
+	public boolean fire() {
+		synchronized (this) {
+			if (!pending) {
+				return false;
+			}
+			pending = false;
+		}
+
+		reconnect.run();
+		return true;
+	}
+
+	/** Forgets the failed attempts, called once the client is back */
+	public synchronized void reset() {
+		cancel();
+		attempts = 0;
+	}
+
+	/** Cancels the pending attempt, the attempts made so far are kept */
+	public synchronized void cancel() {
+		alarmManager.cancel(alarm);
+		pending = false;
+	}
+
+	/** Returns true while reconnecting, from the first scheduled attempt until reset */
+	public synchronized boolean isRetrying() {
+		return attempts > 0;
+	}
+
+	public synchronized boolean isPending() {
+		return pending;
+	}
+
+	public synchronized int getAttempts() {
+		return attempts;
+	}
+
+	/** Returns the time (ms, elapsed realtime) of the pending attempt, or 0 */
+	public synchronized long getNextAttempt() {
+		return pending ? nextAttempt : 0;
+	}
+
+	private void post(long delay) {
+		pending = true;
+		nextAttempt = SystemClock.elapsedRealtime() + delay;
+		alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, nextAttempt,
+				alarm);
+	}
+}